@@ -0,0 +1,72 @@
+package com.peterflanner.twspositionsizer.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import com.peterflanner.twspositionsizer.engine.Backtest;
+import com.peterflanner.twspositionsizer.engine.BarSeries;
+import com.peterflanner.twspositionsizer.engine.PositionSizer;
+
+/**
+ * Backtest throughput over synthetic bars: random walk 5 minute bars for a few hundred symbols with a trade every
+ * day, sized by percent of equity and by dollars, on one thread and on the common pool. Prints each run's combined
+ * result and its bars per second.
+ * <p>
+ * Usage: {@code java -cp target/classes:target/test-classes:lib/javaclient.jar
+ * com.peterflanner.twspositionsizer.bench.BacktestBenchmark [symbols] [barsPerSymbol]}
+ */
+public class BacktestBenchmark {
+    private static final int BARS_PER_DAY = 78;
+
+    public static void main(String[] args) {
+        int symbols = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int barsPerSymbol = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+        Random random = new Random(42);
+        List<BarSeries> bars = new ArrayList<>();
+        List<List<Backtest.Trade>> trades = new ArrayList<>();
+        for (int s = 0; s < symbols; s++) {
+            BarSeries series = new BarSeries(300, BarSeries.DEFAULT_ATR_PERIOD, barsPerSymbol);
+            List<Backtest.Trade> list = new ArrayList<>();
+            double price = 20 + random.nextInt(200);
+            for (int i = 0; i < barsPerSymbol; i++) {
+                long time = 1420070400L + i * 300L;
+                double open = price;
+                price = Math.max(1, price * (1 + random.nextGaussian() * 0.002));
+                double high = Math.max(open, price) * (1 + random.nextDouble() * 0.001);
+                double low = Math.min(open, price) * (1 - random.nextDouble() * 0.001);
+                series.bar(time, open, high, low, price, 100 + random.nextInt(10000));
+                if (i % BARS_PER_DAY == 0) {
+                    // a 1% stop, out at the end of the day if it isn't hit
+                    list.add(new Backtest.Trade(time, -1.0, Double.NaN, time + BARS_PER_DAY * 300L));
+                }
+            }
+            bars.add(series);
+            trades.add(list);
+        }
+
+        for (boolean riskIsPercent : new boolean[] { true, false }) {
+            PositionSizer sizer = new PositionSizer();
+            sizer.riskIsPercent(riskIsPercent);
+            sizer.stopIsPercent(true);
+            Backtest backtest = new Backtest(sizer, riskIsPercent ? 0.5 : 500, 100000);
+            for (int s = 0; s < symbols; s++) {
+                backtest.add("S" + s, bars.get(s), trades.get(s));
+            }
+            // warm up, then time one thread and the common pool
+            backtest.run();
+            ForkJoinPool single = new ForkJoinPool(1);
+            Backtest.Report serial = backtest.run(single);
+            single.shutdown();
+            Backtest.Report parallel = backtest.run();
+
+            System.out.println(riskIsPercent ? "risk 0.5% of equity" : "risk $500");
+            System.out.println("  " + parallel.combined());
+            System.out.println(String.format("  1 thread   %,14.0f bars/s", serial.bars() * 1e9 / serial.nanos()));
+            System.out.println(String.format("  %2d threads %,14.0f bars/s", ForkJoinPool.getCommonPoolParallelism(),
+                    parallel.bars() * 1e9 / parallel.nanos()));
+        }
+    }
+}
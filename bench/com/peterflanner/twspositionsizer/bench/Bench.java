@@ -0,0 +1,130 @@
+package com.peterflanner.twspositionsizer.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Minimal microbenchmark runner: warmup, then timed iterations of a fixed number of operations, reporting
+ * throughput, bytes allocated per operation and GC activity. Allocation is read from the HotSpot per-thread
+ * allocation counter, so it only counts what the benchmark thread allocates.
+ */
+public class Bench {
+    /** One benchmark operation. Return something derived from the work so the JIT can't drop it. */
+    public interface IOp {
+        long run(int i);
+    }
+
+    public static class Result {
+        final String m_name;
+        final double m_opsPerSec;
+        final double m_bytesPerOp;
+        final long m_gcCount;
+        final long m_gcMillis;
+        final double m_ratePerSec;
+
+        Result(String name, double opsPerSec, double bytesPerOp, long gcCount, long gcMillis, double ratePerSec) {
+            m_name = name;
+            m_opsPerSec = opsPerSec;
+            m_bytesPerOp = bytesPerOp;
+            m_gcCount = gcCount;
+            m_gcMillis = gcMillis;
+            m_ratePerSec = ratePerSec;
+        }
+
+        public double opsPerSec() { return m_opsPerSec; }
+        public double bytesPerOp() { return m_bytesPerOp; }
+
+        /** Share of one core used at the realistic rate, e.g. 0.01 is 1%. */
+        public double coreShare() {
+            return m_ratePerSec / m_opsPerSec;
+        }
+
+        /** Allocation rate at the realistic rate in MB/s. */
+        public double allocMbPerSec() {
+            return m_bytesPerOp * m_ratePerSec / (1024 * 1024);
+        }
+
+        @Override public String toString() {
+            return String.format("%-34s %14.0f ops/s %10.1f B/op %6d gc %6d ms | at %,8.0f/s: %6.3f%% core %8.3f MB/s",
+                    m_name, m_opsPerSec, m_bytesPerOp, m_gcCount, m_gcMillis, m_ratePerSec, coreShare() * 100, allocMbPerSec());
+        }
+    }
+
+    public static volatile long s_sink;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final int m_warmupIterations;
+    private final int m_iterations;
+    private final int m_opsPerIteration;
+
+    public Bench(int warmupIterations, int iterations, int opsPerIteration) {
+        m_warmupIterations = warmupIterations;
+        m_iterations = iterations;
+        m_opsPerIteration = opsPerIteration;
+    }
+
+    /**
+     * Run a benchmark.
+     * @param name label for the report
+     * @param ratePerSec how often the operation happens in a busy session, used to report core share and MB/s
+     * @param op the operation
+     */
+    public Result run(String name, double ratePerSec, IOp op) {
+        for (int i = 0; i < m_warmupIterations; i++) {
+            iteration(op);
+        }
+
+        double[] opsPerSec = new double[m_iterations];
+        long bytes = 0;
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        for (int i = 0; i < m_iterations; i++) {
+            long allocBefore = allocatedBytes();
+            long nanos = iteration(op);
+            bytes += allocatedBytes() - allocBefore;
+            opsPerSec[i] = m_opsPerIteration * 1e9 / nanos;
+        }
+        Arrays.sort(opsPerSec);
+        double median = opsPerSec[m_iterations / 2];
+        double bytesPerOp = (double) bytes / ((long) m_iterations * m_opsPerIteration);
+        return new Result(name, median, bytesPerOp, gcCount() - gcCount, gcMillis() - gcMillis, ratePerSec);
+    }
+
+    private long iteration(IOp op) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < m_opsPerIteration; i++) {
+            sink += op.run(i);
+        }
+        long nanos = System.nanoTime() - start;
+        s_sink = sink;
+        return nanos;
+    }
+
+    /** Bytes allocated so far by the calling thread, or 0 if the JVM doesn't expose it. */
+    public static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,401 @@
+package com.peterflanner.twspositionsizer.bench;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.ib.client.EClientSocket;
+import com.ib.client.EReader;
+import com.ib.controller.ApiConnection;
+import com.ib.controller.ApiController;
+import com.ib.controller.NewTickType;
+import com.peterflanner.twspositionsizer.controller.TickReader;
+import com.peterflanner.twspositionsizer.engine.PositionSizer;
+import com.peterflanner.twspositionsizer.engine.SizingGraph;
+import com.peterflanner.twspositionsizer.engine.Watchlist;
+import com.peterflanner.twspositionsizer.ui.TickCoalescer;
+
+/**
+ * Benchmarks for the sizer's hot paths: calculate(), the per tick price formatting in updatePrice(), the per tag
+ * parsing in accountSummary() and the contract info split in displayGroupUpdated(). Each one is reported against
+ * the rate it runs at in a busy session so regressions show up as core share and MB/s.
+ * <p>
+ * Decoding ticks off the socket is also a check: the run fails if {@link TickReader} allocates or decodes slower than
+ * the stock EReader. It also fails if the incremental {@link SizingGraph} disagrees with {@link PositionSizer#size} on
+ * a million random input changes.
+ * <p>
+ * Usage: {@code java -cp target/classes:target/test-classes:lib/javaclient.jar
+ * com.peterflanner.twspositionsizer.bench.HotPathBenchmarks [filter]}
+ */
+public class HotPathBenchmarks {
+    // a watchlist of 500 names ticking 10 times a second
+    private static final double TICK_RATE = 5000;
+    // 4 tags for 100 accounts, IB resends the summary every 3 minutes but a refresh sends it all at once
+    private static final double ACCOUNT_SUMMARY_RATE = 400;
+    private static final double DISPLAY_GROUP_RATE = 2;
+    private static final double CLICK_RATE = 1;
+
+    private static final int PRICES = 1024;
+
+    public static void main(String[] args) {
+        String filter = args.length > 0 ? args[0] : "";
+        Bench bench = new Bench(5, 10, 200000);
+        List<Bench.Result> results = new ArrayList<>();
+
+        final double[] prices = new double[PRICES];
+        final String[] priceText = new String[PRICES];
+        final String[] accountValues = new String[PRICES];
+        final String[] contractInfo = new String[PRICES];
+        for (int i = 0; i < PRICES; i++) {
+            prices[i] = 50 + (i % 200) * 0.01;
+            priceText[i] = Double.toString(prices[i]);
+            accountValues[i] = Double.toString(125000 + i * 13.37);
+            contractInfo[i] = (265598 + i) + "@SMART";
+        }
+
+        final PositionSizer sizer = new PositionSizer();
+        final PositionSizer.Result sizing = new PositionSizer.Result();
+        if (matches("calculate.engine", filter)) {
+            results.add(bench.run("calculate.engine", TICK_RATE, new Bench.IOp() {
+                @Override public long run(int i) {
+                    double price = prices[i & (PRICES - 1)];
+                    sizer.size(125000, price, 100, price - 1.5, 250000, 120000, 60000, sizing);
+                    return sizing.shares();
+                }
+            }));
+        }
+
+        final NumberFormat numberFormat = NumberFormat.getInstance();
+        if (matches("calculate.parseText", filter)) {
+            // what a Calculate click did before the engine: parse every input from its text field
+            results.add(bench.run("calculate.parseText", CLICK_RATE, new Bench.IOp() {
+                @Override public long run(int i) {
+                    try {
+                        double nlv = numberFormat.parse("125,000.00").doubleValue();
+                        double price = numberFormat.parse(priceText[i & (PRICES - 1)]).doubleValue();
+                        double risk = numberFormat.parse("100").doubleValue();
+                        double stop = numberFormat.parse("48.50").doubleValue();
+                        sizer.size(nlv, price, risk, stop, -1, -1, -1, sizing);
+                        return sizing.shares();
+                    } catch (ParseException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }));
+        }
+
+        final NumberFormat doubleZeroFormat = new DecimalFormat("0.00");
+        if (matches("updatePrice.format", filter)) {
+            results.add(bench.run("updatePrice.format", TICK_RATE, new Bench.IOp() {
+                @Override public long run(int i) {
+                    return doubleZeroFormat.format(prices[i & (PRICES - 1)]).length();
+                }
+            }));
+        }
+
+        final TickCoalescer coalescer = new TickCoalescer(TickCoalescer.DEFAULT_FRAME_MILLIS, new TickCoalescer.IFrameListener() {
+            @Override public void frame(TickCoalescer ticks) {
+            }
+        });
+        if (matches("tickPrice.coalesce", filter)) {
+            results.add(bench.run("tickPrice.coalesce", TICK_RATE, new Bench.IOp() {
+                @Override public long run(int i) {
+                    coalescer.tickPrice(NewTickType.LAST, prices[i & (PRICES - 1)]);
+                    return i;
+                }
+            }));
+        }
+
+        final Watchlist watchlist = new Watchlist(512, new PositionSizer());
+        for (int i = 0; i < 500; i++) {
+            watchlist.add(265598 + i, "S" + i, 45);
+        }
+        watchlist.risk(100);
+        if (matches("watchlist.tick", filter)) {
+            results.add(bench.run("watchlist.tick", TICK_RATE, new Bench.IOp() {
+                @Override public long run(int i) {
+                    watchlist.price(265598 + i % 500, prices[i & (PRICES - 1)]);
+                    return i;
+                }
+            }));
+        }
+
+        if (matches("accountSummary.parseDouble", filter)) {
+            results.add(bench.run("accountSummary.parseDouble", ACCOUNT_SUMMARY_RATE, new Bench.IOp() {
+                @Override public long run(int i) {
+                    return (long) Double.parseDouble(accountValues[i & (PRICES - 1)]);
+                }
+            }));
+        }
+
+        if (matches("displayGroupUpdated.split", filter)) {
+            results.add(bench.run("displayGroupUpdated.split", DISPLAY_GROUP_RATE, new Bench.IOp() {
+                @Override public long run(int i) {
+                    String[] split = contractInfo[i & (PRICES - 1)].split("@");
+                    return Integer.parseInt(split[0]) + split.length;
+                }
+            }));
+        }
+
+        final byte[] tickFrames = tickFrames(prices);
+        final StockReader stockReader = new StockReader(new Frames(tickFrames));
+        Bench.Result stockDecode = null;
+        if (matches("tick.decodeEReader", filter)) {
+            // what every tick cost before TickReader: a String per field, a boxed request id and a NewTickType lookup
+            stockDecode = bench.run("tick.decodeEReader", TICK_RATE, new Bench.IOp() {
+                @Override public long run(int i) {
+                    return stockReader.next();
+                }
+            });
+            results.add(stockDecode);
+        }
+
+        final CountingTicks ticks = new CountingTicks();
+        final FastReader tickReader = new FastReader(new Frames(tickFrames), ticks);
+        Bench.Result tickDecode = null;
+        if (matches("tick.decodeTickReader", filter)) {
+            tickDecode = bench.run("tick.decodeTickReader", TICK_RATE, new Bench.IOp() {
+                @Override public long run(int i) {
+                    return tickReader.next() + ticks.m_count;
+                }
+            });
+            results.add(tickDecode);
+        }
+
+        for (Bench.Result result : results) {
+            System.out.println(result);
+        }
+        // a few bytes of the whole run may be the JVM's, a byte per tick is garbage
+        if (tickDecode != null && tickDecode.bytesPerOp() >= 1) {
+            System.out.println("FAIL: TickReader allocated " + tickDecode.bytesPerOp() + " bytes per tick");
+            System.exit(1);
+        }
+        // TickReader only earns its place if it is also faster than the reader it replaces
+        if (tickDecode != null && stockDecode != null && tickDecode.opsPerSec() < stockDecode.opsPerSec()) {
+            System.out.println("FAIL: TickReader decoded " + (long) tickDecode.opsPerSec() + " ticks/s, EReader "
+                    + (long) stockDecode.opsPerSec());
+            System.exit(1);
+        }
+        if (matches("sizingGraph.equivalence", filter)) {
+            String mismatch = checkSizingGraph(1000000, 42);
+            if (mismatch != null) {
+                System.out.println("FAIL: SizingGraph " + mismatch);
+                System.exit(1);
+            }
+            System.out.println("sizingGraph.equivalence: matches PositionSizer.size on 1,000,000 random input changes");
+        }
+    }
+
+    /**
+     * Make the same random input changes to a SizingGraph and to the inputs of PositionSizer.size, unknown and out of
+     * range values included, and compare the outputs after each recompute.
+     * @return the first mismatch, null if there is none
+     */
+    private static String checkSizingGraph(int changes, long seed) {
+        Random random = new Random(seed);
+        SizingGraph graph = new SizingGraph();
+        PositionSizer sizer = new PositionSizer();
+        PositionSizer.Result expected = new PositionSizer.Result();
+        // the graph's initial inputs
+        double price = Double.NaN;
+        double nlv = -1.0;
+        double risk = Double.NaN;
+        double stop = Double.NaN;
+        double openRisk = 0;
+        int position = 0;
+        double riskCap = Double.NaN;
+        boolean riskIsPercent = false;
+        boolean stopIsPercent = false;
+        double buyingPower = -1.0;
+        double excessLiquidity = -1.0;
+        double totalCashValue = -1.0;
+        for (int i = 0; i < changes; i++) {
+            switch (random.nextInt(10)) {
+                case 0:
+                    price = pick(random, 50);
+                    graph.price(price);
+                    break;
+                case 1:
+                    nlv = pick(random, 125000);
+                    graph.nlv(nlv);
+                    break;
+                case 2:
+                    risk = pick(random, random.nextBoolean() ? 1 : 500);
+                    graph.risk(risk);
+                    break;
+                case 3:
+                    stop = pick(random, random.nextBoolean() ? 48.5 : -3);
+                    graph.stop(stop);
+                    break;
+                case 4:
+                    openRisk = pick(random, 200);
+                    graph.openRisk(openRisk);
+                    break;
+                case 5:
+                    position = random.nextInt(4) == 0 ? 0 : random.nextInt(2001) - 1000;
+                    graph.position(position);
+                    break;
+                case 6:
+                    riskCap = pick(random, 300);
+                    graph.riskCap(riskCap);
+                    break;
+                case 7:
+                    riskIsPercent = random.nextBoolean();
+                    graph.riskIsPercent(riskIsPercent);
+                    break;
+                case 8:
+                    stopIsPercent = random.nextBoolean();
+                    graph.stopIsPercent(stopIsPercent);
+                    break;
+                default:
+                    buyingPower = pick(random, 250000);
+                    excessLiquidity = pick(random, 120000);
+                    totalCashValue = pick(random, 60000);
+                    graph.account(buyingPower, excessLiquidity, totalCashValue);
+                    break;
+            }
+            // a frame usually carries a few changes
+            if (random.nextInt(3) != 0) {
+                continue;
+            }
+            graph.recompute();
+            sizer.riskIsPercent(riskIsPercent);
+            sizer.stopIsPercent(stopIsPercent);
+            sizer.riskCap(riskCap);
+            sizer.size(nlv, price, risk, openRisk, position, stop, buyingPower, excessLiquidity, totalCashValue, expected);
+            if (graph.shares() != expected.shares() || Double.compare(graph.value(), expected.value()) != 0
+                    || graph.tier() != expected.tier()) {
+                return "after change " + i + ": shares=" + graph.shares() + " value=" + graph.value() + " tier=" + graph.tier()
+                        + ", PositionSizer.size shares=" + expected.shares() + " value=" + expected.value() + " tier=" + expected.tier();
+            }
+        }
+        return null;
+    }
+
+    /** Near the typical value, the typical value itself so inputs repeat, or what an unknown or bad input looks like. */
+    private static double pick(Random random, double typical) {
+        switch (random.nextInt(8)) {
+            case 0: return Double.NaN;
+            case 1: return -1.0;
+            case 2: return 0;
+            case 3: return typical;
+            default: return typical * (0.5 + random.nextDouble());
+        }
+    }
+
+    /** Tick price and tick size messages as TWS sends them, one per price, starting over at the end. */
+    private static byte[] tickFrames(double[] prices) {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = 0; i < prices.length; i++) {
+            int reqId = 10000001 + i % 500;
+            if (i % 2 == 0) {
+                // tick price, version 6: bid, ask or last with its size and canAutoExecute
+                int tickType = i % 3 == 0 ? 1 : i % 3 == 1 ? 2 : 4;
+                fields(frames, 1, 6, reqId, tickType, prices[i], 100 + i, 1);
+            } else {
+                fields(frames, 2, 6, reqId, 8, 120000 + i * 7);
+            }
+        }
+        return frames.toByteArray();
+    }
+
+    private static void fields(ByteArrayOutputStream out, Object... fields) {
+        for (Object field : fields) {
+            byte[] bytes = String.valueOf(field).getBytes(StandardCharsets.ISO_8859_1);
+            out.write(bytes, 0, bytes.length);
+            out.write(0);
+        }
+    }
+
+    /** The frames over and over, like a socket that never runs dry. */
+    private static class Frames extends InputStream {
+        private final byte[] m_frames;
+        private int m_pos;
+
+        Frames(byte[] frames) {
+            m_frames = frames;
+        }
+
+        @Override public int read() {
+            int b = m_frames[m_pos] & 0xff;
+            m_pos = (m_pos + 1) % m_frames.length;
+            return b;
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, m_frames.length - m_pos);
+            System.arraycopy(m_frames, m_pos, b, off, n);
+            m_pos = (m_pos + n) % m_frames.length;
+            return n;
+        }
+    }
+
+    /** A stock EReader, its callbacks going to an ApiController with no requests. */
+    private static class StockReader extends EReader {
+        StockReader(InputStream in) {
+            super(new EClientSocket(new ApiController(new NoConnection(), NO_LOG, NO_LOG)),
+                    new DataInputStream(new BufferedInputStream(in)));
+        }
+
+        long next() {
+            try {
+                return processMsg(readInt()) ? 1 : 0;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class FastReader extends TickReader {
+        FastReader(InputStream in, ITickListener ticks) {
+            super(null, in, ticks, null);
+        }
+
+        long next() {
+            try {
+                return processMsg(readInt()) ? 1 : 0;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class CountingTicks implements TickReader.ITickListener {
+        long m_count;
+
+        @Override public void tickPrice(int reqId, int tickType, double price, int canAutoExecute) {
+            m_count += reqId + tickType + (long) price + canAutoExecute;
+        }
+
+        @Override public void tickSize(int reqId, int tickType, int size) {
+            m_count += reqId + tickType + size;
+        }
+    }
+
+    private static final ApiConnection.ILogger NO_LOG = new ApiConnection.ILogger() {
+        @Override public void log(String valueOf) {
+        }
+    };
+
+    private static class NoConnection implements ApiController.IConnectionHandler {
+        @Override public void connected() {}
+        @Override public void disconnected() {}
+        @Override public void accountList(ArrayList<String> list) {}
+        @Override public void error(Exception e) {}
+        @Override public void message(int id, int errorCode, String errorMsg) {}
+        @Override public void show(String string) {}
+    }
+
+    private static boolean matches(String name, String filter) {
+        return name.contains(filter);
+    }
+}
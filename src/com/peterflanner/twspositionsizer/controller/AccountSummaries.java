@@ -0,0 +1,242 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.ib.controller.AccountSummaryTag;
+import com.ib.controller.ApiController.IAccountSummaryHandler;
+import com.peterflanner.twspositionsizer.engine.DirtyRows;
+
+/**
+ * Every account's summary values from one reqAccountSummary("All") subscription with all tags, so advisor setups with
+ * many sub-accounts don't need a request per account. Each account gets a row the first time it's seen; values are
+ * parsed once on the EReader thread into a flat primitive table and the row is flagged dirty for the view.
+ * <p>
+ * Each row is guarded by a seqlock: the writer makes the row's version odd, writes, and makes it even again, so
+ * {@link #snapshot} can copy all of an account's values consistently without taking a lock. Listeners are told
+ * about a tag only when its value actually changed, on the account's dispatcher stripe.
+ */
+public class AccountSummaries implements IAccountSummaryHandler {
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int NONE = -1;
+
+    private static final AccountSummaryTag[] TAGS = AccountSummaryTag.values();
+
+    public interface IAccountListener {
+        /**
+         * Called on the account's dispatcher stripe after the value of a tag changed.
+         * @param value the new value, NaN if it isn't a number
+         */
+        void changed(int row, AccountSummaryTag tag, double value);
+    }
+
+    /** A consistent copy of one account's values. Reuse one instance per reader. */
+    public static class Snapshot {
+        private final double[] m_values = new double[TAGS.length];
+        private int m_row = NONE;
+        private long m_version;
+
+        public int row() { return m_row; }
+        /** Even version of the row when it was copied; a different version means something changed since. */
+        public long version() { return m_version; }
+        /** Value of a tag, NaN if it hasn't been received or isn't a number. */
+        public double get(AccountSummaryTag tag) { return m_values[tag.ordinal()]; }
+        /** Value of a tag, or the default if it hasn't been received. */
+        public double get(AccountSummaryTag tag, double defaultValue) {
+            double v = m_values[tag.ordinal()];
+            return Double.isNaN(v) ? defaultValue : v;
+        }
+    }
+
+    private final MyApiController m_controller;
+    private final int m_capacity;
+    // rows are handed out in the order accounts are first seen and never reused
+    private final ConcurrentHashMap<String, Integer> m_rows = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<String> m_accounts;
+    private final AtomicReferenceArray<String> m_accountTypes;
+    // double bits at row * TAGS.length + tag ordinal, NaN until received
+    private final AtomicLongArray m_values;
+    // seqlock per row, odd while the row is being written
+    private final AtomicLongArray m_versions;
+    private final DirtyRows m_dirty;
+    private volatile int m_size;
+    private final CopyOnWriteArrayList<IAccountListener> m_listeners = new CopyOnWriteArrayList<>();
+    private boolean m_subscribed;
+    // values are from before the last disconnect, until the summary ends again
+    private volatile boolean m_stale;
+    private long m_updates;
+    private long m_changes;
+    private long m_dropped;
+
+    AccountSummaries(MyApiController controller) {
+        this(controller, Integer.getInteger("twspositionsizer.maxAccounts", DEFAULT_CAPACITY));
+    }
+
+    AccountSummaries(MyApiController controller, int capacity) {
+        m_controller = controller;
+        m_capacity = capacity;
+        m_accounts = new AtomicReferenceArray<>(capacity);
+        m_accountTypes = new AtomicReferenceArray<>(capacity);
+        m_values = new AtomicLongArray(capacity * TAGS.length);
+        m_versions = new AtomicLongArray(capacity);
+        m_dirty = new DirtyRows(capacity);
+    }
+
+    /** Request every tag for every account, once per connection. */
+    public synchronized void subscribe() {
+        if (!m_subscribed) {
+            m_subscribed = true;
+            m_controller.reqAccountSummary("All", TAGS, this);
+        }
+    }
+
+    synchronized void disconnected() {
+        m_subscribed = false;
+        m_stale = true;
+    }
+
+    /** Whether the values were received before the connection last dropped and haven't all been sent again yet. */
+    public boolean isStale() {
+        return m_stale;
+    }
+
+    /** Be told about every value that changes, for any account. Adding a listener twice has no effect. */
+    public void addListener(IAccountListener listener) {
+        m_listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(IAccountListener listener) {
+        m_listeners.remove(listener);
+    }
+
+    public int capacity() { return m_capacity; }
+    public int size() { return m_size; }
+    public String account(int row) { return m_accounts.get(row); }
+    public String accountType(int row) { return m_accountTypes.get(row); }
+    public long version(int row) { return m_versions.get(row); }
+
+    /** Row for an account, or {@link #NONE} if nothing has been received for it. */
+    public int row(String account) {
+        Integer row = m_rows.get(account);
+        return row == null ? NONE : row;
+    }
+
+    /** Latest value of a single tag, NaN if it hasn't been received or isn't a number. */
+    public double value(int row, AccountSummaryTag tag) {
+        return Double.longBitsToDouble(m_values.get(row * TAGS.length + tag.ordinal()));
+    }
+
+    /**
+     * Copy all of an account's values as of a single moment, retrying while the EReader thread is writing the row.
+     * @return false if the row doesn't exist yet, in which case out is left unchanged
+     */
+    public boolean snapshot(int row, Snapshot out) {
+        if (row < 0 || row >= m_size) {
+            return false;
+        }
+        int base = row * TAGS.length;
+        long version;
+        do {
+            while (((version = m_versions.get(row)) & 1) != 0) {
+                Thread.yield();
+            }
+            for (int i = 0; i < TAGS.length; i++) {
+                out.m_values[i] = Double.longBitsToDouble(m_values.get(base + i));
+            }
+        } while (m_versions.get(row) != version);
+        out.m_row = row;
+        out.m_version = version;
+        return true;
+    }
+
+    /** Sum of a tag over the accounts that have reported it. */
+    public double total(AccountSummaryTag tag) {
+        double total = 0;
+        int size = m_size;
+        for (int row = 0; row < size; row++) {
+            double v = value(row, tag);
+            if (!Double.isNaN(v)) {
+                total += v;
+            }
+        }
+        return total;
+    }
+
+    /** Visit and clear every account whose values changed. */
+    public void drainDirty(DirtyRows.IRowVisitor visitor) {
+        m_dirty.drain(m_size, visitor);
+    }
+
+    @Override public void accountSummary(String account, final AccountSummaryTag tag, String value, String currency) {
+        double v = Double.NaN;
+        if (tag != AccountSummaryTag.AccountType) {
+            try {
+                v = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                // leave it unknown
+            }
+        }
+        final int row = store(account, tag, value, v);
+        if (row != NONE) {
+            final double changed = v;
+            m_controller.dispatch(row, m_controller.receivedNanos(), new StripedDispatcher.Task() {
+                @Override public void run() {
+                    for (IAccountListener listener : m_listeners) {
+                        listener.changed(row, tag, changed);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override public void accountSummaryEnd() {
+        m_stale = false;
+        m_controller.supervisor().accountsWarm();
+    }
+
+    /** Returns the row if the value changed, otherwise {@link #NONE}. */
+    private synchronized int store(String account, AccountSummaryTag tag, String text, double value) {
+        m_updates++;
+        Integer row = m_rows.get(account);
+        if (row == null) {
+            if (m_size == m_capacity) {
+                m_dropped++;
+                return NONE;
+            }
+            row = m_size;
+            for (int i = row * TAGS.length; i < (row + 1) * TAGS.length; i++) {
+                m_values.set(i, Double.doubleToRawLongBits(Double.NaN));
+            }
+            m_accounts.set(row, account);
+            m_rows.put(account, row);
+            m_size = row + 1;
+            m_dirty.mark(row);
+        }
+        if (tag == AccountSummaryTag.AccountType) {
+            if (text.equals(m_accountTypes.get(row))) {
+                return NONE;
+            }
+            m_accountTypes.set(row, text);
+        } else {
+            int i = row * TAGS.length + tag.ordinal();
+            long bits = Double.doubleToLongBits(value);
+            if (m_values.get(i) == bits) {
+                return NONE;
+            }
+            long version = m_versions.get(row);
+            m_versions.set(row, version + 1);
+            m_values.set(i, bits);
+            m_versions.set(row, version + 2);
+        }
+        m_changes++;
+        m_dirty.mark(row);
+        return row;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Accounts size=" + m_size + " updates=" + m_updates + " changes=" + m_changes + " dropped=" + m_dropped;
+    }
+}
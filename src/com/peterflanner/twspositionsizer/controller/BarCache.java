@@ -0,0 +1,258 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.ib.controller.ApiController.IHistoricalDataHandler;
+import com.ib.controller.ApiController.IRealTimeBarHandler;
+import com.ib.controller.Bar;
+import com.ib.controller.NewContract;
+import com.ib.controller.Types;
+import com.peterflanner.twspositionsizer.engine.BarSeries;
+import com.peterflanner.twspositionsizer.engine.BarStore;
+
+/**
+ * Daily and intraday bars per conid, with their ATRs. History is fetched the first time a contract is viewed and kept,
+ * so coming back to a symbol costs nothing; the contract being viewed also streams 5 second real time bars that are
+ * merged into the forming daily and intraday bars, keeping both ATRs current without asking for history again.
+ * <p>
+ * With a {@link BarStore} the history outlives the session: a contract's bars are read from disk when it's first
+ * viewed, only the days since its last stored bar are requested, and what arrives is appended to the store.
+ * <p>
+ * Written on the EReader thread and read from the EDT, guarded by the cache's lock.
+ */
+public class BarCache {
+    public static final int DAILY_SECONDS = 86400;
+    public static final int INTRADAY_SECONDS = 300;
+
+    public interface IBarListener {
+        /** Called on the EReader thread after the bars of a contract changed. */
+        void changed(int conid);
+    }
+
+    private final MyApiController m_controller;
+    // guarded by this
+    private final HashMap<Integer, Bars> m_bars = new HashMap<>();
+    private RealTimeBars m_live;
+    private BarStore m_store;
+    private IOException m_storeError;
+    private long m_historyRequests;
+    private long m_realTimeBars;
+
+    private final CopyOnWriteArrayList<IBarListener> m_listeners = new CopyOnWriteArrayList<>();
+
+    BarCache(MyApiController controller) {
+        m_controller = controller;
+    }
+
+    /**
+     * The contract is being viewed: fetch its history unless it's already cached, and stream its real time bars in
+     * place of the previously viewed contract's.
+     */
+    public synchronized void view(NewContract contract) {
+        int conid = contract.conid();
+        Bars bars = m_bars.get(conid);
+        if (bars == null) {
+            bars = new Bars(conid);
+            m_bars.put(conid, bars);
+            bars.m_daily.load();
+            bars.m_intraday.load();
+        }
+        bars.m_daily.request(contract);
+        bars.m_intraday.request(contract);
+
+        if (m_live != null && m_live.m_bars == bars) {
+            return;
+        }
+        if (m_live != null) {
+            m_controller.cancelRealtimeBars(m_live);
+        }
+        m_live = new RealTimeBars(bars);
+        m_controller.reqRealTimeBars(contract, Types.WhatToShow.TRADES, true, m_live);
+    }
+
+    /** Keep history on disk, and read it back before asking TWS. Set before the first contract is viewed. */
+    public synchronized void store(BarStore store) {
+        m_store = store;
+    }
+
+    /** Stop storing bars and close the store's files. */
+    public synchronized void closeStore() throws IOException {
+        BarStore store = m_store;
+        m_store = null;
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /** The error that stopped bars being stored, or null. */
+    public synchronized IOException storeError() {
+        return m_storeError;
+    }
+
+    /** Daily ATR including today, NaN if not known yet. */
+    public synchronized double atr(int conid) {
+        Bars bars = m_bars.get(conid);
+        return bars == null ? Double.NaN : bars.m_daily.m_series.atr();
+    }
+
+    /** ATR of the intraday bars including the one forming, NaN if not known yet. */
+    public synchronized double intradayAtr(int conid) {
+        Bars bars = m_bars.get(conid);
+        return bars == null ? Double.NaN : bars.m_intraday.m_series.atr();
+    }
+
+    public void addListener(IBarListener listener) {
+        m_listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(IBarListener listener) {
+        m_listeners.remove(listener);
+    }
+
+    synchronized void disconnected() {
+        // requests in flight are lost with the connection, cached history stays
+        for (Bars bars : m_bars.values()) {
+            bars.m_daily.disconnected();
+            bars.m_intraday.disconnected();
+        }
+        m_live = null;
+    }
+
+    private void fire(int conid) {
+        for (IBarListener listener : m_listeners) {
+            listener.changed(conid);
+        }
+    }
+
+    private void storeFailed(IOException e) {
+        // keep going from TWS alone
+        m_storeError = e;
+        m_store = null;
+    }
+
+    private class Bars {
+        private final int m_conid;
+        // a year of daily bars the first time, for backtests as much as for the ATR; gaps up to a year after that
+        private final History m_daily = new History(this, DAILY_SECONDS, 512, Types.BarSize._1_day, 1, Types.DurationUnit.YEAR, 365);
+        // TWS serves about a week of 5 minute bars per request
+        private final History m_intraday = new History(this, INTRADAY_SECONDS, 1024, Types.BarSize._5_mins, 2, Types.DurationUnit.DAY, 7);
+
+        Bars(int conid) {
+            m_conid = conid;
+        }
+    }
+
+    /** One bar size of one contract, and the historical data request that fills it. */
+    private class History implements IHistoricalDataHandler {
+        private final Bars m_bars;
+        private final BarSeries m_series;
+        private final int m_capacity;
+        private final Types.BarSize m_barSize;
+        private final int m_duration;
+        private final Types.DurationUnit m_unit;
+        private final int m_maxGapDays;
+        private boolean m_requested;
+        private boolean m_done;
+
+        History(Bars bars, int barSeconds, int capacity, Types.BarSize barSize, int duration, Types.DurationUnit unit, int maxGapDays) {
+            m_bars = bars;
+            m_series = new BarSeries(barSeconds, BarSeries.DEFAULT_ATR_PERIOD, capacity);
+            m_capacity = capacity;
+            m_barSize = barSize;
+            m_duration = duration;
+            m_unit = unit;
+            m_maxGapDays = maxGapDays;
+        }
+
+        // called with the cache locked
+        void load() {
+            if (m_store == null) {
+                return;
+            }
+            try {
+                BarStore.Series stored = m_store.series(m_bars.m_conid, m_series.barSeconds());
+                stored.load(m_series, stored.size() - m_capacity);
+            } catch (IOException e) {
+                storeFailed(e);
+            }
+        }
+
+        // called with the cache locked
+        void request(NewContract contract) {
+            if (m_requested) {
+                return;
+            }
+            m_requested = true;
+            m_historyRequests++;
+            long last = m_series.lastTime();
+            if (last == 0) {
+                m_controller.reqHistoricalData(contract, "", m_duration, m_unit, m_barSize, Types.WhatToShow.TRADES, true, this);
+            } else {
+                // only the days since the last bar we have, which is requested again as it may have been forming
+                long days = (System.currentTimeMillis() / 1000 - last) / DAILY_SECONDS + 1;
+                int gap = (int) Math.max(1, Math.min(days, m_maxGapDays));
+                m_controller.reqHistoricalData(contract, "", gap, Types.DurationUnit.DAY, m_barSize, Types.WhatToShow.TRADES, true, this);
+            }
+        }
+
+        // called with the cache locked
+        void disconnected() {
+            if (!m_done) {
+                m_requested = false;
+            }
+        }
+
+        @Override public void historicalData(Bar bar, boolean hasGaps) {
+            synchronized (BarCache.this) {
+                m_series.bar(bar.time(), bar.open(), bar.high(), bar.low(), bar.close(), bar.volume());
+            }
+        }
+
+        @Override public void historicalDataEnd() {
+            synchronized (BarCache.this) {
+                m_done = true;
+                if (m_store != null) {
+                    try {
+                        m_store.series(m_bars.m_conid, m_series.barSeconds()).append(m_series);
+                    } catch (IOException e) {
+                        storeFailed(e);
+                    }
+                }
+            }
+            fire(m_bars.m_conid);
+        }
+    }
+
+    private class RealTimeBars implements IRealTimeBarHandler {
+        private final Bars m_bars;
+
+        RealTimeBars(Bars bars) {
+            m_bars = bars;
+        }
+
+        @Override public void realtimeBar(Bar bar) {
+            synchronized (BarCache.this) {
+                if (m_live != this) {
+                    return;
+                }
+                m_realTimeBars++;
+                // until its history is in, a series would take the bar as its first and ignore the history after it
+                if (m_bars.m_daily.m_done) {
+                    m_bars.m_daily.m_series.merge(bar.time(), bar.open(), bar.high(), bar.low(), bar.close(), bar.volume());
+                }
+                if (m_bars.m_intraday.m_done) {
+                    m_bars.m_intraday.m_series.merge(bar.time(), bar.open(), bar.high(), bar.low(), bar.close(), bar.volume());
+                }
+            }
+            fire(m_bars.m_conid);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Bars contracts=" + m_bars.size() + " history requests=" + m_historyRequests + " real time bars=" + m_realTimeBars
+                + (m_storeError != null ? " store error=" + m_storeError : m_store != null ? " store=" + m_store.dir() : "");
+    }
+}
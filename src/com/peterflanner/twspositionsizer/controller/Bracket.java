@@ -0,0 +1,74 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import com.ib.controller.ApiController.IOrderHandler;
+import com.ib.controller.NewContract;
+import com.ib.controller.Types;
+
+/**
+ * An entry order with a protective stop and an optional profit target, placed together by {@link OrderSubmitter}.
+ * The entry is a limit order, the stop and target are its children, so TWS cancels the other when one fills.
+ */
+public class Bracket {
+    private final NewContract m_contract;
+    private String m_account;
+    private Types.Action m_action = Types.Action.BUY;
+    private int m_quantity;
+    private double m_limitPrice;
+    private double m_stopPrice;
+    private double m_targetPrice = Double.NaN;
+    private boolean m_outsideRth;
+    private IOrderHandler m_handler;
+    private int m_parentId;
+
+    public Bracket(NewContract contract) {
+        m_contract = contract;
+    }
+
+    public NewContract contract() { return m_contract; }
+    /** The account to place the legs in, null for TWS's default. */
+    public String account() { return m_account; }
+    public Types.Action action() { return m_action; }
+    public int quantity() { return m_quantity; }
+    public double limitPrice() { return m_limitPrice; }
+    public double stopPrice() { return m_stopPrice; }
+    public double targetPrice() { return m_targetPrice; }
+    public boolean outsideRth() { return m_outsideRth; }
+    public IOrderHandler handler() { return m_handler; }
+
+    /** Shares to buy, or to sell short if negative. */
+    public void shares(int shares) {
+        m_action = shares >= 0 ? Types.Action.BUY : Types.Action.SELL;
+        m_quantity = Math.abs(shares);
+    }
+
+    public void account(String v) { m_account = v; }
+    public void limitPrice(double v) { m_limitPrice = v; }
+    public void stopPrice(double v) { m_stopPrice = v; }
+    /** Limit price of the profit target, NaN for none. */
+    public void targetPrice(double v) { m_targetPrice = v; }
+    public void outsideRth(boolean v) { m_outsideRth = v; }
+    /** Receives the status of every leg. */
+    public void handler(IOrderHandler v) { m_handler = v; }
+
+    public boolean hasTarget() {
+        return !Double.isNaN(m_targetPrice) && m_targetPrice > 0;
+    }
+
+    /** Number of orders in the bracket. */
+    public int legs() {
+        return hasTarget() ? 3 : 2;
+    }
+
+    /** Order id of the entry once submitted, 0 before. The stop is the next id and the target, if any, the one after. */
+    public int parentId() {
+        return m_parentId;
+    }
+
+    void parentId(int v) {
+        m_parentId = v;
+    }
+
+    public Types.Action closingAction() {
+        return m_action == Types.Action.BUY ? Types.Action.SELL : Types.Action.BUY;
+    }
+}
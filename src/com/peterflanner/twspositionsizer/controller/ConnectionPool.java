@@ -0,0 +1,211 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+
+import com.ib.controller.ApiConnection;
+import com.ib.controller.ApiController.IConnectionHandler;
+
+/**
+ * Several TWS or gateway sessions at once, e.g. a live and a paper login. Each connection is its own
+ * {@link MyApiController} with its own socket, EReader thread, reconnects and account, order, position and market
+ * data state, so a slow or dead gateway only holds up its own callbacks. Accounts are routed to the connection that
+ * listed them.
+ * <p>
+ * The first connection added is the primary one: the handler gets its connected and disconnected calls as usual.
+ * The others are reported through {@link IConnectionHandler#show}, and every message from them is prefixed with the
+ * connection's name. Every account list that arrives is merged with the others before it is passed on.
+ */
+public class ConnectionPool {
+    /** One named connection. */
+    public static class Connection {
+        private final String m_name;
+        private final String m_host;
+        private final int m_port;
+        private final int m_clientId;
+        private MyApiController m_controller;
+        private volatile List<String> m_accounts = Collections.emptyList();
+
+        Connection(String name, String host, int port, int clientId) {
+            m_name = name;
+            m_host = host;
+            m_port = port;
+            m_clientId = clientId;
+        }
+
+        public String name() { return m_name; }
+        public String host() { return m_host; }
+        public int port() { return m_port; }
+        public int clientId() { return m_clientId; }
+        public MyApiController controller() { return m_controller; }
+        /** The accounts TWS listed on this connection, empty until it has connected. */
+        public List<String> accounts() { return m_accounts; }
+
+        public void connect() {
+            m_controller.connect(m_host, m_port, m_clientId);
+        }
+
+        @Override public String toString() {
+            return m_name + " " + m_host + ":" + m_port + " client " + m_clientId + " " + m_controller.supervisor();
+        }
+    }
+
+    private final IConnectionHandler m_handler;
+    private final CopyOnWriteArrayList<Connection> m_connections = new CopyOnWriteArrayList<>();
+
+    public ConnectionPool(IConnectionHandler handler) {
+        m_handler = handler;
+    }
+
+    /**
+     * Add a connection, not yet connected.
+     * @throws IllegalArgumentException if the name or the host, port and client id are already taken
+     */
+    public synchronized MyApiController add(String name, String host, int port, int clientId,
+                                            ApiConnection.ILogger inLogger, ApiConnection.ILogger outLogger) {
+        for (Connection connection : m_connections) {
+            if (connection.m_name.equals(name)) {
+                throw new IllegalArgumentException("Connection " + name + " already exists");
+            }
+            // TWS refuses a second session with the same client id
+            if (connection.m_host.equals(host) && connection.m_port == port && connection.m_clientId == clientId) {
+                throw new IllegalArgumentException("Connection " + name + " uses the same client id as " + connection.m_name);
+            }
+        }
+        Connection connection = new Connection(name, host, port, clientId);
+        connection.m_controller = new MyApiController(new Member(connection, m_connections.isEmpty()), inLogger, outLogger);
+        m_connections.add(connection);
+        return connection.m_controller;
+    }
+
+    public List<Connection> connections() {
+        return Collections.unmodifiableList(m_connections);
+    }
+
+    /** The first connection added, null if there is none. */
+    public MyApiController primary() {
+        return m_connections.isEmpty() ? null : m_connections.get(0).m_controller;
+    }
+
+    public Connection connection(String name) {
+        for (Connection connection : m_connections) {
+            if (connection.m_name.equals(name)) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /** The connection that listed the account, null if none has. */
+    public MyApiController controller(String account) {
+        for (Connection connection : m_connections) {
+            if (connection.m_accounts.contains(account)) {
+                return connection.m_controller;
+            }
+        }
+        return null;
+    }
+
+    /** Every connection's accounts, in the order the connections were added. */
+    public ArrayList<String> accounts() {
+        ArrayList<String> accounts = new ArrayList<>();
+        for (Connection connection : m_connections) {
+            for (String account : connection.m_accounts) {
+                if (!accounts.contains(account)) {
+                    accounts.add(account);
+                }
+            }
+        }
+        return accounts;
+    }
+
+    /** Connect every connection at once, each on its own thread so a gateway that is slow to accept delays no other. */
+    public void connectAll() {
+        for (final Connection connection : m_connections) {
+            Thread thread = new Thread(new Runnable() {
+                @Override public void run() {
+                    connection.connect();
+                }
+            }, "Connect-" + connection.m_name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void disconnectAll() {
+        for (Connection connection : m_connections) {
+            connection.m_controller.disconnect();
+        }
+    }
+
+    /** Publish each connection's latency over JMX, the primary one under the usual names. */
+    public void registerMBeans() throws JMException {
+        for (int i = 0; i < m_connections.size(); i++) {
+            Connection connection = m_connections.get(i);
+            if (i == 0) {
+                connection.m_controller.latency().registerMBeans();
+            } else {
+                connection.m_controller.latency().registerMBeans(connection.m_name);
+            }
+        }
+    }
+
+    /** Passes one connection's events on to the pool's handler. */
+    private class Member implements IConnectionHandler {
+        private final Connection m_connection;
+        private final boolean m_primary;
+        private final String m_prefix;
+
+        Member(Connection connection, boolean primary) {
+            m_connection = connection;
+            m_primary = primary;
+            m_prefix = primary ? "" : "[" + connection.m_name + "] ";
+        }
+
+        @Override public void connected() {
+            if (m_primary) {
+                m_handler.connected();
+            } else {
+                m_handler.show(m_prefix + "connected");
+            }
+        }
+
+        @Override public void disconnected() {
+            if (m_primary) {
+                m_handler.disconnected();
+            } else {
+                m_handler.show(m_prefix + "disconnected");
+            }
+        }
+
+        @Override public void accountList(ArrayList<String> list) {
+            m_connection.m_accounts = Collections.unmodifiableList(new ArrayList<>(list));
+            m_handler.accountList(accounts());
+        }
+
+        @Override public void error(Exception e) {
+            if (m_primary) {
+                m_handler.error(e);
+            } else {
+                m_handler.show(m_prefix + "ERROR " + e);
+            }
+        }
+
+        @Override public void message(int id, int errorCode, String errorMsg) {
+            m_handler.message(id, errorCode, m_prefix + errorMsg);
+        }
+
+        @Override public void show(String string) {
+            m_handler.show(m_prefix + string);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Connections " + m_connections;
+    }
+}
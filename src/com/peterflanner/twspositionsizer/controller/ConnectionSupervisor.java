@@ -0,0 +1,304 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.ib.controller.ApiController.IConnectionHandler;
+import com.peterflanner.twspositionsizer.diagnostics.PipelineLatency;
+
+/**
+ * Keeps the controller connected. Sits between {@link MyApiController} and the application's connection handler:
+ * when the socket drops without {@link MyApiController#disconnect} being called it reconnects with exponential
+ * backoff, and on every connection it replays the account summary, positions, open orders, every market data line,
+ * the contract details requests left unanswered and the display group subscriptions in one burst. Cached values are kept through the outage, marked stale, so the
+ * sizer shows the last known numbers rather than blanks.
+ * <p>
+ * A connection counts as usable once the account summary has ended and every replayed line has ticked again, or
+ * after {@link #DEFAULT_RESYNC_TIMEOUT_MILLIS}. The time from the connect attempt that succeeded to usable is
+ * recorded as {@link PipelineLatency.Stage#RESYNC} and reported to the handler.
+ */
+public class ConnectionSupervisor implements IConnectionHandler {
+    public enum State { DISCONNECTED, RECONNECTING, RESYNCING, USABLE }
+
+    public static final long DEFAULT_MIN_BACKOFF_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 60000;
+    public static final long DEFAULT_RESYNC_TIMEOUT_MILLIS = 10000;
+
+    // TWS lost and regained its connection to IB, market data has to be requested again
+    private static final int DATA_LOST = 1101;
+    private static final int CONNECT_FAIL = 502;
+
+    private final IConnectionHandler m_handler;
+    private final long m_minBackoffMillis = Long.getLong("twspositionsizer.reconnectMinMillis", DEFAULT_MIN_BACKOFF_MILLIS);
+    private final long m_maxBackoffMillis = Long.getLong("twspositionsizer.reconnectMaxMillis", DEFAULT_MAX_BACKOFF_MILLIS);
+    private final long m_resyncTimeoutMillis = Long.getLong("twspositionsizer.resyncTimeoutMillis", DEFAULT_RESYNC_TIMEOUT_MILLIS);
+    private final ScheduledExecutorService m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ConnectionSupervisor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private MyApiController m_controller;
+
+    // guarded by this
+    private volatile State m_state = State.DISCONNECTED;
+    private String m_host;
+    private int m_port;
+    private int m_clientId;
+    // whether the application wants to be connected, false after disconnect()
+    private boolean m_wanted;
+    private int m_attempts;
+    private ScheduledFuture<?> m_retry;
+    private ScheduledFuture<?> m_resyncTimeout;
+    private long m_attemptNanos;
+    // when the last usable connection dropped, 0 if it hasn't
+    private long m_droppedNanos;
+    private int m_pendingLines;
+    private boolean m_accountsWarm;
+    private long m_reconnects;
+    private long m_lastTimeToUsableNanos;
+
+    ConnectionSupervisor(IConnectionHandler handler) {
+        m_handler = handler;
+    }
+
+    void attach(MyApiController controller) {
+        m_controller = controller;
+    }
+
+    public State state() {
+        return m_state;
+    }
+
+    /** True while cached values may be out of date: not connected, or connected but not yet resynced. */
+    public boolean isStale() {
+        return m_state != State.USABLE;
+    }
+
+    /** True while waiting to reconnect after the connection dropped. */
+    public boolean isReconnecting() {
+        return m_state == State.RECONNECTING;
+    }
+
+    public synchronized long reconnects() {
+        return m_reconnects;
+    }
+
+    /** Nanoseconds from the last successful connect attempt to usable, 0 before the first. */
+    public synchronized long lastTimeToUsableNanos() {
+        return m_lastTimeToUsableNanos;
+    }
+
+    /** A connect attempt is about to start. */
+    synchronized void connecting(String host, int port, int clientId) {
+        m_host = host;
+        m_port = port;
+        m_clientId = clientId;
+        m_wanted = true;
+        m_attemptNanos = System.nanoTime();
+        m_attempts++;
+        cancelRetry();
+        if (m_state == State.DISCONNECTED) {
+            m_state = State.RECONNECTING;
+        }
+    }
+
+    /** The connect attempt didn't get a socket, TWS has already reported why. */
+    synchronized void connectFailed() {
+        scheduleRetry();
+    }
+
+    /** The application asked to disconnect, don't come back. */
+    synchronized void stopping() {
+        m_wanted = false;
+        cancelRetry();
+    }
+
+    /** A line replayed by the resync ticked for the first time. */
+    synchronized void lineWarm() {
+        if (m_state == State.RESYNCING) {
+            m_pendingLines--;
+            checkUsable();
+        }
+    }
+
+    /** The account summary finished sending its values. */
+    synchronized void accountsWarm() {
+        if (m_state == State.RESYNCING) {
+            m_accountsWarm = true;
+            checkUsable();
+        }
+    }
+
+    @Override public void connected() {
+        synchronized (this) {
+            // nextValidId comes again whenever ids are requested, only the first one is a new connection
+            if (m_state != State.RESYNCING && m_state != State.USABLE) {
+                m_state = State.RESYNCING;
+                m_attempts = 0;
+                m_accountsWarm = false;
+                if (m_droppedNanos != 0) {
+                    m_reconnects++;
+                }
+                resync();
+            }
+        }
+        m_handler.connected();
+    }
+
+    @Override public void disconnected() {
+        String message = null;
+        synchronized (this) {
+            if (m_state == State.RESYNCING || m_state == State.USABLE) {
+                m_droppedNanos = System.nanoTime();
+            }
+            cancelResyncTimeout();
+            if (m_wanted) {
+                m_state = State.RECONNECTING;
+                message = "Connection lost, reconnecting in " + scheduleRetry() / 1000.0 + " s";
+            } else {
+                m_state = State.DISCONNECTED;
+                m_droppedNanos = 0;
+            }
+        }
+        m_handler.disconnected();
+        if (message != null) {
+            m_handler.show(message);
+        }
+    }
+
+    @Override public void accountList(ArrayList<String> list) {
+        m_handler.accountList(list);
+    }
+
+    @Override public void error(Exception e) {
+        m_handler.error(e);
+    }
+
+    @Override public void message(int id, int errorCode, String errorMsg) {
+        if (errorCode == DATA_LOST) {
+            restream();
+        }
+        synchronized (this) {
+            // one failed connect is news, the same failure every retry isn't
+            if (errorCode == CONNECT_FAIL && m_attempts > 1) {
+                return;
+            }
+        }
+        m_handler.message(id, errorCode, errorMsg);
+    }
+
+    @Override public void show(String string) {
+        m_handler.show(string);
+    }
+
+    /** Replay every subscription in one burst, on the EReader thread before any callback of the new connection. */
+    private void resync() {
+        m_pendingLines = m_controller.mktData().resync();
+        m_controller.contractDetails().resync();
+        m_controller.accounts().subscribe();
+        m_controller.orderTracker().subscribe();
+        m_controller.positions().subscribe();
+        m_controller.resubscribeDisplayGroups();
+        startResyncTimeout();
+    }
+
+    /** TWS kept the socket but lost the market data behind it. */
+    private synchronized void restream() {
+        if (m_state != State.RESYNCING && m_state != State.USABLE) {
+            return;
+        }
+        m_state = State.RESYNCING;
+        m_attemptNanos = System.nanoTime();
+        m_accountsWarm = true;
+        m_pendingLines = m_controller.mktData().restream();
+        startResyncTimeout();
+        checkUsable();
+    }
+
+    private void checkUsable() {
+        if (m_accountsWarm && m_pendingLines <= 0) {
+            usable(false);
+        }
+    }
+
+    private void usable(boolean timedOut) {
+        m_state = State.USABLE;
+        cancelResyncTimeout();
+        long nanos = System.nanoTime() - m_attemptNanos;
+        m_lastTimeToUsableNanos = nanos;
+        m_controller.latency().record(PipelineLatency.Stage.RESYNC, nanos);
+        StringBuilder message = new StringBuilder("Usable ").append(nanos / 1000000).append(" ms after connecting");
+        if (m_droppedNanos != 0) {
+            message.append(", down ").append((System.nanoTime() - m_droppedNanos) / 1000000 / 1000.0).append(" s");
+            m_droppedNanos = 0;
+        }
+        if (timedOut) {
+            message.append(", gave up waiting for ").append(m_accountsWarm ? "" : "the account summary and ")
+                    .append(Math.max(m_pendingLines, 0)).append(" market data lines");
+        }
+        m_handler.show(message.toString());
+    }
+
+    private void startResyncTimeout() {
+        cancelResyncTimeout();
+        m_resyncTimeout = m_scheduler.schedule(new Runnable() {
+            @Override public void run() {
+                synchronized (ConnectionSupervisor.this) {
+                    if (m_state == State.RESYNCING) {
+                        usable(true);
+                    }
+                }
+            }
+        }, m_resyncTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelResyncTimeout() {
+        if (m_resyncTimeout != null) {
+            m_resyncTimeout.cancel(false);
+            m_resyncTimeout = null;
+        }
+    }
+
+    /** @return the delay in milliseconds */
+    private long scheduleRetry() {
+        cancelRetry();
+        // doubles per failed attempt, with jitter so several clients of one TWS don't come back in step
+        int doublings = Math.min(Math.max(m_attempts - 1, 0), 30);
+        long backoff = Math.min(m_maxBackoffMillis, m_minBackoffMillis << doublings);
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        final String host = m_host;
+        final int port = m_port;
+        final int clientId = m_clientId;
+        m_retry = m_scheduler.schedule(new Runnable() {
+            @Override public void run() {
+                synchronized (ConnectionSupervisor.this) {
+                    if (!m_wanted) {
+                        return;
+                    }
+                }
+                m_controller.connect(host, port, clientId);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return delay;
+    }
+
+    private void cancelRetry() {
+        if (m_retry != null) {
+            m_retry.cancel(false);
+            m_retry = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Connection " + m_state + " reconnects=" + m_reconnects + " lastTimeToUsable="
+                + m_lastTimeToUsableNanos / 1000000 + "ms";
+    }
+}
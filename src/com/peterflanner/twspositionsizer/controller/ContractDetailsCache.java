@@ -0,0 +1,349 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.ib.client.Contract;
+import com.ib.client.ContractDetails;
+import com.ib.controller.ApiController.IContractDetailsHandler;
+import com.ib.controller.NewContract;
+import com.ib.controller.NewContractDetails;
+
+/**
+ * Contract details keyed by conid, so looking at a symbol again doesn't wait on a reqContractDetails round trip.
+ * Entries expire after a time to live and the least recently used entry is dropped past the size limit. Details
+ * from TWS reach the handlers on the conid's dispatcher stripe, a cached entry is passed on the calling thread.
+ * <p>
+ * Requests for the same conid share one request to TWS. One still waiting when the connection drops is sent again on
+ * the next connection, see {@link #resync}.
+ * <p>
+ * The cache can be saved to and loaded from a compact binary snapshot holding the fields the sizer and order
+ * entry use, so the contracts traded every day are available before the first request of the session.
+ */
+public class ContractDetailsCache {
+    public static final int DEFAULT_MAX_SIZE = 5000;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private static final int MAGIC = 0x54505343; // "TPSC"
+    private static final int VERSION = 1;
+
+    private final MyApiController m_controller;
+    private final int m_maxSize;
+    private final long m_ttlMillis;
+    // access ordered for LRU eviction
+    private final LinkedHashMap<Integer, Entry> m_entries = new LinkedHashMap<>(64, 0.75f, true);
+    // conid -> the request in flight for it and the handlers waiting on it
+    private final LinkedHashMap<Integer, Pending> m_pending = new LinkedHashMap<>();
+    // false between a disconnect and the next resync, requests aren't shared meanwhile
+    private boolean m_connected;
+    private long m_hits;
+    private long m_misses;
+
+    private static class Entry {
+        final NewContractDetails m_details;
+        final long m_fetched;
+
+        Entry(NewContractDetails details, long fetched) {
+            m_details = details;
+            m_fetched = fetched;
+        }
+    }
+
+    private static class Pending {
+        final NewContract m_contract;
+        final ArrayList<IContractDetailsHandler> m_handlers = new ArrayList<>();
+
+        Pending(NewContract contract) {
+            m_contract = contract;
+        }
+    }
+
+    ContractDetailsCache(MyApiController controller) {
+        this(controller, DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+    }
+
+    ContractDetailsCache(MyApiController controller, int maxSize, long ttlMillis) {
+        m_controller = controller;
+        m_maxSize = maxSize;
+        m_ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Details for a contract. A cached, unexpired entry is passed to the handler before this returns; otherwise the
+     * details are requested from TWS and cached when they arrive. Contracts without a conid are always requested.
+     */
+    public void reqContractDetails(NewContract contract, IContractDetailsHandler handler) {
+        int conid = contract.conid();
+        NewContractDetails cached = null;
+        synchronized (this) {
+            if (conid != 0) {
+                cached = getFresh(conid);
+                if (cached == null) {
+                    m_misses++;
+                    Pending pending = m_pending.get(conid);
+                    if (pending != null) {
+                        pending.m_handlers.add(handler);
+                        return;
+                    }
+                    if (m_connected) {
+                        pending = new Pending(contract);
+                        pending.m_handlers.add(handler);
+                        m_pending.put(conid, pending);
+                        request(pending);
+                        return;
+                    }
+                } else {
+                    m_hits++;
+                }
+            } else if (m_connected) {
+                // nothing to share the request by, the details are still cached when they arrive
+                Pending pending = new Pending(contract);
+                pending.m_handlers.add(handler);
+                request(pending);
+                return;
+            }
+        }
+
+        if (cached != null) {
+            ArrayList<NewContractDetails> list = new ArrayList<>(1);
+            list.add(cached);
+            handler.contractDetails(list);
+            return;
+        }
+        // not connected, ApiController reports that to the handler
+        m_controller.reqContractDetails(contract, handler);
+    }
+
+    /** The connection is gone and the requests in flight with it. They are sent again by {@link #resync}. */
+    synchronized void disconnected() {
+        m_connected = false;
+    }
+
+    /** Send every request that was waiting when the connection dropped again, on the new connection. */
+    synchronized void resync() {
+        m_connected = true;
+        for (Pending pending : m_pending.values()) {
+            request(pending);
+        }
+    }
+
+    private void request(final Pending pending) {
+        final int conid = pending.m_contract.conid();
+        m_controller.reqContractDetails(pending.m_contract, new IContractDetailsHandler() {
+            @Override public void contractDetails(final ArrayList<NewContractDetails> list) {
+                final ArrayList<IContractDetailsHandler> waiting;
+                synchronized (ContractDetailsCache.this) {
+                    long now = System.currentTimeMillis();
+                    for (NewContractDetails details : list) {
+                        put(details, now);
+                    }
+                    if (conid != 0) {
+                        // a request sent again on a new connection may be answered twice, only the first counts
+                        if (m_pending.get(conid) != pending) {
+                            return;
+                        }
+                        m_pending.remove(conid);
+                    }
+                    waiting = pending.m_handlers;
+                }
+                m_controller.dispatch(conid, m_controller.receivedNanos(), new StripedDispatcher.Task() {
+                    @Override public void run() {
+                        for (IContractDetailsHandler handler : waiting) {
+                            handler.contractDetails(list);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /** Cached details for a conid if present and unexpired, without going to TWS. */
+    public synchronized NewContractDetails get(int conid) {
+        return getFresh(conid);
+    }
+
+    public synchronized int size() { return m_entries.size(); }
+    public synchronized long hits() { return m_hits; }
+    public synchronized long misses() { return m_misses; }
+
+    /** Write every unexpired entry to a binary snapshot, replacing the file atomically. */
+    public void save(File file) throws IOException {
+        ArrayList<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(m_entries.values());
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        long now = System.currentTimeMillis();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            int count = 0;
+            for (Entry entry : entries) {
+                if (now - entry.m_fetched < m_ttlMillis) {
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            for (Entry entry : entries) {
+                if (now - entry.m_fetched < m_ttlMillis) {
+                    write(out, entry);
+                }
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            // renameTo won't replace an existing file on every platform
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Load a snapshot written by {@link #save}. Expired entries are skipped and entries already in memory win.
+     * @return the number of entries loaded, 0 if the file doesn't exist
+     */
+    public int load(File file) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return 0; // written by something else, ignore it and overwrite on the next save
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long fetched = in.readLong();
+                NewContractDetails details = readDetails(in);
+                if (now - fetched < m_ttlMillis) {
+                    synchronized (this) {
+                        if (!m_entries.containsKey(details.conid())) {
+                            put(details, fetched);
+                            loaded++;
+                        }
+                    }
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private NewContractDetails getFresh(int conid) {
+        Entry entry = m_entries.get(conid);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.m_fetched >= m_ttlMillis) {
+            m_entries.remove(conid);
+            return null;
+        }
+        return entry.m_details;
+    }
+
+    private void put(NewContractDetails details, long fetched) {
+        m_entries.put(details.conid(), new Entry(details, fetched));
+        Iterator<Map.Entry<Integer, Entry>> it = m_entries.entrySet().iterator();
+        while (m_entries.size() > m_maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        out.writeLong(entry.m_fetched);
+        writeDetails(out, entry.m_details);
+    }
+
+    /** Write the fields of the snapshot format for one contract, also used by the recorded feed. */
+    public static void writeDetails(DataOutput out, NewContractDetails details) throws IOException {
+        NewContract contract = details.contract();
+        out.writeInt(contract.conid());
+        writeStr(out, contract.symbol());
+        writeStr(out, contract.secType() == null ? null : contract.secType().getApiString());
+        writeStr(out, contract.expiry());
+        out.writeDouble(contract.strike());
+        writeStr(out, contract.right() == null ? null : contract.right().getApiString());
+        writeStr(out, contract.multiplier());
+        writeStr(out, contract.exchange());
+        writeStr(out, contract.primaryExch());
+        writeStr(out, contract.currency());
+        writeStr(out, contract.localSymbol());
+        writeStr(out, contract.tradingClass());
+        writeStr(out, details.marketName());
+        out.writeDouble(details.minTick());
+        out.writeInt(details.PripeMagnifier());
+        writeStr(out, details.orderTypes());
+        writeStr(out, details.validExchanges());
+        out.writeInt(details.underConid());
+        writeStr(out, details.longName());
+        writeStr(out, details.industry());
+        writeStr(out, details.category());
+        writeStr(out, details.subcategory());
+        writeStr(out, details.timeZoneId());
+        writeStr(out, details.tradingHours());
+        writeStr(out, details.liquidHours());
+    }
+
+    /** Read one contract written by {@link #writeDetails}. */
+    public static NewContractDetails readDetails(DataInput in) throws IOException {
+        Contract contract = new Contract();
+        contract.m_conId = in.readInt();
+        contract.m_symbol = readStr(in);
+        contract.m_secType = readStr(in);
+        contract.m_expiry = readStr(in);
+        contract.m_strike = in.readDouble();
+        contract.m_right = readStr(in);
+        contract.m_multiplier = readStr(in);
+        contract.m_exchange = readStr(in);
+        contract.m_primaryExch = readStr(in);
+        contract.m_currency = readStr(in);
+        contract.m_localSymbol = readStr(in);
+        contract.m_tradingClass = readStr(in);
+
+        ContractDetails details = new ContractDetails();
+        details.m_summary = contract;
+        details.m_marketName = readStr(in);
+        details.m_minTick = in.readDouble();
+        details.m_priceMagnifier = in.readInt();
+        details.m_orderTypes = readStr(in);
+        details.m_validExchanges = readStr(in);
+        details.m_underConId = in.readInt();
+        details.m_longName = readStr(in);
+        details.m_industry = readStr(in);
+        details.m_category = readStr(in);
+        details.m_subcategory = readStr(in);
+        details.m_timeZoneId = readStr(in);
+        details.m_tradingHours = readStr(in);
+        details.m_liquidHours = readStr(in);
+        return new NewContractDetails(details);
+    }
+
+    private static void writeStr(DataOutput out, String str) throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    private static String readStr(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,521 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.ib.controller.ApiController.ITopMktDataHandler;
+import com.ib.controller.NewContract;
+import com.ib.controller.NewTickType;
+import com.ib.controller.Types;
+import com.peterflanner.twspositionsizer.engine.ConidIndex;
+import com.peterflanner.twspositionsizer.replay.FeedWriter;
+
+/**
+ * Streaming top of market subscriptions shared per conid. Handlers are reference counted onto a single
+ * reqTopMktData per contract. When the last handler leaves, the line stays open and warm so coming back to the
+ * symbol replays the last known prices instead of paying a cancel/re-request round trip. Lines are only given back
+ * once the account's market data line limit is exceeded, least recently viewed first.
+ * <p>
+ * Handlers of a watched line that is given back are told through {@link IEvictionHandler} if they implement it, so
+ * they stop trusting its last prices.
+ * <p>
+ * Lines outlive the connection. When it drops they are marked stale, keeping their handlers and last prices, and
+ * {@link #resync} requests every one of them again on the next connection.
+ * <p>
+ * Prices are stored on the EReader thread; handlers are called on the controller's {@link StripedDispatcher}, in
+ * order for each conid, so a slow handler doesn't hold up the reader.
+ * <p>
+ * Price and size ticks create no garbage and take no lock on the way: {@link TickReader} parses them into primitives,
+ * the line is found by request id in a primitive index rather than ApiController's boxed map, and the tasks that
+ * carry them to the stripes are pooled. The index is copied and republished whole whenever a line is requested or
+ * given back, so the EReader thread only reads a volatile.
+ */
+public class MarketDataSubscriptions {
+    public static final int DEFAULT_LINE_LIMIT = 100;
+
+    /** Implemented by handlers that need to know when the line limit took their line away. */
+    public interface IEvictionHandler {
+        /** Called on the conid's stripe after its last tick. The handler is detached and the line no longer streams. */
+        void evicted();
+    }
+
+    private static final NewTickType[] TICK_TYPES = NewTickType.values();
+    private static final ITopMktDataHandler[] NO_HANDLERS = new ITopMktDataHandler[0];
+    private static final long NAN_BITS = Double.doubleToRawLongBits(Double.NaN);
+
+    private final MyApiController m_controller;
+    // access ordered, so iteration starts at the least recently viewed contract
+    private final LinkedHashMap<Integer, Subscription> m_subscriptions = new LinkedHashMap<>(16, 0.75f, true);
+    // the lines streaming on this connection, replaced rather than changed once published
+    private volatile Lines m_lines = new Lines(new ConidIndex(DEFAULT_LINE_LIMIT), new Subscription[DEFAULT_LINE_LIMIT]);
+    // tick tasks the stripes are done with, taken only on the EReader thread
+    private final AtomicReference<TickTask> m_freeTasks = new AtomicReference<>();
+    private int m_lineLimit = Integer.getInteger("twspositionsizer.mktDataLines", DEFAULT_LINE_LIMIT);
+    // false between a disconnect and the next resync, lines subscribed meanwhile wait for it
+    private boolean m_connected;
+    private long m_requests;
+    private long m_reuses;
+    private long m_evictions;
+
+    MarketDataSubscriptions(MyApiController controller) {
+        m_controller = controller;
+    }
+
+    /**
+     * Attach a handler to the stream for a contract, requesting it only if no line is open for the conid. Any prices
+     * already received are replayed to the handler on the conid's stripe, after the ticks already queued there.
+     */
+    public void subscribe(NewContract contract, ITopMktDataHandler handler) {
+        Subscription sub;
+        synchronized (this) {
+            sub = m_subscriptions.get(contract.conid());
+            if (sub == null) {
+                sub = new Subscription(contract);
+                sub.attach(handler);
+                m_subscriptions.put(contract.conid(), sub);
+                if (m_connected) {
+                    m_requests++;
+                    request(sub);
+                } else {
+                    sub.m_stale = true;
+                }
+                evictOverLimit();
+            } else {
+                m_reuses++;
+                sub.attach(handler);
+            }
+        }
+        final Subscription replaying = sub;
+        final ITopMktDataHandler replayTo = handler;
+        m_controller.dispatch(contract.conid(), 0, new StripedDispatcher.Task() {
+            @Override public void run() {
+                replaying.replay(replayTo);
+            }
+        });
+    }
+
+    /** Detach a handler. The line stays open until the line limit needs it back. */
+    public synchronized void unsubscribe(int conid, ITopMktDataHandler handler) {
+        Subscription sub = m_subscriptions.get(conid);
+        if (sub != null) {
+            sub.detach(handler);
+        }
+    }
+
+    /**
+     * One-off prices for a contract. Served from an open line if there is one, replayed on the conid's stripe like its
+     * ticks, otherwise sent as a snapshot request that doesn't count against the line limit.
+     */
+    public void snapshot(NewContract contract, final ITopMktDataHandler handler) {
+        Subscription sub;
+        synchronized (this) {
+            sub = m_subscriptions.get(contract.conid());
+        }
+        if (sub != null && sub.hasPrices() && !sub.m_stale) {
+            final Subscription replaying = sub;
+            // not a message from the socket, so no receive time to measure latency from
+            m_controller.dispatch(contract.conid(), 0, new StripedDispatcher.Task() {
+                @Override public void run() {
+                    replaying.replay(handler);
+                    handler.tickSnapshotEnd();
+                }
+            });
+        } else {
+            m_controller.reqTopMktData(contract, "", true, handler);
+        }
+    }
+
+    /** Cancel every line, e.g. before disconnecting. */
+    public synchronized void cancelAll() {
+        if (m_connected) {
+            for (Subscription sub : m_subscriptions.values()) {
+                cancel(sub);
+            }
+        }
+        m_subscriptions.clear();
+    }
+
+    /** The connection the lines were on is gone. They are kept, stale, for {@link #resync} to request again. */
+    synchronized void disconnected() {
+        m_connected = false;
+        for (Subscription sub : m_subscriptions.values()) {
+            sub.m_stale = true;
+            sub.m_reqId = ConidIndex.NONE;
+        }
+        m_lines = new Lines(new ConidIndex(DEFAULT_LINE_LIMIT), new Subscription[m_lines.m_subs.length]);
+    }
+
+    /**
+     * Request every line again on a new connection. Handlers stay attached and keep the last prices until fresh ones
+     * arrive, each line reports its first tick to the connection supervisor.
+     * @return the number of lines requested
+     */
+    synchronized int resync() {
+        m_connected = true;
+        int lines = 0;
+        for (Subscription sub : m_subscriptions.values()) {
+            sub.m_stale = true;
+            m_requests++;
+            request(sub);
+            lines++;
+        }
+        return lines;
+    }
+
+    /**
+     * Cancel and request every line again on the same connection, for when TWS reports its market data was lost.
+     * @return the number of lines requested
+     */
+    synchronized int restream() {
+        int lines = 0;
+        if (m_connected) {
+            for (Subscription sub : m_subscriptions.values()) {
+                cancel(sub);
+                sub.m_stale = true;
+                m_requests++;
+                request(sub);
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * A price tick from the EReader thread, for the line streaming under the request id.
+     * @return false if the request isn't one of ours or the tick type is unknown, for ApiController to handle
+     */
+    boolean tickPrice(int reqId, int tickType, double price, int canAutoExecute) {
+        Subscription sub = line(reqId);
+        if (sub == null || tickType < 0 || tickType >= TICK_TYPES.length) {
+            return false;
+        }
+        sub.tickPrice(tickType, price, canAutoExecute);
+        return true;
+    }
+
+    /** @see #tickPrice(int, int, double, int) */
+    boolean tickSize(int reqId, int tickType, int size) {
+        Subscription sub = line(reqId);
+        if (sub == null || tickType < 0 || tickType >= TICK_TYPES.length) {
+            return false;
+        }
+        sub.tickSize(tickType, size);
+        return true;
+    }
+
+    private Subscription line(int reqId) {
+        Lines lines = m_lines;
+        int line = lines.m_reqIds.get(reqId);
+        return line == ConidIndex.NONE ? null : lines.m_subs[line];
+    }
+
+    /** Whether the conid's line is waiting for its first tick since the connection came back. */
+    public synchronized boolean isStale(int conid) {
+        Subscription sub = m_subscriptions.get(conid);
+        return sub != null && sub.m_stale;
+    }
+
+    public synchronized int staleLines() {
+        int stale = 0;
+        for (Subscription sub : m_subscriptions.values()) {
+            if (sub.m_stale) {
+                stale++;
+            }
+        }
+        return stale;
+    }
+
+    public synchronized void lineLimit(int lineLimit) {
+        m_lineLimit = lineLimit;
+        evictOverLimit();
+    }
+
+    public synchronized int lineLimit() { return m_lineLimit; }
+    public synchronized int lines() { return m_subscriptions.size(); }
+    public synchronized long requests() { return m_requests; }
+    public synchronized long reuses() { return m_reuses; }
+    public synchronized long evictions() { return m_evictions; }
+
+    @Override public synchronized String toString() {
+        return "Market data lines=" + lines() + "/" + m_lineLimit + " stale=" + staleLines() + " requests=" + m_requests + " reuses=" + m_reuses + " evictions=" + m_evictions;
+    }
+
+    private void request(Subscription sub) {
+        release(sub);
+        m_controller.reqTopMktData(sub.m_contract, "", false, sub);
+        int reqId = m_controller.topMktDataReqId(sub);
+        if (reqId == -1) {
+            return;
+        }
+        // ticks that arrive before the new index is published go through ApiController's map to the same line
+        Lines lines = m_lines;
+        int line = 0;
+        while (line < lines.m_subs.length && lines.m_subs[line] != null) {
+            line++;
+        }
+        Subscription[] subs = Arrays.copyOf(lines.m_subs, line == lines.m_subs.length ? line * 2 : lines.m_subs.length);
+        subs[line] = sub;
+        ConidIndex reqIds = new ConidIndex(lines.m_reqIds);
+        reqIds.put(reqId, line);
+        m_lines = new Lines(reqIds, subs);
+        sub.m_reqId = reqId;
+    }
+
+    private void cancel(Subscription sub) {
+        release(sub);
+        m_controller.cancelTopMktData(sub);
+    }
+
+    private void release(Subscription sub) {
+        if (sub.m_reqId != ConidIndex.NONE) {
+            Lines lines = m_lines;
+            ConidIndex reqIds = new ConidIndex(lines.m_reqIds);
+            Subscription[] subs = lines.m_subs.clone();
+            subs[reqIds.remove(sub.m_reqId)] = null;
+            m_lines = new Lines(reqIds, subs);
+            sub.m_reqId = ConidIndex.NONE;
+        }
+    }
+
+    /** Request id -> index in the array of the line streaming under it. Never changed once published. */
+    private static class Lines {
+        private final ConidIndex m_reqIds;
+        private final Subscription[] m_subs;
+
+        Lines(ConidIndex reqIds, Subscription[] subs) {
+            m_reqIds = reqIds;
+            m_subs = subs;
+        }
+    }
+
+    /** A pooled task if one is free. Only the EReader thread takes, so a head can't be taken and given back under it. */
+    private TickTask takeTask() {
+        while (true) {
+            TickTask task = m_freeTasks.get();
+            if (task == null) {
+                return new TickTask();
+            }
+            if (m_freeTasks.compareAndSet(task, task.m_nextFree)) {
+                task.m_nextFree = null;
+                return task;
+            }
+        }
+    }
+
+    /** A price or size for one line's handlers, reused once the stripe is done with it. */
+    private class TickTask extends StripedDispatcher.Task {
+        private Subscription m_sub;
+        private boolean m_isPrice;
+        private int m_tickType;
+        private double m_price;
+        private int m_canAutoExecute;
+        private int m_size;
+        private TickTask m_nextFree;
+
+        @Override public void run() {
+            NewTickType tickType = TICK_TYPES[m_tickType];
+            for (ITopMktDataHandler handler : m_sub.m_handlers) {
+                if (m_isPrice) {
+                    handler.tickPrice(tickType, m_price, m_canAutoExecute);
+                } else {
+                    handler.tickSize(tickType, m_size);
+                }
+            }
+        }
+
+        @Override protected void recycle() {
+            m_sub = null;
+            TickTask head;
+            do {
+                head = m_freeTasks.get();
+                m_nextFree = head;
+            } while (!m_freeTasks.compareAndSet(head, this));
+        }
+    }
+
+    private void evictOverLimit() {
+        // idle lines go first, then lines that are still being watched
+        evict(true);
+        evict(false);
+    }
+
+    private void evict(boolean idleOnly) {
+        Iterator<Subscription> it = m_subscriptions.values().iterator();
+        while (m_subscriptions.size() > m_lineLimit && it.hasNext()) {
+            Subscription sub = it.next();
+            if (!idleOnly || sub.isIdle()) {
+                it.remove();
+                m_evictions++;
+                if (m_connected) {
+                    cancel(sub);
+                }
+                if (!sub.isIdle()) {
+                    m_controller.show("Market data line limit reached, stopped streaming " + sub.m_contract.symbol());
+                    evicted(sub);
+                }
+            }
+        }
+    }
+
+    private void evicted(Subscription sub) {
+        for (final ITopMktDataHandler handler : sub.m_handlers) {
+            if (handler instanceof IEvictionHandler) {
+                m_controller.dispatch(sub.m_contract.conid(), 0, new StripedDispatcher.Task() {
+                    @Override public void run() {
+                        ((IEvictionHandler) handler).evicted();
+                    }
+                });
+            }
+        }
+    }
+
+    /** One open line, fanned out to its handlers and to the recorder if there is one. */
+    private class Subscription implements ITopMktDataHandler {
+        private final NewContract m_contract;
+        // replaced on attach and detach, so the stripes can iterate it without a lock or an iterator
+        private volatile ITopMktDataHandler[] m_handlers = NO_HANDLERS;
+        // handler -> attach count, guarded by the owning MarketDataSubscriptions
+        private final IdentityHashMap<ITopMktDataHandler, Integer> m_refs = new IdentityHashMap<>();
+        // raw bits of the last price of each tick type, written on the EReader thread and replayed on the stripes
+        private final AtomicLongArray m_prices = new AtomicLongArray(TICK_TYPES.length);
+        private volatile boolean m_hasPrices;
+        // the prices are from before the last disconnect
+        private volatile boolean m_stale;
+        // what the line streams under on this connection, guarded by the owning MarketDataSubscriptions
+        private int m_reqId = ConidIndex.NONE;
+
+        Subscription(NewContract contract) {
+            m_contract = contract;
+            for (int i = 0; i < TICK_TYPES.length; i++) {
+                m_prices.set(i, NAN_BITS);
+            }
+        }
+
+        void attach(ITopMktDataHandler handler) {
+            Integer refs = m_refs.get(handler);
+            m_refs.put(handler, refs == null ? 1 : refs + 1);
+            if (refs == null) {
+                ITopMktDataHandler[] handlers = Arrays.copyOf(m_handlers, m_handlers.length + 1);
+                handlers[handlers.length - 1] = handler;
+                m_handlers = handlers;
+            }
+        }
+
+        void detach(ITopMktDataHandler handler) {
+            Integer refs = m_refs.get(handler);
+            if (refs == null) {
+                return;
+            }
+            if (refs == 1) {
+                m_refs.remove(handler);
+                ITopMktDataHandler[] handlers = new ITopMktDataHandler[m_handlers.length - 1];
+                int i = 0;
+                for (ITopMktDataHandler h : m_handlers) {
+                    if (h != handler) {
+                        handlers[i++] = h;
+                    }
+                }
+                m_handlers = handlers;
+            } else {
+                m_refs.put(handler, refs - 1);
+            }
+        }
+
+        boolean isIdle() {
+            return m_handlers.length == 0;
+        }
+
+        boolean hasPrices() {
+            return m_hasPrices;
+        }
+
+        void replay(ITopMktDataHandler handler) {
+            for (int i = 0; i < TICK_TYPES.length; i++) {
+                double price = Double.longBitsToDouble(m_prices.get(i));
+                if (!Double.isNaN(price)) {
+                    handler.tickPrice(TICK_TYPES[i], price, 0);
+                }
+            }
+        }
+
+        @Override public void tickPrice(NewTickType tickType, double price, int canAutoExecute) {
+            tickPrice(tickType.ordinal(), price, canAutoExecute);
+        }
+
+        void tickPrice(int tickType, double price, int canAutoExecute) {
+            m_prices.lazySet(tickType, Double.doubleToRawLongBits(price));
+            m_hasPrices = true;
+            if (m_stale) {
+                m_stale = false;
+                m_controller.supervisor().lineWarm();
+            }
+            FeedWriter recorder = m_controller.recorder();
+            if (recorder != null) {
+                recorder.tickPrice(m_contract.conid(), tickType, price);
+            }
+            TickTask task = takeTask();
+            task.m_sub = this;
+            task.m_isPrice = true;
+            task.m_tickType = tickType;
+            task.m_price = price;
+            task.m_canAutoExecute = canAutoExecute;
+            dispatch(task);
+        }
+
+        @Override public void tickSize(NewTickType tickType, int size) {
+            tickSize(tickType.ordinal(), size);
+        }
+
+        void tickSize(int tickType, int size) {
+            FeedWriter recorder = m_controller.recorder();
+            if (recorder != null) {
+                recorder.tickSize(m_contract.conid(), tickType, size);
+            }
+            TickTask task = takeTask();
+            task.m_sub = this;
+            task.m_isPrice = false;
+            task.m_tickType = tickType;
+            task.m_size = size;
+            dispatch(task);
+        }
+
+        @Override public void tickString(final NewTickType tickType, final String value) {
+            dispatch(new StripedDispatcher.Task() {
+                @Override public void run() {
+                    for (ITopMktDataHandler handler : m_handlers) {
+                        handler.tickString(tickType, value);
+                    }
+                }
+            });
+        }
+
+        @Override public void tickSnapshotEnd() {
+            dispatch(new StripedDispatcher.Task() {
+                @Override public void run() {
+                    for (ITopMktDataHandler handler : m_handlers) {
+                        handler.tickSnapshotEnd();
+                    }
+                }
+            });
+        }
+
+        @Override public void marketDataType(final Types.MktDataType marketDataType) {
+            dispatch(new StripedDispatcher.Task() {
+                @Override public void run() {
+                    for (ITopMktDataHandler handler : m_handlers) {
+                        handler.marketDataType(marketDataType);
+                    }
+                }
+            });
+        }
+
+        /** Called on the EReader thread, the task keeps the receive time of the message. */
+        private void dispatch(StripedDispatcher.Task task) {
+            m_controller.dispatch(m_contract.conid(), m_controller.receivedNanos(), task);
+        }
+    }
+}
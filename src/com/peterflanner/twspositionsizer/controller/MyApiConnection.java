@@ -0,0 +1,126 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.ib.client.EClientSocket;
+import com.ib.client.EReader;
+import com.ib.controller.ApiConnection;
+import com.ib.controller.NewContract;
+import com.ib.controller.NewOrder;
+import com.peterflanner.twspositionsizer.diagnostics.ApiTrafficLogger;
+
+/**
+ * The controller's socket connection, with a {@link TickReader} that decodes ticks without garbage and stamps when
+ * each incoming message starts so the time a tick spends in the pipeline can be measured from the moment it came off
+ * the socket, and batched order placement.
+ */
+class MyApiConnection extends ApiConnection {
+    private final MyApiController m_controller;
+    private final ILogger m_inLogger;
+    // encoded orders waiting for a single write, only touched with the connection locked
+    private final ByteArrayOutputStream m_batch = new ByteArrayOutputStream(4096);
+    private final DataOutputStream m_batchOut = new DataOutputStream(m_batch);
+
+    MyApiConnection(MyApiController controller, ILogger inLogger, ILogger outLogger) {
+        super(controller, inLogger, outLogger);
+        m_controller = controller;
+        m_inLogger = inLogger;
+    }
+
+    @Override public EReader createReader(EClientSocket socket, DataInputStream dis) {
+        // EClientSocket's stream is unbuffered and TickReader buffers it. The in logger goes under the buffer so it
+        // logs each socket read once, rather than hooking in above it the way ApiConnection would.
+        InputStream logged = new LoggingInputStream(dis, m_inLogger);
+        TickReader reader = new TickReader(socket, logged, m_controller, m_controller);
+        m_controller.readerCreated(reader);
+        return reader;
+    }
+
+    /**
+     * Logs what is read in the form ApiConnection's own hook does, with a 0 field terminator shown as '_'. An
+     * {@link ApiTrafficLogger} is handed the bytes themselves, so logging a read doesn't allocate.
+     */
+    private static class LoggingInputStream extends FilterInputStream {
+        private final ILogger m_logger;
+        private final ApiTrafficLogger m_traffic;
+
+        LoggingInputStream(InputStream in, ILogger logger) {
+            super(in);
+            m_logger = logger;
+            m_traffic = logger instanceof ApiTrafficLogger ? (ApiTrafficLogger) logger : null;
+        }
+
+        @Override public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                m_logger.log(String.valueOf(b == 0 ? '_' : (char) b));
+            }
+            return b;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            // -1 is the end of the stream, EReader sees it as an EOFException
+            if (n > 0) {
+                if (m_traffic != null) {
+                    m_traffic.log(b, off, n);
+                } else {
+                    m_logger.log(new String(b, off, n, StandardCharsets.ISO_8859_1).replace('\0', '_'));
+                }
+            }
+            return n;
+        }
+
+        @Override public void close() throws IOException {
+            super.close();
+            m_logger.log("<input stream closed>");
+        }
+    }
+
+    /**
+     * Encode several orders and send them in one socket write, so a bracket's legs leave together instead of one
+     * write (and possibly one Nagle delay) per order. Callers allocate the order ids while holding the connection's
+     * lock, so ids reach TWS in increasing order.
+     */
+    synchronized void placeOrders(List<NewContract> contracts, List<NewOrder> orders) {
+        DataOutputStream socket = m_dos;
+        if (socket == null || !isConnected()) {
+            notConnected();
+            return;
+        }
+        m_batch.reset();
+        m_dos = m_batchOut;
+        boolean closed;
+        try {
+            for (int i = 0; i < orders.size(); i++) {
+                placeOrder(contracts.get(i), orders.get(i));
+            }
+        } finally {
+            // an order that fails to encode disconnects, which drops our stand-in stream rather than the socket's
+            closed = m_dos != m_batchOut;
+            m_dos = closed ? null : socket;
+        }
+        if (closed) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already reported by the failed order
+            }
+            return;
+        }
+        try {
+            m_batch.writeTo(socket);
+            socket.flush();
+        } catch (IOException e) {
+            error(orders.get(0).orderId(), 512, "Order sending error - " + e);
+            close();
+        }
+    }
+}
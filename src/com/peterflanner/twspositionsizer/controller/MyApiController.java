@@ -1,26 +1,462 @@
 package com.peterflanner.twspositionsizer.controller;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ib.client.Contract;
+import com.ib.client.ContractDetails;
+import com.ib.client.Order;
+import com.ib.client.OrderState;
+import com.ib.controller.AccountSummaryTag;
 import com.ib.controller.ApiConnection;
 import com.ib.controller.ApiController;
+import com.ib.controller.NewContract;
+import com.ib.controller.NewContractDetails;
+import com.ib.controller.NewOrder;
+import com.ib.controller.NewOrderState;
+import com.ib.controller.OrderStatus;
+import com.peterflanner.twspositionsizer.diagnostics.PipelineLatency;
+import com.peterflanner.twspositionsizer.replay.FeedWriter;
 
 /**
  * Author: Pete
  * Date: 1/18/2018
  * Time: 6:10 AM
  */
-public class MyApiController extends ApiController {
-    private int orderId;
+public class MyApiController extends ApiController implements TickReader.ITickListener {
+    private static final AccountSummaryTag[] ACCOUNT_SUMMARY_TAGS = AccountSummaryTag.values();
+    // ApiController's handler maps keyed by request id, whose ids die with the connection. Orders keep theirs.
+    private static final String[] REQUEST_MAPS = { "m_contractDetailsMap", "m_optionCompMap", "m_efpMap",
+            "m_topMktDataMap", "m_deepMktDataMap", "m_scannerMap", "m_realTimeBarMap", "m_historicalDataMap",
+            "m_fundMap", "m_acctSummaryHandlers", "m_mktValSummaryHandlers", "displayGroupHandlerMap" };
+
+    // next order id to hand out, raised by every nextValidId from TWS
+    private final AtomicInteger nextOrderId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, IOrderHandler> orderHandlers = new ConcurrentHashMap<>();
+    private final MyApiConnection connection;
+    private final OrderSubmitter orders;
+    private final OrderTracker orderTracker = new OrderTracker(this);
+    private final PositionCache positions = new PositionCache(this);
+    private final PortfolioHeat heat = new PortfolioHeat(this);
+    private final BarCache bars = new BarCache(this);
+    private final ApiConnection.ILogger outLogger;
+    private final MarketDataSubscriptions mktData = new MarketDataSubscriptions(this);
+    private final ContractDetailsCache contractDetails = new ContractDetailsCache(this);
+    private final AccountSummaries accounts = new AccountSummaries(this);
+    private volatile FeedWriter recorder;
+    private final PipelineLatency latency = new PipelineLatency();
+    // handler callbacks, off the EReader thread and in order per conid or order id
+    private final StripedDispatcher dispatcher = new StripedDispatcher("Dispatch",
+            Integer.getInteger("twspositionsizer.dispatchStripes", StripedDispatcher.DEFAULT_STRIPES), this);
+    private final ConnectionSupervisor supervisor;
+    // ApiController's maps are plain HashMaps the EReader thread reads, so they are only cleared on that thread or
+    // once it has exited; the lock keeps an exiting reader from clearing a newer connection's requests
+    private final ArrayList<HashMap<?, ?>> requestMaps = new ArrayList<>();
+    // guarded by requestMaps
+    private TickReader reader;
+    private HashMap<?, ?> topMktDataMap;
+    // display group each handler follows, replayed on reconnect
+    private final ConcurrentHashMap<IDisplayGroupHandler, Integer> displayGroups = new ConcurrentHashMap<>();
+    // handlers subscribed on the current connection
+    private final ConcurrentHashMap<IDisplayGroupHandler, Boolean> subscribedGroups = new ConcurrentHashMap<>();
+    // when the message being dispatched came off the socket, only touched on the EReader thread
+    private long receivedNanos;
     
+    /** The handler is wrapped in a {@link ConnectionSupervisor}, which reconnects after the connection drops. */
     public MyApiController(IConnectionHandler handler, ApiConnection.ILogger inLogger, ApiConnection.ILogger outLogger) {
-        super(handler, inLogger, outLogger);
+        this(new ConnectionSupervisor(handler), inLogger, outLogger);
+    }
+
+    private MyApiController(ConnectionSupervisor supervisor, ApiConnection.ILogger inLogger, ApiConnection.ILogger outLogger) {
+        super(supervisor, inLogger, outLogger);
+        this.outLogger = outLogger;
+        this.supervisor = supervisor;
+        connection = new MyApiConnection(this, inLogger, outLogger);
+        orders = new OrderSubmitter(this, connection);
+        // ApiController creates its connection privately, swap in ours before anything connects
+        try {
+            Field client = ApiController.class.getDeclaredField("m_client");
+            client.setAccessible(true);
+            client.set(this, connection);
+            for (String name : REQUEST_MAPS) {
+                Field field = ApiController.class.getDeclaredField(name);
+                field.setAccessible(true);
+                Object map = field.get(this);
+                if (!(map instanceof HashMap)) {
+                    throw new IllegalStateException("Unsupported javaclient version, ApiController." + name + " is " + map);
+                }
+                requestMaps.add((HashMap<?, ?>) map);
+                if (name.equals("m_topMktDataMap")) {
+                    topMktDataMap = (HashMap<?, ?>) map;
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unsupported javaclient version, " + e, e);
+        }
+        supervisor.attach(this);
+    }
+
+    /** Reconnects, resyncs and reports whether cached values are stale. */
+    public ConnectionSupervisor supervisor() {
+        return supervisor;
+    }
+
+    /** Connect, and keep reconnecting after the connection drops until {@link #disconnect}. */
+    @Override public void connect(String host, int port, int clientId) {
+        if (connection.isConnected()) {
+            return;
+        }
+        supervisor.connecting(host, port, clientId);
+        super.connect(host, port, clientId);
+        if (!connection.isConnected()) {
+            supervisor.connectFailed();
+        }
     }
 
     @Override public void nextValidId(int orderId) {
+        // never move backwards, ids already handed out may not have reached TWS yet
+        int next;
+        while ((next = nextOrderId.get()) < orderId && !nextOrderId.compareAndSet(next, orderId)) {
+            // retry
+        }
         super.nextValidId(orderId);
-        this.orderId = orderId;
     }
-    
-    public int getNextValidId() {
-        return orderId;
+
+    /**
+     * Reserve a block of consecutive order ids. Safe to call from any thread.
+     * @return the first id of the block
+     */
+    public int allocateOrderIds(int count) {
+        return nextOrderId.getAndAdd(count);
+    }
+
+    /** Our orders and the risk they leave open. */
+    public OrderTracker orderTracker() {
+        return orderTracker;
+    }
+
+    /** What every account holds. */
+    public PositionCache positions() {
+        return positions;
+    }
+
+    /** Open risk of the selected account against its heat limit. */
+    public PortfolioHeat heat() {
+        return heat;
+    }
+
+    /** Cached bars and ATRs of the contracts viewed this session. */
+    public BarCache bars() {
+        return bars;
+    }
+
+    void reqAllOpenOrders() {
+        connection.reqAllOpenOrders();
+        sentMessage();
+    }
+
+    /** Bracket order placement. */
+    public OrderSubmitter orders() {
+        return orders;
+    }
+
+    /**
+     * Place or modify a single order. Orders without an id get one from {@link #allocateOrderIds}; the handler is
+     * registered whether or not the id was set by the caller.
+     */
+    @Override public void placeOrModifyOrder(NewContract contract, NewOrder order, IOrderHandler handler) {
+        synchronized (connection) {
+            if (order.orderId() == 0) {
+                order.orderId(allocateOrderIds(1));
+            }
+            orderHandler(order.orderId(), handler);
+            orderTracker.placed(contract, order);
+            super.placeOrModifyOrder(contract, order, null);
+        }
+    }
+
+    void orderHandler(int orderId, IOrderHandler handler) {
+        if (handler != null) {
+            orderHandlers.put(orderId, handler);
+        }
+    }
+
+    /** End the current message in the out log, as ApiController does after each request. */
+    void sentMessage() {
+        outLogger.log("\n");
+    }
+
+    @Override public void orderStatus(int orderId, String status, final int filled, final int remaining, final double avgFillPrice,
+                                      final int permId, final int parentId, final double lastFillPrice, final int clientId,
+                                      final String whyHeld) {
+        orders.status(orderId);
+        final OrderStatus orderStatus = orderStatus(status);
+        orderTracker.status(orderId, permId, orderStatus, filled, remaining, avgFillPrice);
+        final IOrderHandler handler = orderHandlers.get(orderId);
+        if (handler != null) {
+            dispatch(orderId, receivedNanos, new StripedDispatcher.Task() {
+                @Override public void run() {
+                    handler.orderStatus(orderStatus, filled, remaining, avgFillPrice, permId, parentId, lastFillPrice, clientId, whyHeld);
+                }
+            });
+            if (orderStatus == OrderStatus.Cancelled || orderStatus == OrderStatus.ApiCancelled
+                    || (orderStatus == OrderStatus.Filled && remaining == 0)) {
+                orderHandlers.remove(orderId);
+            }
+        }
+        super.orderStatus(orderId, status, filled, remaining, avgFillPrice, permId, parentId, lastFillPrice, clientId, whyHeld);
+    }
+
+    private static OrderStatus orderStatus(String status) {
+        if (status == null) {
+            return OrderStatus.Unknown;
+        }
+        try {
+            return OrderStatus.valueOf(status);
+        } catch (IllegalArgumentException e) {
+            return OrderStatus.Unknown;
+        }
+    }
+
+    @Override public void openOrder(int orderId, Contract contract, Order order, OrderState orderState) {
+        orderTracker.openOrder(contract, order, orderStatus(orderState.m_status));
+        final IOrderHandler handler = orderHandlers.get(orderId);
+        if (handler != null) {
+            final NewOrderState state = new NewOrderState(orderState);
+            dispatch(orderId, receivedNanos, new StripedDispatcher.Task() {
+                @Override public void run() {
+                    handler.orderState(state);
+                }
+            });
+        }
+        super.openOrder(orderId, contract, order, orderState);
+    }
+
+    @Override public void error(int id, final int errorCode, final String errorMsg) {
+        final IOrderHandler handler = orderHandlers.get(id);
+        if (handler != null) {
+            dispatch(id, receivedNanos, new StripedDispatcher.Task() {
+                @Override public void run() {
+                    handler.handle(errorCode, errorMsg);
+                }
+            });
+        }
+        super.error(id, errorCode, errorMsg);
+    }
+
+    /** Shared, reference counted top of market subscriptions. */
+    public MarketDataSubscriptions mktData() {
+        return mktData;
+    }
+
+    /** Contract details cached by conid. */
+    public ContractDetailsCache contractDetails() {
+        return contractDetails;
+    }
+
+    /** Summary values for every account. */
+    public AccountSummaries accounts() {
+        return accounts;
+    }
+
+    /** Tick latency through the sizer, see {@link PipelineLatency.Stage}. */
+    public PipelineLatency latency() {
+        return latency;
+    }
+
+    void received(long nanos) {
+        receivedNanos = nanos;
+    }
+
+    /**
+     * When the message currently being dispatched started arriving, from {@link System#nanoTime}. Only meaningful
+     * inside a callback, on the EReader thread or a dispatcher stripe; 0 if unknown.
+     */
+    public long receivedNanos() {
+        long nanos = StripedDispatcher.receivedNanos();
+        return nanos == -1 ? receivedNanos : nanos;
+    }
+
+    /** Handler callbacks run here, see {@link StripedDispatcher}. Its queue depths show whether a handler is slow. */
+    public StripedDispatcher dispatcher() {
+        return dispatcher;
+    }
+
+    /** Run a handler callback on the key's stripe, after the earlier ones for the same key. */
+    void dispatch(int key, long receivedNanos, StripedDispatcher.Task task) {
+        dispatcher.execute(key, receivedNanos, task);
+    }
+
+    /**
+     * The request id ApiController streams a handler's market data under, or -1 if it has none. Searches every
+     * request, so only for when a line is requested, not per tick.
+     */
+    int topMktDataReqId(ITopMktDataHandler handler) {
+        for (Map.Entry<?, ?> entry : topMktDataMap.entrySet()) {
+            if (entry.getValue() == handler) {
+                return (Integer) entry.getKey();
+            }
+        }
+        return -1;
+    }
+
+    /** Ticks for our market data lines go straight to them, without ApiController's boxed lookup. */
+    @Override public void tickPrice(int reqId, int tickType, double price, int canAutoExecute) {
+        latency.recordSince(PipelineLatency.Stage.PARSE, receivedNanos);
+        if (!mktData.tickPrice(reqId, tickType, price, canAutoExecute)) {
+            super.tickPrice(reqId, tickType, price, canAutoExecute);
+        }
+    }
+
+    @Override public void tickSize(int reqId, int tickType, int size) {
+        if (!mktData.tickSize(reqId, tickType, size)) {
+            super.tickSize(reqId, tickType, size);
+        }
+    }
+
+    /** Record market data, account summary, display group and contract details callbacks, null to stop. */
+    public void record(FeedWriter recorder) {
+        this.recorder = recorder;
+    }
+
+    public FeedWriter recorder() {
+        return recorder;
+    }
+
+    @Override public void accountSummary(int reqId, String account, String tag, String value, String currency) {
+        FeedWriter recorder = this.recorder;
+        if (recorder != null) {
+            recorder.accountSummary(account, tag, value, currency);
+        }
+        // ApiController maps the tag with valueOf, which would throw on the EReader thread for tags this
+        // javaclient doesn't know, such as segment suffixed ones
+        if (!isKnownTag(tag)) {
+            return;
+        }
+        super.accountSummary(reqId, account, tag, value, currency);
+    }
+
+    private static boolean isKnownTag(String tag) {
+        if (tag.equals("Currency")) {
+            return true;
+        }
+        for (AccountSummaryTag known : ACCOUNT_SUMMARY_TAGS) {
+            if (known.name().equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override public void accountSummaryEnd(int reqId) {
+        FeedWriter recorder = this.recorder;
+        if (recorder != null) {
+            recorder.accountSummaryEnd();
+        }
+        super.accountSummaryEnd(reqId);
+    }
+
+    /** Follow a display group, on this connection and every later one. Subscribing again to the same group does nothing. */
+    @Override public void subscribeToGroupEvents(int groupId, IDisplayGroupHandler handler) {
+        Integer previous = displayGroups.put(handler, groupId);
+        if (subscribedGroups.containsKey(handler)) {
+            if (previous != null && previous == groupId) {
+                return;
+            }
+            super.unsubscribeFromGroupEvents(handler);
+        }
+        subscribedGroups.put(handler, Boolean.TRUE);
+        super.subscribeToGroupEvents(groupId, handler);
+    }
+
+    @Override public void unsubscribeFromGroupEvents(IDisplayGroupHandler handler) {
+        displayGroups.remove(handler);
+        if (subscribedGroups.remove(handler) != null) {
+            super.unsubscribeFromGroupEvents(handler);
+        }
+    }
+
+    void resubscribeDisplayGroups() {
+        for (Map.Entry<IDisplayGroupHandler, Integer> entry : displayGroups.entrySet()) {
+            if (subscribedGroups.put(entry.getKey(), Boolean.TRUE) == null) {
+                super.subscribeToGroupEvents(entry.getValue(), entry.getKey());
+            }
+        }
+    }
+
+    @Override public void displayGroupUpdated(int reqId, String contractInfo) {
+        FeedWriter recorder = this.recorder;
+        if (recorder != null) {
+            recorder.displayGroupUpdated(contractInfo);
+        }
+        super.displayGroupUpdated(reqId, contractInfo);
+    }
+
+    @Override public void contractDetails(int reqId, ContractDetails contractDetails) {
+        FeedWriter recorder = this.recorder;
+        if (recorder != null) {
+            recorder.contractDetails(new NewContractDetails(contractDetails));
+        }
+        super.contractDetails(reqId, contractDetails);
+    }
+
+    @Override public void disconnect() {
+        supervisor.stopping();
+        // the reader is still running, it forgets the requests itself once it has exited
+        subscribedGroups.clear();
+        mktData.disconnected();
+        contractDetails.disconnected();
+        accounts.disconnected();
+        orders.disconnected();
+        orderTracker.disconnected();
+        positions.disconnected();
+        bars.disconnected();
+        super.disconnect();
+    }
+
+    /** Called on the EReader thread once the connection is gone. */
+    @Override public void connectionClosed() {
+        synchronized (requestMaps) {
+            forgetRequests();
+        }
+        mktData.disconnected();
+        contractDetails.disconnected();
+        accounts.disconnected();
+        orders.disconnected();
+        orderTracker.disconnected();
+        positions.disconnected();
+        bars.disconnected();
+        super.connectionClosed();
+    }
+
+    /** A reader for a new connection, created before it connects. */
+    void readerCreated(TickReader reader) {
+        synchronized (requestMaps) {
+            this.reader = reader;
+        }
+    }
+
+    /** Called on the reader's thread as it exits, e.g. after {@link #disconnect}, which doesn't close the connection. */
+    void readerExited(TickReader reader) {
+        synchronized (requestMaps) {
+            if (this.reader == reader) {
+                forgetRequests();
+            }
+        }
+    }
+
+    /**
+     * Drop the handlers of the closed connection's requests, so a cancel can't find an id from the old one. Only
+     * called by the connection's reader, with the lock held.
+     */
+    private void forgetRequests() {
+        for (HashMap<?, ?> map : requestMaps) {
+            map.clear();
+        }
+        subscribedGroups.clear();
     }
 }
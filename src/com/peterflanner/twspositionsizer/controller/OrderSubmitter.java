@@ -0,0 +1,140 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ib.controller.NewContract;
+import com.ib.controller.NewOrder;
+import com.ib.controller.OrderType;
+import com.peterflanner.twspositionsizer.diagnostics.PipelineLatency;
+
+/**
+ * Places bracket orders. Every leg of every bracket in a call gets its id from one block allocated by
+ * {@link MyApiController#allocateOrderIds}, is registered with its handler, and is encoded into a single socket
+ * write, so firing brackets for a whole watchlist costs one write rather than two or three per symbol.
+ * <p>
+ * The time to build and write a batch is recorded as {@link PipelineLatency.Stage#SUBMIT}, and the time from the
+ * submit to the first status of each parent as {@link PipelineLatency.Stage#ACK}.
+ */
+public class OrderSubmitter {
+    private final MyApiController m_controller;
+    private final MyApiConnection m_connection;
+    // parent order id -> nanoTime its batch was submitted, until the first status arrives
+    private final ConcurrentHashMap<Integer, Long> m_awaitingAck = new ConcurrentHashMap<>();
+
+    private final AtomicLong m_batches = new AtomicLong();
+    private final AtomicLong m_brackets = new AtomicLong();
+    private final AtomicLong m_orders = new AtomicLong();
+
+    OrderSubmitter(MyApiController controller, MyApiConnection connection) {
+        m_controller = controller;
+        m_connection = connection;
+    }
+
+    public void submit(Bracket bracket) {
+        submit(Collections.singletonList(bracket));
+    }
+
+    /** Place the brackets in one write. Each bracket's parent id is set on return. */
+    public void submit(List<Bracket> brackets) {
+        if (brackets.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int legs = 0;
+        for (Bracket bracket : brackets) {
+            legs += bracket.legs();
+        }
+        ArrayList<NewContract> contracts = new ArrayList<>(legs);
+        ArrayList<NewOrder> orders = new ArrayList<>(legs);
+        long written;
+        // ids are allocated under the connection's lock so they reach TWS in increasing order
+        synchronized (m_connection) {
+            int orderId = m_controller.allocateOrderIds(legs);
+            for (Bracket bracket : brackets) {
+                orderId = addLegs(bracket, orderId, contracts, orders);
+                // before the write, the status can arrive before placeOrders returns
+                m_awaitingAck.put(bracket.parentId(), start);
+            }
+            m_connection.placeOrders(contracts, orders);
+            written = System.nanoTime();
+        }
+        m_controller.sentMessage();
+        m_controller.latency().record(PipelineLatency.Stage.SUBMIT, written - start);
+        m_batches.incrementAndGet();
+        m_brackets.addAndGet(brackets.size());
+        m_orders.addAndGet(legs);
+    }
+
+    /** Called on the EReader thread with every order status. */
+    void status(int orderId) {
+        if (m_awaitingAck.isEmpty()) {
+            return;
+        }
+        Long written = m_awaitingAck.remove(orderId);
+        if (written != null) {
+            m_controller.latency().recordSince(PipelineLatency.Stage.ACK, written);
+        }
+    }
+
+    void disconnected() {
+        m_awaitingAck.clear();
+    }
+
+    // returns the next free order id
+    private int addLegs(Bracket bracket, int parentId, List<NewContract> contracts, List<NewOrder> orders) {
+        bracket.parentId(parentId);
+
+        NewOrder parent = new NewOrder();
+        parent.orderId(parentId);
+        parent.action(bracket.action());
+        parent.orderType(OrderType.LMT);
+        parent.lmtPrice(bracket.limitPrice());
+        parent.totalQuantity(bracket.quantity());
+        parent.outsideRth(bracket.outsideRth());
+        parent.transmit(false);
+        add(bracket, parent, contracts, orders);
+
+        // the last child transmits the whole bracket
+        NewOrder stop = new NewOrder();
+        stop.orderId(parentId + 1);
+        stop.parentId(parentId);
+        stop.action(bracket.closingAction());
+        stop.orderType(OrderType.STP);
+        stop.auxPrice(bracket.stopPrice());
+        stop.totalQuantity(bracket.quantity());
+        stop.outsideRth(bracket.outsideRth());
+        stop.transmit(!bracket.hasTarget());
+        add(bracket, stop, contracts, orders);
+
+        if (bracket.hasTarget()) {
+            NewOrder target = new NewOrder();
+            target.orderId(parentId + 2);
+            target.parentId(parentId);
+            target.action(bracket.closingAction());
+            target.orderType(OrderType.LMT);
+            target.lmtPrice(bracket.targetPrice());
+            target.totalQuantity(bracket.quantity());
+            target.outsideRth(bracket.outsideRth());
+            target.transmit(true);
+            add(bracket, target, contracts, orders);
+        }
+        return parentId + bracket.legs();
+    }
+
+    private void add(Bracket bracket, NewOrder order, List<NewContract> contracts, List<NewOrder> orders) {
+        order.account(bracket.account());
+        m_controller.orderHandler(order.orderId(), bracket.handler());
+        m_controller.orderTracker().placed(bracket.contract(), order);
+        contracts.add(bracket.contract());
+        orders.add(order);
+    }
+
+    @Override
+    public String toString() {
+        return "Orders batches=" + m_batches.get() + " brackets=" + m_brackets.get() + " orders=" + m_orders.get();
+    }
+}
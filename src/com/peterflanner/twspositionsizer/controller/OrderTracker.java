@@ -0,0 +1,595 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.ib.client.Contract;
+import com.ib.client.Order;
+import com.ib.controller.NewContract;
+import com.ib.controller.NewOrder;
+import com.ib.controller.OrderStatus;
+import com.ib.controller.Types;
+
+/**
+ * Our own orders, as last reported by TWS. Orders are known from the moment they are placed, and every orderStatus
+ * and openOrder updates the existing entry in place. Entries are found by order id, or by perm id for orders placed
+ * by another client or in TWS itself.
+ * <p>
+ * Once an order is filled or done, and so is the stop of a bracket it is the entry of, it can no longer change any
+ * risk. It moves to a history of the last {@value #HISTORY} such orders, still found by its ids for late updates, and
+ * is forgotten when it falls off the end. Only orders still working are looked at on every update.
+ * <p>
+ * The tracker also keeps the risk still open on each account's symbols: for every entry with a working stop, the
+ * shares still to be bought at the limit price plus the shares held at the average fill price, times the distance to
+ * the stop. An update only recomputes the bracket it belongs to, so the totals cost nothing to read. Stops without a
+ * known entry and entries without a stop don't count, their risk isn't known here.
+ * <p>
+ * Working stops that protect shares already held, the filled part of a bracket or a stop on its own, are summed per
+ * account, conid and side the same way, for {@link com.peterflanner.twspositionsizer.engine.RiskAggregator portfolio
+ * heat}. Only sell stops protect a long and only buy stops a short.
+ * <p>
+ * An order counts under the account it names. One placed without an account counts under "" until TWS reports the
+ * account it went to, and then moves there.
+ * <p>
+ * Updates come from the EReader thread and from threads placing orders; reads may come from any thread and return
+ * copies.
+ */
+public class OrderTracker {
+    /** Filled and done orders kept after they stop counting, for {@link #orders} and for late status updates. */
+    public static final int HISTORY = 1000;
+
+    /** Where an order is in its life. */
+    public enum State {
+        /** Sent to or working at TWS, nothing filled yet. */
+        WORKING,
+        PARTIALLY_FILLED,
+        FILLED,
+        /** Cancelled or rejected. */
+        DONE
+    }
+
+    public interface IOrderListener {
+        /** Called on the thread that updated an order of the contract, after its risk was recomputed. */
+        void changed(String account, String symbol, int conid);
+    }
+
+    /** One order. The tracker's own instances change in place; callers only ever see copies. */
+    public static class TrackedOrder {
+        private int m_orderId;
+        private int m_permId;
+        private int m_parentId;
+        private String m_account;
+        private String m_symbol;
+        private int m_conid;
+        private boolean m_buy;
+        private String m_orderType;
+        private int m_quantity;
+        private double m_lmtPrice;
+        private double m_auxPrice;
+        private OrderStatus m_status = OrderStatus.ApiPending;
+        private int m_filled;
+        private int m_remaining;
+        private double m_avgFillPrice;
+        // bracket risk last added to the symbol's totals of m_riskAccount, kept on the entry
+        private String m_riskAccount;
+        private double m_risk;
+        private double m_workingRisk;
+        // protection last added to the conid's stops of m_protectedAccount on the m_protectedBuy side, kept on the stop
+        private String m_protectedAccount;
+        private boolean m_protectedBuy;
+        private int m_protected;
+        private double m_protectedNotional;
+        // in the history rather than m_orders
+        private boolean m_retired;
+
+        public int orderId() { return m_orderId; }
+        /** TWS's permanent id, 0 until TWS reports it. */
+        public int permId() { return m_permId; }
+        public int parentId() { return m_parentId; }
+        /** The account the order is for, null if it was placed without one and TWS hasn't reported it yet. */
+        public String account() { return m_account; }
+        public String symbol() { return m_symbol; }
+        public int conid() { return m_conid; }
+        public boolean isBuy() { return m_buy; }
+        public String orderType() { return m_orderType; }
+        public int quantity() { return m_quantity; }
+        public double lmtPrice() { return m_lmtPrice; }
+        public double auxPrice() { return m_auxPrice; }
+        public OrderStatus status() { return m_status; }
+        public int filled() { return m_filled; }
+        public int remaining() { return m_remaining; }
+        public double avgFillPrice() { return m_avgFillPrice; }
+        /** Open risk of the bracket this order is the entry of, 0 for other orders. */
+        public double risk() { return m_risk; }
+        /** The part of {@link #risk} in shares that haven't filled yet. */
+        public double workingRisk() { return m_workingRisk; }
+
+        public State state() {
+            if (m_status == OrderStatus.Filled && m_remaining == 0) {
+                return State.FILLED;
+            }
+            if (m_status.isActive() || m_status == OrderStatus.ApiPending || m_status == OrderStatus.Unknown) {
+                return m_filled > 0 ? State.PARTIALLY_FILLED : State.WORKING;
+            }
+            return State.DONE;
+        }
+
+        private boolean isWorking() {
+            State state = state();
+            return state == State.WORKING || state == State.PARTIALLY_FILLED;
+        }
+
+        private boolean isStop() {
+            return "STP".equals(m_orderType) || "STP LMT".equals(m_orderType);
+        }
+
+        private void copyTo(TrackedOrder out) {
+            out.m_orderId = m_orderId;
+            out.m_permId = m_permId;
+            out.m_parentId = m_parentId;
+            out.m_account = m_account;
+            out.m_symbol = m_symbol;
+            out.m_conid = m_conid;
+            out.m_buy = m_buy;
+            out.m_orderType = m_orderType;
+            out.m_quantity = m_quantity;
+            out.m_lmtPrice = m_lmtPrice;
+            out.m_auxPrice = m_auxPrice;
+            out.m_status = m_status;
+            out.m_filled = m_filled;
+            out.m_remaining = m_remaining;
+            out.m_avgFillPrice = m_avgFillPrice;
+            out.m_risk = m_risk;
+            out.m_workingRisk = m_workingRisk;
+        }
+
+        @Override public String toString() {
+            return m_orderId + " " + (m_buy ? "BUY " : "SELL ") + m_quantity + " " + m_symbol + " " + m_orderType
+                    + " " + m_status + " filled " + m_filled + "/" + m_quantity;
+        }
+    }
+
+    private final MyApiController m_controller;
+    // all guarded by this
+    // orders that may still change some risk, oldest first
+    private final LinkedHashSet<TrackedOrder> m_orders = new LinkedHashSet<>();
+    // the last HISTORY orders that can't, oldest first
+    private final ArrayDeque<TrackedOrder> m_history = new ArrayDeque<>();
+    private final HashMap<Integer, TrackedOrder> m_byOrderId = new HashMap<>();
+    private final HashMap<Integer, TrackedOrder> m_byPermId = new HashMap<>();
+    // parent order id -> its stop
+    private final HashMap<Integer, TrackedOrder> m_stops = new HashMap<>();
+    // account, "" if unknown -> its risk totals
+    private final HashMap<String, AccountRisk> m_accounts = new HashMap<>();
+    private boolean m_subscribed;
+    private long m_updates;
+
+    private final CopyOnWriteArrayList<IOrderListener> m_listeners = new CopyOnWriteArrayList<>();
+
+    /** The risk totals of one account's orders. */
+    private static class AccountRisk {
+        // symbol -> { open risk, working risk }
+        private final HashMap<String, double[]> m_openRisk = new HashMap<>();
+        // conid -> { shares protected by working sell stops, sum of their shares times stop price, the same for buys }
+        private final HashMap<Integer, double[]> m_protection = new HashMap<>();
+        private double m_totalWorkingRisk;
+    }
+
+    OrderTracker(MyApiController controller) {
+        m_controller = controller;
+    }
+
+    /** Learn about orders that were already working before we connected, once per connection. */
+    public synchronized void subscribe() {
+        if (!m_subscribed) {
+            m_subscribed = true;
+            m_controller.reqAllOpenOrders();
+        }
+    }
+
+    synchronized void disconnected() {
+        m_subscribed = false;
+    }
+
+    public void addListener(IOrderListener listener) {
+        m_listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(IOrderListener listener) {
+        m_listeners.remove(listener);
+    }
+
+    /** An order we are about to send. Placing an order that is already known modifies it. */
+    void placed(NewContract contract, NewOrder order) {
+        String account;
+        synchronized (this) {
+            TrackedOrder o = find(order.orderId(), 0);
+            if (order.account() != null && !order.account().isEmpty()) {
+                o.m_account = order.account();
+            }
+            o.m_symbol = contract.symbol();
+            o.m_conid = contract.conid();
+            o.m_buy = order.action() == Types.Action.BUY;
+            o.m_orderType = order.orderType().getApiString();
+            o.m_quantity = order.totalQuantity();
+            o.m_lmtPrice = order.lmtPrice();
+            o.m_auxPrice = order.auxPrice();
+            parent(o, order.parentId());
+            if (o.m_filled == 0) {
+                o.m_remaining = o.m_quantity;
+            }
+            updateRisk(o);
+            settle(o);
+            account = o.m_account;
+        }
+        fire(account, contract.symbol(), contract.conid());
+    }
+
+    /** Called on the EReader thread with every order status. */
+    void status(int orderId, int permId, OrderStatus status, int filled, int remaining, double avgFillPrice) {
+        String account;
+        String symbol;
+        int conid;
+        synchronized (this) {
+            TrackedOrder o = find(orderId, permId);
+            o.m_status = status;
+            o.m_filled = filled;
+            o.m_remaining = remaining;
+            o.m_avgFillPrice = avgFillPrice;
+            updateRisk(o);
+            settle(o);
+            account = o.m_account;
+            symbol = o.m_symbol;
+            conid = o.m_conid;
+        }
+        fire(account, symbol, conid);
+    }
+
+    /** Called on the EReader thread with every open order, ours or not. */
+    void openOrder(Contract contract, Order order, OrderStatus status) {
+        String account;
+        synchronized (this) {
+            TrackedOrder o = find(order.m_orderId, order.m_permId);
+            if (order.m_account != null && !order.m_account.isEmpty()) {
+                o.m_account = order.m_account;
+            }
+            o.m_symbol = contract.m_symbol;
+            o.m_conid = contract.m_conId;
+            o.m_buy = "BUY".equals(order.m_action);
+            o.m_orderType = order.m_orderType;
+            o.m_quantity = order.m_totalQuantity;
+            o.m_lmtPrice = order.m_lmtPrice;
+            o.m_auxPrice = order.m_auxPrice;
+            o.m_status = status;
+            parent(o, order.m_parentId);
+            if (o.m_filled == 0 && status.isActive()) {
+                o.m_remaining = o.m_quantity;
+            }
+            updateRisk(o);
+            settle(o);
+            account = o.m_account;
+        }
+        fire(account, contract.m_symbol, contract.m_conId);
+    }
+
+    /** Copy of an order, null if it isn't known. */
+    public synchronized TrackedOrder order(int orderId) {
+        TrackedOrder o = m_byOrderId.get(orderId);
+        if (o == null) {
+            return null;
+        }
+        TrackedOrder copy = new TrackedOrder();
+        o.copyTo(copy);
+        return copy;
+    }
+
+    /** Copies of the orders in a state. Only the last {@value #HISTORY} filled or done orders are kept. */
+    public synchronized List<TrackedOrder> orders(State state) {
+        ArrayList<TrackedOrder> list = new ArrayList<>();
+        if (state == State.FILLED || state == State.DONE) {
+            copy(m_history, state, list);
+        }
+        // a filled entry waits here until its stop is done too
+        copy(m_orders, state, list);
+        return list;
+    }
+
+    private static void copy(Iterable<TrackedOrder> orders, State state, List<TrackedOrder> out) {
+        for (TrackedOrder o : orders) {
+            if (o.state() == state) {
+                TrackedOrder copy = new TrackedOrder();
+                o.copyTo(copy);
+                out.add(copy);
+            }
+        }
+    }
+
+    public List<TrackedOrder> working() { return orders(State.WORKING); }
+    public List<TrackedOrder> partiallyFilled() { return orders(State.PARTIALLY_FILLED); }
+    public List<TrackedOrder> filled() { return orders(State.FILLED); }
+
+    /** Dollars that would be lost on the account's brackets in the symbol if every stop were hit, 0 if none are open. */
+    public synchronized double openRisk(String account, String symbol) {
+        AccountRisk totals = m_accounts.get(key(account));
+        double[] risk = totals == null ? null : totals.m_openRisk.get(symbol);
+        return risk == null ? 0 : risk[0];
+    }
+
+    /**
+     * The part of the open risk in entries that haven't filled yet. Filled shares show up as a position, so a sizer
+     * that counts positions should only take this off.
+     */
+    public synchronized double workingRisk(String account, String symbol) {
+        AccountRisk totals = m_accounts.get(key(account));
+        double[] risk = totals == null ? null : totals.m_openRisk.get(symbol);
+        return risk == null ? 0 : risk[1];
+    }
+
+    /** Working risk over all of the account's symbols. */
+    public synchronized double totalWorkingRisk(String account) {
+        AccountRisk totals = m_accounts.get(key(account));
+        return totals == null ? 0 : totals.m_totalWorkingRisk;
+    }
+
+    /**
+     * Shares of the account's position in the contract that working stops would close, 0 if none. Only stops on the
+     * closing side count: sells for a long, buys for a short.
+     * @param position shares held, negative if short
+     */
+    public synchronized int protectedShares(String account, int conid, int position) {
+        double[] protection = protection(account, conid);
+        int side = side(position);
+        return protection == null || side == -1 ? 0 : (int) protection[side];
+    }
+
+    /** Average stop price over the shares of the position that working stops protect, NaN if none. */
+    public synchronized double protectedStop(String account, int conid, int position) {
+        double[] protection = protection(account, conid);
+        int side = side(position);
+        return protection == null || side == -1 || protection[side] == 0 ? Double.NaN
+                : protection[side + 1] / protection[side];
+    }
+
+    // where the stops that would close the position are summed in a conid's protection
+    private static int side(int position) {
+        return position > 0 ? 0 : position < 0 ? 2 : -1;
+    }
+
+    /** Open risk over every account and symbol. */
+    public synchronized double totalOpenRisk() {
+        double total = 0;
+        for (AccountRisk totals : m_accounts.values()) {
+            for (double[] risk : totals.m_openRisk.values()) {
+                total += risk[0];
+            }
+        }
+        return total;
+    }
+
+    /** Orders known, working or in the history. */
+    public synchronized int size() {
+        return m_orders.size() + m_history.size();
+    }
+
+    // the existing entry for the ids, or a new one indexed under them
+    private TrackedOrder find(int orderId, int permId) {
+        m_updates++;
+        TrackedOrder o = permId != 0 ? m_byPermId.get(permId) : null;
+        if (o == null && orderId > 0) {
+            o = m_byOrderId.get(orderId);
+        }
+        if (o == null) {
+            o = new TrackedOrder();
+            o.m_orderId = orderId;
+            if (orderId > 0 || permId != 0) {
+                m_orders.add(o);
+            }
+        }
+        // orders placed in TWS have no order id, only a perm id
+        if (orderId > 0) {
+            m_byOrderId.put(orderId, o);
+        }
+        if (permId != 0 && o.m_permId == 0) {
+            o.m_permId = permId;
+            m_byPermId.put(permId, o);
+        }
+        return o;
+    }
+
+    // move the order, and the entry if it is a bracket's stop, to the history once neither can change any risk
+    private void settle(TrackedOrder o) {
+        if (o.m_orderId <= 0 && o.m_permId == 0) {
+            // not indexed, nothing will find it again
+            return;
+        }
+        retire(o);
+        if (o.m_parentId != 0) {
+            TrackedOrder entry = m_byOrderId.get(o.m_parentId);
+            if (entry != null) {
+                retire(entry);
+            }
+        }
+    }
+
+    private void retire(TrackedOrder o) {
+        TrackedOrder stop = m_stops.get(o.m_orderId);
+        boolean retired = !o.isWorking() && (stop == null || stop == o || !stop.isWorking());
+        if (retired == o.m_retired) {
+            return;
+        }
+        o.m_retired = retired;
+        if (retired) {
+            m_orders.remove(o);
+            m_history.addLast(o);
+            if (m_history.size() > HISTORY) {
+                forget(m_history.removeFirst());
+            }
+        } else {
+            // rare, e.g. an inactive order TWS submits after all
+            m_history.remove(o);
+            m_orders.add(o);
+        }
+    }
+
+    private void forget(TrackedOrder o) {
+        if (m_byOrderId.get(o.m_orderId) == o) {
+            m_byOrderId.remove(o.m_orderId);
+        }
+        if (o.m_permId != 0 && m_byPermId.get(o.m_permId) == o) {
+            m_byPermId.remove(o.m_permId);
+        }
+        TrackedOrder stop = m_stops.get(o.m_orderId);
+        if (stop != null && stop.m_retired) {
+            m_stops.remove(o.m_orderId);
+        }
+        if (o.m_parentId != 0 && m_stops.get(o.m_parentId) == o) {
+            m_stops.remove(o.m_parentId);
+        }
+    }
+
+    private double[] protection(String account, int conid) {
+        AccountRisk totals = m_accounts.get(key(account));
+        return totals == null ? null : totals.m_protection.get(conid);
+    }
+
+    private static String key(String account) {
+        return account == null ? "" : account;
+    }
+
+    private AccountRisk totals(String account) {
+        AccountRisk totals = m_accounts.get(account);
+        if (totals == null) {
+            totals = new AccountRisk();
+            m_accounts.put(account, totals);
+        }
+        return totals;
+    }
+
+    private void parent(TrackedOrder o, int parentId) {
+        o.m_parentId = parentId;
+        if (parentId != 0 && o.isStop()) {
+            m_stops.put(parentId, o);
+        }
+    }
+
+    // recompute the bracket the order belongs to and move the difference into its account's symbol total
+    private void updateRisk(TrackedOrder o) {
+        if (o.m_parentId == 0 && o.isStop() && !m_stops.containsKey(o.m_orderId)) {
+            // a stop on its own protects shares that are already held
+            protect(o, o.isWorking() ? o.m_remaining : 0);
+            return;
+        }
+        TrackedOrder entry = o.m_parentId != 0 ? m_byOrderId.get(o.m_parentId) : o;
+        if (entry == null || entry.m_symbol == null) {
+            return;
+        }
+        TrackedOrder stop = m_stops.get(entry.m_orderId);
+        double working = 0;
+        double held = 0;
+        if (stop != null && stop.state() != State.DONE && stop.state() != State.FILLED) {
+            // a buy loses when the price falls to the stop, a short when it rises
+            double direction = entry.m_buy ? 1 : -1;
+            State state = entry.state();
+            if ((state == State.WORKING || state == State.PARTIALLY_FILLED) && entry.m_lmtPrice > 0) {
+                working = entry.m_remaining * Math.max(0, direction * (entry.m_lmtPrice - stop.m_auxPrice));
+            }
+            int shares = entry.m_filled - stop.m_filled;
+            if (shares > 0) {
+                held = shares * Math.max(0, direction * (entry.m_avgFillPrice - stop.m_auxPrice));
+            }
+            protect(stop, Math.max(0, shares));
+        } else if (stop != null) {
+            protect(stop, 0);
+        }
+        double risk = working + held;
+        String account = key(entry.m_account);
+        if (entry.m_riskAccount != null && !entry.m_riskAccount.equals(account)) {
+            // TWS reported the account after the order was placed, take the risk off the one it was counted under
+            addRisk(entry.m_riskAccount, entry.m_symbol, -entry.m_risk, -entry.m_workingRisk);
+            entry.m_risk = 0;
+            entry.m_workingRisk = 0;
+        }
+        entry.m_riskAccount = account;
+        if (risk != entry.m_risk || working != entry.m_workingRisk) {
+            addRisk(account, entry.m_symbol, risk - entry.m_risk, working - entry.m_workingRisk);
+            entry.m_risk = risk;
+            entry.m_workingRisk = working;
+        }
+    }
+
+    private void addRisk(String account, String symbol, double risk, double working) {
+        AccountRisk totals = totals(account);
+        double[] symbolRisk = totals.m_openRisk.get(symbol);
+        if (symbolRisk == null) {
+            symbolRisk = new double[2];
+            totals.m_openRisk.put(symbol, symbolRisk);
+        }
+        symbolRisk[0] += risk;
+        symbolRisk[1] += working;
+        totals.m_totalWorkingRisk += working;
+        if (Math.abs(symbolRisk[0]) < 1e-9) {
+            totals.m_openRisk.remove(symbol);
+        }
+    }
+
+    // move the difference in the shares the stop protects into its account's conid total for its side
+    private void protect(TrackedOrder stop, int shares) {
+        String account = key(stop.m_account);
+        if (stop.m_protectedAccount != null
+                && (!stop.m_protectedAccount.equals(account) || stop.m_protectedBuy != stop.m_buy)) {
+            // counted under another account or side, take it off there
+            addProtection(stop.m_protectedAccount, stop.m_conid, stop.m_protectedBuy, -stop.m_protected,
+                    -stop.m_protectedNotional);
+            stop.m_protected = 0;
+            stop.m_protectedNotional = 0;
+        }
+        stop.m_protectedAccount = account;
+        stop.m_protectedBuy = stop.m_buy;
+        double notional = shares * stop.m_auxPrice;
+        if (shares == stop.m_protected && notional == stop.m_protectedNotional) {
+            return;
+        }
+        addProtection(account, stop.m_conid, stop.m_buy, shares - stop.m_protected,
+                notional - stop.m_protectedNotional);
+        stop.m_protected = shares;
+        stop.m_protectedNotional = notional;
+    }
+
+    private void addProtection(String account, int conid, boolean buy, int shares, double notional) {
+        AccountRisk totals = totals(account);
+        double[] protection = totals.m_protection.get(conid);
+        if (protection == null) {
+            protection = new double[4];
+            totals.m_protection.put(conid, protection);
+        }
+        int side = buy ? 2 : 0;
+        protection[side] += shares;
+        protection[side + 1] += notional;
+        if (protection[0] == 0 && protection[2] == 0) {
+            totals.m_protection.remove(conid);
+        }
+    }
+
+    private void fire(String account, String symbol, int conid) {
+        if (symbol == null) {
+            return;
+        }
+        for (IOrderListener listener : m_listeners) {
+            listener.changed(key(account), symbol, conid);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        int symbols = 0;
+        for (AccountRisk totals : m_accounts.values()) {
+            symbols += totals.m_openRisk.size();
+        }
+        return "OrderTracker orders=" + m_orders.size() + " history=" + m_history.size() + " updates=" + m_updates + " accounts=" + m_accounts.size()
+                + " symbols at risk=" + symbols;
+    }
+}
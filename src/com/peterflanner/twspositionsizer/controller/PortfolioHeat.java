@@ -0,0 +1,163 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.ib.controller.AccountSummaryTag;
+import com.peterflanner.twspositionsizer.engine.RiskAggregator;
+
+/**
+ * Total open risk of the selected account against a heat limit, a percent of its net liquidation value. Positions and
+ * their protective stops feed a {@link RiskAggregator}, one contract at a time as they change, and the risk of
+ * bracket entries that haven't filled yet comes from the {@link OrderTracker}, counting only the account's own orders.
+ * <p>
+ * The limit defaults to the {@code twspositionsizer.heatLimit} system property, 6 percent if not set.
+ */
+public class PortfolioHeat {
+    public static final double DEFAULT_LIMIT_PERCENT = 6.0;
+
+    public interface IHeatListener {
+        /** Called on the updating thread after the heat of the selected account changed. */
+        void changed();
+    }
+
+    private final MyApiController m_controller;
+    // guarded by this
+    private final RiskAggregator m_risk = new RiskAggregator(256);
+    private volatile String m_account;
+    private volatile double m_limitPercent;
+
+    private final CopyOnWriteArrayList<IHeatListener> m_listeners = new CopyOnWriteArrayList<>();
+
+    private final PositionCache.IPositionListener m_positionListener = new PositionCache.IPositionListener() {
+        @Override public void changed(String account, int conid) {
+            if (!account.equals(m_account)) {
+                return;
+            }
+            PositionCache positions = m_controller.positions();
+            OrderTracker orders = m_controller.orderTracker();
+            int position = positions.position(account, conid);
+            synchronized (PortfolioHeat.this) {
+                m_risk.position(conid, position, positions.avgCost(account, conid));
+                m_risk.price(conid, positions.marketPrice(account, conid));
+                m_risk.stop(conid, orders.protectedShares(account, conid, position),
+                        orders.protectedStop(account, conid, position));
+            }
+            fire();
+        }
+    };
+
+    private final OrderTracker.IOrderListener m_orderListener = new OrderTracker.IOrderListener() {
+        @Override public void changed(String account, String symbol, int conid) {
+            if (!account.equals(m_account)) {
+                return;
+            }
+            OrderTracker orders = m_controller.orderTracker();
+            // only stops on the side that closes the position protect it
+            int position = m_controller.positions().position(account, conid);
+            synchronized (PortfolioHeat.this) {
+                m_risk.stop(conid, orders.protectedShares(account, conid, position),
+                        orders.protectedStop(account, conid, position));
+            }
+            fire();
+        }
+    };
+
+    PortfolioHeat(MyApiController controller) {
+        m_controller = controller;
+        m_limitPercent = parseLimit(System.getProperty("twspositionsizer.heatLimit"));
+        controller.positions().addListener(m_positionListener);
+        controller.orderTracker().addListener(m_orderListener);
+    }
+
+    /** Follow another account, loading what it already holds. */
+    public void account(String account) {
+        if (account == null || account.equals(m_account)) {
+            return;
+        }
+        synchronized (this) {
+            m_account = account;
+            m_risk.clear();
+        }
+        m_controller.positions().visit(account, m_positionListener);
+        fire();
+    }
+
+    public double limitPercent() {
+        return m_limitPercent;
+    }
+
+    public void limitPercent(double percent) {
+        m_limitPercent = percent;
+        fire();
+    }
+
+    /** Dollars lost if every stop were hit and every working entry filled and then stopped. */
+    public synchronized double heat() {
+        String account = m_account;
+        return m_risk.total() + (account == null ? 0 : m_controller.orderTracker().totalWorkingRisk(account));
+    }
+
+    /** The heat limit in dollars, negative until the account's net liquidation value is known. */
+    public double limit() {
+        String account = m_account;
+        int row = account == null ? AccountSummaries.NONE : m_controller.accounts().row(account);
+        double nlv = row == AccountSummaries.NONE ? Double.NaN : m_controller.accounts().value(row, AccountSummaryTag.NetLiquidation);
+        return nlv > 0 ? nlv * m_limitPercent / 100 : -1.0;
+    }
+
+    /** Dollars a new trade may still risk, NaN if the limit isn't known yet. */
+    public double remaining() {
+        double limit = limit();
+        return limit < 0 ? Double.NaN : Math.max(0, limit - heat());
+    }
+
+    /** Positions of the account that no stop protects. */
+    public synchronized int unprotected() {
+        return m_risk.unprotected();
+    }
+
+    /** Last price of a contract, from our own market data. */
+    public void price(int conid, double price) {
+        long updates;
+        synchronized (this) {
+            updates = m_risk.updates();
+            m_risk.price(conid, price);
+            updates = m_risk.updates() - updates;
+        }
+        // the contract isn't held or the price didn't move
+        if (updates != 0) {
+            fire();
+        }
+    }
+
+    public void addListener(IHeatListener listener) {
+        m_listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(IHeatListener listener) {
+        m_listeners.remove(listener);
+    }
+
+    private void fire() {
+        for (IHeatListener listener : m_listeners) {
+            listener.changed();
+        }
+    }
+
+    private static double parseLimit(String value) {
+        if (value == null) {
+            return DEFAULT_LIMIT_PERCENT;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return DEFAULT_LIMIT_PERCENT;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Heat account=" + m_account + " positions=" + m_risk.size() + " risk=" + m_risk.total()
+                + " unprotected=" + m_risk.unprotected() + " updates=" + m_risk.updates();
+    }
+}
@@ -0,0 +1,259 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.ib.controller.ApiController.IAccountHandler;
+import com.ib.controller.ApiController.IPositionHandler;
+import com.ib.controller.NewContract;
+import com.ib.controller.Position;
+import com.peterflanner.twspositionsizer.engine.ConidIndex;
+
+/**
+ * What every account holds, from one reqPositions subscription, with market values from the portfolio updates of the
+ * selected account and from our own ticks. Each account/conid pair gets a row in flat primitive arrays, found through
+ * a {@link ConidIndex} per account, so an update touches one row however many positions an account has, and an
+ * account's total market value is adjusted by the difference rather than summed again.
+ * <p>
+ * Written on the EReader thread and read from the EDT, guarded by the cache's lock.
+ */
+public class PositionCache implements IPositionHandler, IAccountHandler {
+    public static final int NONE = -1;
+
+    public interface IPositionListener {
+        /** Called on the EReader thread after an account's position, average cost or market value changed. */
+        void changed(String account, int conid);
+    }
+
+    private final MyApiController m_controller;
+    // all guarded by this
+    private final HashMap<String, ConidIndex> m_accounts = new HashMap<>();
+    // conid -> first row holding it, rows of the same conid are chained through m_nextSameConid
+    private final ConidIndex m_byConid = new ConidIndex(256);
+    private final HashMap<String, double[]> m_accountValues = new HashMap<>();
+    private String[] m_account;
+    private int[] m_conid;
+    private int[] m_position;
+    private double[] m_avgCost;
+    private double[] m_marketPrice;
+    private double[] m_marketValue;
+    private int[] m_nextSameConid;
+    private int m_size;
+    private boolean m_subscribed;
+    private String m_portfolioAccount;
+    private long m_updates;
+
+    private final CopyOnWriteArrayList<IPositionListener> m_listeners = new CopyOnWriteArrayList<>();
+
+    PositionCache(MyApiController controller) {
+        m_controller = controller;
+        grow(256);
+    }
+
+    /** Request the positions of every account, once per connection. */
+    public synchronized void subscribe() {
+        if (!m_subscribed) {
+            m_subscribed = true;
+            m_controller.reqPositions(this);
+            if (m_portfolioAccount != null) {
+                m_controller.reqAccountUpdates(true, m_portfolioAccount, this);
+            }
+        }
+    }
+
+    /** Follow the market values of one account's portfolio. TWS streams a single account at a time. */
+    public synchronized void portfolio(String account) {
+        if (account == null || account.equals(m_portfolioAccount)) {
+            return;
+        }
+        if (m_subscribed && m_portfolioAccount != null) {
+            m_controller.reqAccountUpdates(false, m_portfolioAccount, this);
+        }
+        m_portfolioAccount = account;
+        if (m_subscribed) {
+            m_controller.reqAccountUpdates(true, account, this);
+        }
+    }
+
+    synchronized void disconnected() {
+        m_subscribed = false;
+    }
+
+    public void addListener(IPositionListener listener) {
+        m_listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(IPositionListener listener) {
+        m_listeners.remove(listener);
+    }
+
+    // ------------------- IPositionHandler -------------------
+    @Override public void position(String account, NewContract contract, int position, double avgCost) {
+        synchronized (this) {
+            int row = row(account, contract.conid());
+            if (row == NONE) {
+                return;
+            }
+            m_position[row] = position;
+            m_avgCost[row] = avgCost;
+            if (m_marketPrice[row] > 0) {
+                marketValue(row, position * m_marketPrice[row]);
+            }
+        }
+        fire(account, contract.conid());
+    }
+
+    @Override public void positionEnd() {
+    }
+
+    // ------------------- IAccountHandler -------------------
+    @Override public void updatePortfolio(Position position) {
+        synchronized (this) {
+            int row = row(position.account(), position.conid());
+            if (row == NONE) {
+                return;
+            }
+            m_position[row] = position.position();
+            m_avgCost[row] = position.averageCost();
+            m_marketPrice[row] = position.marketPrice();
+            marketValue(row, position.marketValue());
+        }
+        fire(position.account(), position.conid());
+    }
+
+    @Override public void accountValue(String account, String key, String value, String currency) {
+        // account values come from the account summaries
+    }
+
+    @Override public void accountTime(String timeStamp) {
+    }
+
+    @Override public void accountDownloadEnd(String account) {
+    }
+
+    /**
+     * A new price for a contract, from our own market data. Revalues the rows of the accounts that hold it.
+     * Called once per frame rather than per tick.
+     */
+    public synchronized void mark(int conid, double price) {
+        if (!(price > 0)) {
+            return;
+        }
+        for (int row = m_byConid.get(conid); row != NONE; row = m_nextSameConid[row]) {
+            m_marketPrice[row] = price;
+            marketValue(row, m_position[row] * price);
+        }
+    }
+
+    /** Shares held, negative if short, 0 if none. */
+    public synchronized int position(String account, int conid) {
+        int row = find(account, conid);
+        return row == NONE ? 0 : m_position[row];
+    }
+
+    /** Average cost per share, 0 if nothing is held. */
+    public synchronized double avgCost(String account, int conid) {
+        int row = find(account, conid);
+        return row == NONE ? 0 : m_avgCost[row];
+    }
+
+    /** Last price of the contract, 0 if it isn't known. */
+    public synchronized double marketPrice(String account, int conid) {
+        int row = find(account, conid);
+        return row == NONE ? 0 : m_marketPrice[row];
+    }
+
+    /** Market value of the position, 0 if it isn't known. */
+    public synchronized double marketValue(String account, int conid) {
+        int row = find(account, conid);
+        return row == NONE ? 0 : m_marketValue[row];
+    }
+
+    /** Market value of all of an account's positions whose price is known. */
+    public synchronized double marketValue(String account) {
+        double[] values = m_accountValues.get(account);
+        return values == null ? 0 : values[0];
+    }
+
+    /** Call the visitor with every conid the account has held, e.g. to load a view of a newly selected account. */
+    public void visit(String account, IPositionListener visitor) {
+        int[] conids;
+        synchronized (this) {
+            conids = new int[m_size];
+            int count = 0;
+            for (int row = 0; row < m_size; row++) {
+                if (m_account[row].equals(account)) {
+                    conids[count++] = m_conid[row];
+                }
+            }
+            conids = Arrays.copyOf(conids, count);
+        }
+        for (int conid : conids) {
+            visitor.changed(account, conid);
+        }
+    }
+
+    /** Number of account/conid pairs seen, including closed positions. */
+    public synchronized int size() {
+        return m_size;
+    }
+
+    private int find(String account, int conid) {
+        ConidIndex index = m_accounts.get(account);
+        return index == null ? NONE : index.get(conid);
+    }
+
+    // the row for the pair, added if it's new
+    private int row(String account, int conid) {
+        if (account == null || conid == 0) {
+            return NONE;
+        }
+        m_updates++;
+        ConidIndex index = m_accounts.get(account);
+        if (index == null) {
+            index = new ConidIndex(64);
+            m_accounts.put(account, index);
+            m_accountValues.put(account, new double[1]);
+        }
+        int row = index.get(conid);
+        if (row == NONE) {
+            if (m_size == m_conid.length) {
+                grow(m_size * 2);
+            }
+            row = m_size++;
+            index.put(conid, row);
+            m_account[row] = account;
+            m_conid[row] = conid;
+            m_nextSameConid[row] = m_byConid.get(conid);
+            m_byConid.put(conid, row);
+        }
+        return row;
+    }
+
+    private void marketValue(int row, double value) {
+        m_accountValues.get(m_account[row])[0] += value - m_marketValue[row];
+        m_marketValue[row] = value;
+    }
+
+    private void grow(int capacity) {
+        m_account = m_account == null ? new String[capacity] : Arrays.copyOf(m_account, capacity);
+        m_conid = m_conid == null ? new int[capacity] : Arrays.copyOf(m_conid, capacity);
+        m_position = m_position == null ? new int[capacity] : Arrays.copyOf(m_position, capacity);
+        m_avgCost = m_avgCost == null ? new double[capacity] : Arrays.copyOf(m_avgCost, capacity);
+        m_marketPrice = m_marketPrice == null ? new double[capacity] : Arrays.copyOf(m_marketPrice, capacity);
+        m_marketValue = m_marketValue == null ? new double[capacity] : Arrays.copyOf(m_marketValue, capacity);
+        m_nextSameConid = m_nextSameConid == null ? new int[capacity] : Arrays.copyOf(m_nextSameConid, capacity);
+    }
+
+    private void fire(String account, int conid) {
+        for (IPositionListener listener : m_listeners) {
+            listener.changed(account, conid);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Positions accounts=" + m_accounts.size() + " rows=" + m_size + " updates=" + m_updates;
+    }
+}
@@ -0,0 +1,199 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ib.client.AnyWrapper;
+
+/**
+ * Runs handler callbacks off the EReader thread. Each task has a key, a conid or an order id, and every task with
+ * the same key runs on the same stripe, one at a time and in the order it was handed in, so a contract's ticks or an
+ * order's statuses are never reordered while a slow handler on one stripe doesn't hold up the others.
+ * <p>
+ * Handing in a task never blocks: each stripe is an unbounded lock-free queue drained by its own daemon thread, with
+ * the task itself as the queue node. The thread parks when its queue is empty. A task that throws, an Error
+ * included, is reported to the error handler and the stripe carries on.
+ */
+public class StripedDispatcher {
+    public static final int DEFAULT_STRIPES = 4;
+
+    /**
+     * A callback to run on a stripe. Each instance can be handed in once, unless it is pooled: the stripe calls
+     * {@link #recycle} when it has no more use for the task, after which it can be handed in again.
+     */
+    public abstract static class Task implements Runnable {
+        private volatile Task m_next;
+        private long m_receivedNanos;
+
+        /** Called on the stripe thread once the task has run and is no longer linked into the queue. */
+        protected void recycle() {
+        }
+    }
+
+    private final Stripe[] m_stripes;
+    private final AnyWrapper m_errors;
+
+    public StripedDispatcher(String name, int stripes, AnyWrapper errors) {
+        m_errors = errors;
+        m_stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            m_stripes[i] = new Stripe(name + "-" + i);
+            m_stripes[i].start();
+        }
+    }
+
+    /**
+     * Queue a task behind the earlier tasks with the same key.
+     * @param receivedNanos when the message that caused it came off the socket, see {@link #receivedNanos}
+     */
+    public void execute(int key, long receivedNanos, Task task) {
+        task.m_receivedNanos = receivedNanos;
+        m_stripes[stripe(key)].offer(task);
+    }
+
+    public int stripes() {
+        return m_stripes.length;
+    }
+
+    /** The stripe a key's tasks run on. */
+    public int stripe(int key) {
+        // spread sequential conids and order ids
+        int h = key * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % m_stripes.length;
+    }
+
+    /** Tasks handed to a stripe and not yet finished. */
+    public long depth(int stripe) {
+        Stripe s = m_stripes[stripe];
+        return s.m_queued.get() - s.m_done.get();
+    }
+
+    /** Deepest a stripe's queue has been. */
+    public long maxDepth(int stripe) {
+        return m_stripes[stripe].m_maxDepth.get();
+    }
+
+    public long executed() {
+        long executed = 0;
+        for (Stripe stripe : m_stripes) {
+            executed += stripe.m_done.get();
+        }
+        return executed;
+    }
+
+    /**
+     * The receive time handed in with the task running on the calling thread, or -1 if the caller isn't a stripe
+     * thread.
+     */
+    public static long receivedNanos() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof Stripe) {
+            Task task = ((Stripe) thread).m_running;
+            return task == null ? 0 : task.m_receivedNanos;
+        }
+        return -1;
+    }
+
+    private class Stripe extends Thread {
+        // producers swap themselves in at the tail, the stripe thread takes from the head's successor
+        private final AtomicReference<Task> m_tail;
+        private Task m_head;
+        private final AtomicLong m_queued = new AtomicLong();
+        private final AtomicLong m_done = new AtomicLong();
+        private final AtomicLong m_maxDepth = new AtomicLong();
+        private volatile boolean m_parked;
+        private Task m_running;
+
+        Stripe(String name) {
+            super(name);
+            setDaemon(true);
+            Task stub = new Task() {
+                @Override public void run() {
+                }
+            };
+            m_head = stub;
+            m_tail = new AtomicReference<>(stub);
+        }
+
+        void offer(Task task) {
+            task.m_next = null;
+            long depth = m_queued.incrementAndGet() - m_done.get();
+            long max;
+            while (depth > (max = m_maxDepth.get()) && !m_maxDepth.compareAndSet(max, depth)) {
+                // retry
+            }
+            Task previous = m_tail.getAndSet(task);
+            previous.m_next = task;
+            if (m_parked) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        private Task poll() {
+            Task head = m_head;
+            Task next = head.m_next;
+            if (next != null) {
+                // the taken task becomes the new stub, the old one is free to go
+                head.m_next = null;
+                m_head = next;
+                head.recycle();
+            }
+            return next;
+        }
+
+        private boolean isEmpty() {
+            // a producer that swapped the tail but hasn't linked yet counts as queued
+            return m_head.m_next == null && m_tail.get() == m_head;
+        }
+
+        private void report(Throwable t) {
+            try {
+                m_errors.error(t instanceof Exception ? (Exception) t : new Exception(getName() + " task threw " + t, t));
+            } catch (Throwable reporting) {
+                // nothing left to tell, carry on with the next task
+            }
+        }
+
+        @Override public void run() {
+            while (true) {
+                Task task = poll();
+                if (task == null) {
+                    if (isEmpty()) {
+                        m_parked = true;
+                        if (isEmpty()) {
+                            LockSupport.park(this);
+                        }
+                        m_parked = false;
+                    } else {
+                        Thread.yield();
+                    }
+                    continue;
+                }
+                m_running = task;
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    // an Error too: the stripe has to keep draining or every later task of its keys is stranded
+                    report(t);
+                } finally {
+                    m_running = null;
+                    m_done.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Dispatch executed=").append(executed()).append(" depth=");
+        for (int i = 0; i < m_stripes.length; i++) {
+            sb.append(i == 0 ? "" : ",").append(depth(i));
+        }
+        sb.append(" max=");
+        for (int i = 0; i < m_stripes.length; i++) {
+            sb.append(i == 0 ? "" : ",").append(maxDepth(i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,310 @@
+package com.peterflanner.twspositionsizer.controller;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.ib.client.EClientSocket;
+import com.ib.client.EReader;
+
+/**
+ * An EReader that decodes the two messages a busy watchlist is made of, tick price and tick size, without creating
+ * any garbage. EReader reads every field into a StringBuffer, turns it into a String and parses that; here the fields
+ * are parsed straight from the stream's bytes into ints and doubles and passed on through {@link ITickListener}.
+ * <p>
+ * The reader buffers the socket itself and parses a field where it lies in the buffer, copying only a field split
+ * across two reads. EReader reads a byte at a time through DataInputStream; layered over a BufferedInputStream that is
+ * two calls and a lock per byte, which cost more than the parsing saved. EReader reads the same unsynchronized buffer,
+ * so its messages are cheaper too.
+ * <p>
+ * Every other message goes through EReader as usual, but its int and double fields are parsed the same way. Anything
+ * the fast parsers don't recognise, e.g. an exponent or a number too long to convert exactly, falls back to
+ * {@link Integer#parseInt} or {@link Double#parseDouble}, so values and errors are exactly EReader's.
+ * <p>
+ * Also stamps when each message starts arriving, see {@link MyApiController#receivedNanos}.
+ */
+public class TickReader extends EReader {
+    /** Tick callbacks with primitive arguments, the fields exactly as TWS sent them. Called on the reader thread. */
+    public interface ITickListener {
+        void tickPrice(int reqId, int tickType, double price, int canAutoExecute);
+        void tickSize(int reqId, int tickType, int size);
+    }
+
+    private static final int TICK_PRICE = 1;
+    private static final int TICK_SIZE = 2;
+
+    // the tick types of the sizes sent along with a bid, ask and last price
+    private static final int BID = 1;
+    private static final int ASK = 2;
+    private static final int LAST = 4;
+    private static final int BID_SIZE = 0;
+    private static final int ASK_SIZE = 3;
+    private static final int LAST_SIZE = 5;
+
+    // the longest decimal that converts exactly: the digits fit a double's mantissa and the power of ten is exact
+    private static final int MAX_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final Input m_in;
+    private final ITickListener m_ticks;
+    private final MyApiController m_controller;
+    // a field split across two reads is copied here, grown if it doesn't fit
+    private byte[] m_field = new byte[64];
+    // the field being parsed: in the input's buffer, or in m_field
+    private byte[] m_bytes;
+    private int m_start;
+    private int m_length;
+
+    /**
+     * @param in the socket's stream, unbuffered: the reader buffers it
+     * @param controller stamped with each message's receive time, null if nothing needs it
+     */
+    public TickReader(EClientSocket socket, InputStream in, ITickListener ticks, MyApiController controller) {
+        this(socket, new Input(in), ticks, controller);
+    }
+
+    private TickReader(EClientSocket socket, Input in, ITickListener ticks, MyApiController controller) {
+        super(socket, new DataInputStream(in));
+        m_in = in;
+        m_ticks = ticks;
+        m_controller = controller;
+    }
+
+    @Override public void run() {
+        try {
+            super.run();
+        } finally {
+            if (m_controller != null) {
+                m_controller.readerExited(this);
+            }
+        }
+    }
+
+    @Override protected boolean processMsg(int msgId) throws IOException {
+        if (m_controller != null) {
+            m_controller.received(System.nanoTime());
+        }
+        switch (msgId) {
+            case TICK_PRICE:
+                tickPrice();
+                return true;
+            case TICK_SIZE:
+                tickSize();
+                return true;
+            default:
+                return super.processMsg(msgId);
+        }
+    }
+
+    private void tickPrice() throws IOException {
+        int version = readInt();
+        int reqId = readInt();
+        int tickType = readInt();
+        double price = readDouble();
+        int size = 0;
+        if (version >= 2) {
+            size = readInt();
+        }
+        int canAutoExecute = 0;
+        if (version >= 3) {
+            canAutoExecute = readInt();
+        }
+        m_ticks.tickPrice(reqId, tickType, price, canAutoExecute);
+        if (version >= 2) {
+            int sizeTickType = tickType == BID ? BID_SIZE : tickType == ASK ? ASK_SIZE : tickType == LAST ? LAST_SIZE : -1;
+            if (sizeTickType != -1) {
+                m_ticks.tickSize(reqId, sizeTickType, size);
+            }
+        }
+    }
+
+    private void tickSize() throws IOException {
+        readInt(); // version
+        int reqId = readInt();
+        int tickType = readInt();
+        int size = readInt();
+        m_ticks.tickSize(reqId, tickType, size);
+    }
+
+    @Override protected int readInt() throws IOException {
+        readField();
+        if (m_length == 0) {
+            return 0;
+        }
+        byte[] bytes = m_bytes;
+        int start = m_start;
+        int end = start + m_length;
+        boolean negative = bytes[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 9) {
+            // a lone sign, or long enough to overflow
+            return Integer.parseInt(fieldString());
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Integer.parseInt(fieldString());
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    @Override protected double readDouble() throws IOException {
+        readField();
+        if (m_length == 0) {
+            return 0;
+        }
+        byte[] bytes = m_bytes;
+        int end = m_start + m_length;
+        boolean negative = bytes[m_start] == '-';
+        int i = negative ? m_start + 1 : m_start;
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '.' && decimals == -1) {
+                decimals = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || ++digits > MAX_DIGITS) {
+                return Double.parseDouble(fieldString());
+            }
+            mantissa = mantissa * 10 + digit;
+            if (decimals != -1) {
+                decimals++;
+            }
+        }
+        if (digits == 0) {
+            return Double.parseDouble(fieldString());
+        }
+        // both operands are exact, so the one rounding in the division gives the same double as parseDouble
+        double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Find the next field, up to its 0 terminator, and point {@link #m_bytes} at it. Usually the whole field is in
+     * the buffer; one that runs past the end is copied to {@link #m_field} before the buffer is refilled.
+     */
+    private void readField() throws IOException {
+        Input in = m_in;
+        int copied = 0;
+        while (true) {
+            byte[] buf = in.m_buf;
+            int start = in.m_pos;
+            int limit = in.m_limit;
+            int end = start;
+            while (end < limit && buf[end] != 0) {
+                end++;
+            }
+            if (end < limit) {
+                in.m_pos = end + 1;
+                if (copied == 0) {
+                    m_bytes = buf;
+                    m_start = start;
+                    m_length = end - start;
+                } else {
+                    m_length = copy(buf, start, end - start, copied);
+                    m_bytes = m_field;
+                    m_start = 0;
+                }
+                return;
+            }
+            copied = copy(buf, start, end - start, copied);
+            in.m_pos = limit;
+            in.fill();
+        }
+    }
+
+    /** Append to the first copied bytes of {@link #m_field}, growing it if need be, and return the new length. */
+    private int copy(byte[] buf, int start, int length, int copied) {
+        int needed = copied + length;
+        if (needed > m_field.length) {
+            byte[] field = new byte[Math.max(needed, m_field.length * 2)];
+            System.arraycopy(m_field, 0, field, 0, copied);
+            m_field = field;
+        }
+        System.arraycopy(buf, start, m_field, copied, length);
+        return needed;
+    }
+
+    private String fieldString() {
+        return new String(m_bytes, m_start, m_length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The socket's stream, buffered without BufferedInputStream's lock: only the reader thread reads it. TickReader
+     * scans its buffer directly, EReader reads it through a DataInputStream.
+     */
+    private static final class Input extends InputStream {
+        private final InputStream m_in;
+        private final byte[] m_buf = new byte[8192];
+        private int m_pos;
+        private int m_limit;
+
+        Input(InputStream in) {
+            m_in = in;
+        }
+
+        /** Refill the empty buffer, blocking until something is read. */
+        void fill() throws IOException {
+            int n;
+            do {
+                n = m_in.read(m_buf, 0, m_buf.length);
+            } while (n == 0);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            m_pos = 0;
+            m_limit = n;
+        }
+
+        @Override public int read() throws IOException {
+            if (m_pos == m_limit) {
+                try {
+                    fill();
+                } catch (EOFException e) {
+                    return -1;
+                }
+            }
+            return m_buf[m_pos++] & 0xff;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (m_pos == m_limit) {
+                try {
+                    fill();
+                } catch (EOFException e) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, m_limit - m_pos);
+            System.arraycopy(m_buf, m_pos, b, off, n);
+            m_pos += n;
+            return n;
+        }
+
+        @Override public int available() throws IOException {
+            return m_limit - m_pos + m_in.available();
+        }
+
+        @Override public void close() throws IOException {
+            m_in.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.peterflanner.twspositionsizer.daemon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.ib.controller.ApiController.IContractDetailsHandler;
+import com.ib.controller.ApiController.ITopMktDataHandler;
+import com.ib.controller.NewContract;
+import com.ib.controller.NewContractDetails;
+import com.ib.controller.NewTickType;
+import com.ib.controller.Types;
+import com.peterflanner.twspositionsizer.controller.MarketDataSubscriptions;
+import com.peterflanner.twspositionsizer.controller.MyApiController;
+import com.peterflanner.twspositionsizer.engine.ConidIndex;
+
+/**
+ * Last price and symbol of every conid a client has asked about. The first request for a conid opens a streaming line
+ * and looks up its contract details, later ones read the cached values. The line stays open while it's under the
+ * market data line limit, so a contract asked about again keeps a live price; once the limit takes it away its prices
+ * are dropped and the next request opens it again. Lines survive reconnects, the controller requests them again
+ * itself, but their prices from before the disconnect aren't served until a fresh tick arrives.
+ */
+class LastPrices {
+    private final MyApiController m_controller;
+    // guarded by this
+    private final ConidIndex m_index = new ConidIndex(256);
+    private double[] m_last = new double[256];
+    private double[] m_close = new double[256];
+    private String[] m_symbol = new String[256];
+    private boolean[] m_subscribed = new boolean[256];
+    private int m_size;
+
+    LastPrices(MyApiController controller) {
+        m_controller = controller;
+    }
+
+    /**
+     * The last trade, or the previous close until there is one. Subscribes to the contract if needed, looks up its
+     * details until they arrive, and waits up to waitMillis for its first price and its symbol.
+     * @return the price, or NaN if none arrived in time. The symbol may still be unknown, see {@link #symbol}.
+     */
+    double price(int conid, long waitMillis) throws InterruptedException {
+        Quote quote = null;
+        boolean lookUp;
+        int row;
+        synchronized (this) {
+            row = m_index.get(conid);
+            if (row == ConidIndex.NONE) {
+                row = add(conid);
+            }
+            if (!m_subscribed[row]) {
+                m_subscribed[row] = true;
+                quote = new Quote(row);
+            }
+            lookUp = m_symbol[row] == null;
+        }
+        if (quote != null || lookUp) {
+            NewContract contract = new NewContract();
+            contract.conid(conid);
+            contract.exchange("SMART");
+            if (quote != null) {
+                m_controller.mktData().subscribe(contract, quote);
+            }
+            if (lookUp) {
+                // the cache shares one request per conid, asking again while one is in flight costs nothing
+                m_controller.contractDetails().reqContractDetails(contract, quote != null ? quote : new Quote(row));
+            }
+        }
+        long deadline = System.currentTimeMillis() + waitMillis;
+        synchronized (this) {
+            while (true) {
+                double price = price(row);
+                boolean fresh = price > 0 && !m_controller.mktData().isStale(conid);
+                if (fresh && m_symbol[row] != null) {
+                    return price;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return fresh ? price : Double.NaN;
+                }
+                wait(wait);
+            }
+        }
+    }
+
+    /** The contract's symbol, null until its details arrive. */
+    synchronized String symbol(int conid) {
+        int row = m_index.get(conid);
+        return row == ConidIndex.NONE ? null : m_symbol[row];
+    }
+
+    synchronized int size() {
+        return m_size;
+    }
+
+    private double price(int row) {
+        return m_last[row] > 0 ? m_last[row] : m_close[row];
+    }
+
+    private int add(int conid) {
+        if (m_size == m_last.length) {
+            int capacity = m_size * 2;
+            m_last = Arrays.copyOf(m_last, capacity);
+            m_close = Arrays.copyOf(m_close, capacity);
+            m_symbol = Arrays.copyOf(m_symbol, capacity);
+            m_subscribed = Arrays.copyOf(m_subscribed, capacity);
+        }
+        int row = m_size++;
+        m_index.put(conid, row);
+        return row;
+    }
+
+    /** Prices and details of one conid. */
+    private class Quote implements ITopMktDataHandler, IContractDetailsHandler, MarketDataSubscriptions.IEvictionHandler {
+        private final int m_row;
+
+        Quote(int row) {
+            m_row = row;
+        }
+
+        @Override public void tickPrice(NewTickType tickType, double price, int canAutoExecute) {
+            if (!(price > 0) || (tickType != NewTickType.LAST && tickType != NewTickType.CLOSE)) {
+                return;
+            }
+            synchronized (LastPrices.this) {
+                if (tickType == NewTickType.LAST) {
+                    m_last[m_row] = price;
+                } else {
+                    m_close[m_row] = price;
+                }
+                LastPrices.this.notifyAll();
+            }
+        }
+
+        @Override public void evicted() {
+            synchronized (LastPrices.this) {
+                m_subscribed[m_row] = false;
+                m_last[m_row] = 0;
+                m_close[m_row] = 0;
+            }
+        }
+
+        @Override public void contractDetails(ArrayList<NewContractDetails> list) {
+            if (!list.isEmpty()) {
+                synchronized (LastPrices.this) {
+                    m_symbol[m_row] = list.get(0).contract().symbol();
+                    LastPrices.this.notifyAll();
+                }
+            }
+        }
+
+        @Override public void tickSize(NewTickType tickType, int size) {
+        }
+
+        @Override public void tickString(NewTickType tickType, String value) {
+        }
+
+        @Override public void tickSnapshotEnd() {
+        }
+
+        @Override public void marketDataType(Types.MktDataType marketDataType) {
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Prices contracts=" + m_size;
+    }
+}
@@ -0,0 +1,130 @@
+package com.peterflanner.twspositionsizer.daemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+import com.ib.controller.ApiController.IConnectionHandler;
+import com.peterflanner.twspositionsizer.controller.MyApiController;
+import com.peterflanner.twspositionsizer.diagnostics.ApiTrafficLogger;
+
+/**
+ * The sizer without a UI, for a server box: connects to TWS or the gateway, follows one account's balances,
+ * positions, orders and heat, and answers sizing requests from local tools through a {@link SizingServer}. Nothing
+ * here loads AWT or Swing. Messages go to stdout.
+ * <p>
+ * Usage: {@code java -cp target/classes:lib/javaclient.jar com.peterflanner.twspositionsizer.daemon.SizerDaemon
+ * [-host 127.0.0.1] [-port 7497] [-clientId 0] [-listen 7600] [-account DU123] [-priceWait 2000]}
+ */
+public class SizerDaemon implements IConnectionHandler {
+    private static final File LOG_DIR = new File(System.getProperty("user.home"), ".twspositionsizer" + File.separator + "logs");
+
+    private final ApiTrafficLogger m_inLogger = new ApiTrafficLogger(new File(LOG_DIR, "daemon-api-in.log"));
+    private final ApiTrafficLogger m_outLogger = new ApiTrafficLogger(new File(LOG_DIR, "daemon-api-out.log"));
+    private final MyApiController m_controller = new MyApiController(this, m_inLogger, m_outLogger);
+    private final LastPrices m_prices = new LastPrices(m_controller);
+    private final SizingServer m_server;
+    // the account asked for on the command line, otherwise the first one TWS lists
+    private final String m_requestedAccount;
+
+    public SizerDaemon(int listenPort, String account, long priceWaitMillis) throws IOException {
+        m_requestedAccount = account;
+        m_server = new SizingServer(m_controller, m_prices, listenPort, priceWaitMillis);
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        String host = "127.0.0.1";
+        int port = 7497;
+        int clientId = 0;
+        int listen = SizingServer.DEFAULT_PORT;
+        String account = null;
+        long priceWait = SizingServer.DEFAULT_PRICE_WAIT_MILLIS;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-host": host = args[++i]; break;
+                case "-port": port = Integer.parseInt(args[++i]); break;
+                case "-clientId": clientId = Integer.parseInt(args[++i]); break;
+                case "-listen": listen = Integer.parseInt(args[++i]); break;
+                case "-account": account = args[++i]; break;
+                case "-priceWait": priceWait = Long.parseLong(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        SizerDaemon daemon = new SizerDaemon(listen, account, priceWait);
+        daemon.start(host, port, clientId);
+    }
+
+    public void start(String host, int port, int clientId) {
+        closeOnExit();
+        m_server.start();
+        show("Sizing requests on 127.0.0.1:" + m_server.port());
+        m_controller.connect(host, port, clientId);
+    }
+
+    public MyApiController controller() {
+        return m_controller;
+    }
+
+    public SizingServer server() {
+        return m_server;
+    }
+
+    private void closeOnExit() {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    m_server.close();
+                    m_inLogger.close();
+                    m_outLogger.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "SizerDaemonCloser"));
+    }
+
+    @Override public void connected() {
+        show("connected");
+        m_server.connected(true);
+    }
+
+    @Override public void disconnected() {
+        show("disconnected");
+        m_server.connected(false);
+    }
+
+    @Override public void accountList(ArrayList<String> list) {
+        String account = m_requestedAccount;
+        if (account == null && !list.isEmpty()) {
+            account = list.get(0);
+        } else if (account != null && !list.contains(account)) {
+            show("Account " + account + " is not one of " + list);
+        }
+        show("Sizing for account " + account);
+        m_server.account(account);
+        m_controller.accounts().subscribe();
+        m_controller.orderTracker().subscribe();
+        m_controller.positions().subscribe();
+        m_controller.positions().portfolio(account);
+        m_controller.heat().account(account);
+    }
+
+    @Override public void show(String str) {
+        System.out.println(timestamp() + " " + str);
+    }
+
+    @Override public void error(Exception e) {
+        System.out.println(timestamp() + " ERROR " + e);
+    }
+
+    @Override public void message(int id, int errorCode, String errorMsg) {
+        System.out.println(timestamp() + " " + id + " " + errorCode + " " + errorMsg);
+    }
+
+    private static String timestamp() {
+        return new SimpleDateFormat("HH:mm:ss.SSS").format(new Date());
+    }
+}
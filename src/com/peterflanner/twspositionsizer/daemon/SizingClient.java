@@ -0,0 +1,109 @@
+package com.peterflanner.twspositionsizer.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import com.peterflanner.twspositionsizer.engine.PositionSizer;
+
+/**
+ * Blocking client for the {@link SizingServer} protocol, for Java tools. One request in flight at a time unless
+ * {@link #send} and {@link #receive} are used to pipeline. Not thread safe.
+ */
+public class SizingClient implements Closeable {
+    private static final PositionSizer.Tier[] TIERS = PositionSizer.Tier.values();
+
+    /** One response. Reuse an instance per caller. */
+    public static class Response {
+        private int m_requestId;
+        private int m_status;
+        private int m_shares;
+        private int m_totalShares;
+        private double m_price;
+        private double m_stopPrice;
+        private double m_value;
+        private PositionSizer.Tier m_tier;
+        private boolean m_capped;
+
+        public int requestId() { return m_requestId; }
+        /** One of the SizingServer.STATUS_* codes. */
+        public int status() { return m_status; }
+        public int shares() { return m_shares; }
+        public int totalShares() { return m_totalShares; }
+        public double price() { return m_price; }
+        public double stopPrice() { return m_stopPrice; }
+        public double value() { return m_value; }
+        public PositionSizer.Tier tier() { return m_tier; }
+        public boolean capped() { return m_capped; }
+
+        @Override public String toString() {
+            return "status=" + m_status + " shares=" + m_shares + " total=" + m_totalShares + " price=" + m_price
+                    + " stop=" + m_stopPrice + " value=" + m_value + " tier=" + m_tier + (m_capped ? " capped" : "");
+        }
+    }
+
+    private final Socket m_socket;
+    private final DataInputStream m_in;
+    private final DataOutputStream m_out;
+    private int m_nextRequestId;
+
+    public SizingClient(int port) throws IOException {
+        m_socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        m_socket.setTcpNoDelay(true);
+        m_in = new DataInputStream(new BufferedInputStream(m_socket.getInputStream(), 8192));
+        m_out = new DataOutputStream(new BufferedOutputStream(m_socket.getOutputStream(), 8192));
+    }
+
+    /** Size a trade and wait for the answer. */
+    public Response size(int conid, double risk, boolean riskIsPercent, double stop, boolean stopIsPercent, Response out) throws IOException {
+        send(conid, risk, riskIsPercent, stop, stopIsPercent);
+        flush();
+        return receive(out);
+    }
+
+    /**
+     * Queue a request without waiting, answers come back in order from {@link #receive}.
+     * @return its request id
+     */
+    public int send(int conid, double risk, boolean riskIsPercent, double stop, boolean stopIsPercent) throws IOException {
+        int requestId = m_nextRequestId++;
+        m_out.writeByte(SizingServer.SIZE);
+        m_out.writeInt(requestId);
+        m_out.writeInt(conid);
+        m_out.writeByte((riskIsPercent ? SizingServer.RISK_IS_PERCENT : 0) | (stopIsPercent ? SizingServer.STOP_IS_PERCENT : 0));
+        m_out.writeDouble(risk);
+        m_out.writeDouble(stop);
+        return requestId;
+    }
+
+    public void flush() throws IOException {
+        m_out.flush();
+    }
+
+    public Response receive(Response out) throws IOException {
+        int type = m_in.readUnsignedByte();
+        if (type != SizingServer.SIZE) {
+            throw new IOException("Unexpected response type " + type);
+        }
+        out.m_requestId = m_in.readInt();
+        out.m_status = m_in.readUnsignedByte();
+        out.m_shares = m_in.readInt();
+        out.m_totalShares = m_in.readInt();
+        out.m_price = m_in.readDouble();
+        out.m_stopPrice = m_in.readDouble();
+        out.m_value = m_in.readDouble();
+        int tier = m_in.readUnsignedByte();
+        out.m_tier = tier < TIERS.length ? TIERS[tier] : PositionSizer.Tier.UNKNOWN;
+        out.m_capped = (m_in.readUnsignedByte() & SizingServer.CAPPED) != 0;
+        return out;
+    }
+
+    @Override public void close() throws IOException {
+        m_socket.close();
+    }
+}
@@ -0,0 +1,239 @@
+package com.peterflanner.twspositionsizer.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ib.controller.AccountSummaryTag;
+import com.peterflanner.twspositionsizer.controller.AccountSummaries;
+import com.peterflanner.twspositionsizer.controller.MyApiController;
+import com.peterflanner.twspositionsizer.engine.PositionSizer;
+
+/**
+ * Answers sizing requests from local tools over a loopback socket, with the same rules as the Position Sizer tab:
+ * the account's NLV and balances, the position already held, risk in working brackets and the portfolio heat limit.
+ * <p>
+ * The protocol is fixed size big endian frames, so a client is a few lines of struct packing. A request is
+ * <pre>
+ *   byte   type       1 = size
+ *   int    requestId  echoed back
+ *   int    conid
+ *   byte   flags      1 = risk is a percent of NLV, 2 = stop is a percent of the price
+ *   double risk       dollars, or percent of NLV
+ *   double stop       absolute price, or percent away from the price (e.g. -1.0)
+ * </pre>
+ * and its response is
+ * <pre>
+ *   byte   type       1 = size
+ *   int    requestId
+ *   byte   status     see STATUS_*
+ *   int    shares     to buy (positive) or sell short (negative), on top of the position
+ *   int    totalShares the whole position should have
+ *   double price      the price sized at
+ *   double stopPrice
+ *   double value      of the shares
+ *   byte   tier       PositionSizer.Tier ordinal
+ *   byte   flags      1 = capped by the heat limit
+ * </pre>
+ * Requests on a connection are answered in order and may be pipelined; responses are flushed once no more requests
+ * are waiting. Each connection has its own thread. Anything but a size request closes the connection.
+ */
+public class SizingServer implements Closeable {
+    public static final int DEFAULT_PORT = 7600;
+    public static final long DEFAULT_PRICE_WAIT_MILLIS = 2000;
+
+    public static final int SIZE = 1;
+    public static final int REQUEST_BYTES = 26;
+    public static final int RESPONSE_BYTES = 40;
+
+    public static final int RISK_IS_PERCENT = 1;
+    public static final int STOP_IS_PERCENT = 2;
+    public static final int CAPPED = 1;
+
+    public static final int STATUS_OK = 0;
+    /** No price arrived for the contract in time. Asking again is cheap, the line stays open. */
+    public static final int STATUS_NO_PRICE = 1;
+    /** The account or its NLV isn't known yet. */
+    public static final int STATUS_NO_ACCOUNT = 2;
+    public static final int STATUS_NOT_CONNECTED = 3;
+    /**
+     * The contract's details haven't arrived, so the risk in its working brackets isn't known and the size could be
+     * too big. Asking again is cheap, the details are still being looked up.
+     */
+    public static final int STATUS_NO_CONTRACT = 4;
+
+    private final MyApiController m_controller;
+    private final LastPrices m_prices;
+    private final ServerSocket m_serverSocket;
+    private final long m_priceWaitMillis;
+    private volatile String m_account;
+    private volatile boolean m_connected;
+    private final AtomicLong m_requests = new AtomicLong();
+    private final AtomicLong m_clients = new AtomicLong();
+
+    /** Listen on the loopback address only, the API is for tools on the same machine. */
+    SizingServer(MyApiController controller, LastPrices prices, int port, long priceWaitMillis) throws IOException {
+        m_controller = controller;
+        m_prices = prices;
+        m_priceWaitMillis = priceWaitMillis;
+        m_serverSocket = new ServerSocket();
+        m_serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50);
+    }
+
+    public int port() {
+        return m_serverSocket.getLocalPort();
+    }
+
+    /** The account to size for. */
+    public void account(String account) {
+        m_account = account;
+    }
+
+    /** Whether TWS is connected, requests are refused while it isn't. */
+    public void connected(boolean connected) {
+        m_connected = connected;
+    }
+
+    public long requests() {
+        return m_requests.get();
+    }
+
+    void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override public void run() {
+                accept();
+            }
+        }, "SizingServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override public void close() throws IOException {
+        m_serverSocket.close();
+    }
+
+    private void accept() {
+        while (!m_serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = m_serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!m_serverSocket.isClosed()) {
+                    System.out.println("Sizing server stopped accepting: " + e);
+                }
+                return;
+            }
+            Thread client = new Thread(new Runnable() {
+                @Override public void run() {
+                    serve(socket);
+                }
+            }, "SizingClient-" + m_clients.incrementAndGet());
+            client.setDaemon(true);
+            client.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        PositionSizer sizer = new PositionSizer();
+        PositionSizer.Result sizing = new PositionSizer.Result();
+        AccountSummaries.Snapshot account = new AccountSummaries.Snapshot();
+        double[] price = new double[1];
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 8192));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 8192))) {
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    return;
+                }
+                if (type != SIZE) {
+                    System.out.println("Sizing client sent unknown request type " + type + ", closing");
+                    return;
+                }
+                int requestId = in.readInt();
+                int conid = in.readInt();
+                int flags = in.readByte();
+                double risk = in.readDouble();
+                double stop = in.readDouble();
+                m_requests.incrementAndGet();
+
+                sizer.riskIsPercent((flags & RISK_IS_PERCENT) != 0);
+                sizer.stopIsPercent((flags & STOP_IS_PERCENT) != 0);
+                int status = size(sizer, account, conid, risk, stop, price, sizing);
+
+                out.writeByte(SIZE);
+                out.writeInt(requestId);
+                out.writeByte(status);
+                boolean ok = status == STATUS_OK;
+                out.writeInt(ok ? sizing.shares() : 0);
+                out.writeInt(ok ? sizing.totalShares() : 0);
+                out.writeDouble(ok ? price[0] : Double.NaN);
+                out.writeDouble(ok ? sizing.stopPrice() : Double.NaN);
+                out.writeDouble(ok ? sizing.value() : 0);
+                out.writeByte(ok ? sizing.tier().ordinal() : PositionSizer.Tier.UNKNOWN.ordinal());
+                out.writeByte(ok && sizing.capped() ? CAPPED : 0);
+                // pipelined requests are answered together
+                if (in.available() < REQUEST_BYTES) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // client went away mid request
+        } catch (IOException e) {
+            System.out.println("Sizing client failed: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @param price receives the price sized at */
+    private int size(PositionSizer sizer, AccountSummaries.Snapshot account, int conid, double risk, double stop,
+                     double[] price, PositionSizer.Result out) throws InterruptedException {
+        if (!m_connected) {
+            return STATUS_NOT_CONNECTED;
+        }
+        // the line is opened even if the account isn't ready, so the price is there when it is
+        price[0] = m_prices.price(conid, m_priceWaitMillis);
+        if (Double.isNaN(price[0])) {
+            return STATUS_NO_PRICE;
+        }
+        // working brackets are tracked by symbol, without it their risk would count as none
+        String symbol = m_prices.symbol(conid);
+        if (symbol == null) {
+            return STATUS_NO_CONTRACT;
+        }
+        String acct = m_account;
+        AccountSummaries accounts = m_controller.accounts();
+        int row = acct == null ? AccountSummaries.NONE : accounts.row(acct);
+        if (row == AccountSummaries.NONE || !accounts.snapshot(row, account)) {
+            return STATUS_NO_ACCOUNT;
+        }
+        double nlv = account.get(AccountSummaryTag.NetLiquidation);
+        if (!(nlv > 0)) {
+            return STATUS_NO_ACCOUNT;
+        }
+        double openRisk = m_controller.orderTracker().workingRisk(acct, symbol);
+        int position = m_controller.positions().position(acct, conid);
+        sizer.riskCap(m_controller.heat().remaining());
+        sizer.size(nlv, price[0], risk, openRisk, position, stop,
+                account.get(AccountSummaryTag.BuyingPower, -1.0),
+                account.get(AccountSummaryTag.ExcessLiquidity, -1.0),
+                account.get(AccountSummaryTag.TotalCashValue, -1.0), out);
+        return STATUS_OK;
+    }
+
+    @Override
+    public String toString() {
+        return "Sizing server port=" + port() + " clients=" + m_clients.get() + " requests=" + m_requests.get();
+    }
+}
@@ -0,0 +1,289 @@
+package com.peterflanner.twspositionsizer.diagnostics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ib.controller.ApiConnection.ILogger;
+
+/**
+ * Logs API traffic without touching the EDT or the disk on the calling thread. The connection logs every byte read
+ * and every field written, so callers only copy into a preallocated ring of chars; a background thread drains it in
+ * batches to a rotating file. When the writer falls behind by a whole ring the newest text is dropped and counted.
+ * <p>
+ * The ring also keeps the most recent traffic for display, see {@link #tail}.
+ */
+public class ApiTrafficLogger implements ILogger, Closeable {
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    public static final long DEFAULT_MAX_FILE_BYTES = 16L * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    private static final int TIMESTAMP_CHARS = "HH:mm:ss.SSS ".length();
+    private static final long DRAIN_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final char[] m_ring;
+    private final int m_mask;
+    private final File m_file;
+    private final long m_maxFileBytes;
+    private final int m_maxFiles;
+    private final Thread m_writer;
+
+    // producers append at m_tail under the lock, the writer thread drains from m_head
+    private volatile long m_tail;
+    private volatile long m_head;
+    private boolean m_atLineStart = true;
+    private final Calendar m_calendar = Calendar.getInstance();
+    private long m_dayStartMillis;
+    private long m_dayEndMillis;
+
+    private final AtomicLong m_dropped = new AtomicLong();
+    private volatile boolean m_closed;
+
+    // writer thread only
+    private final ByteBuffer m_buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private FileChannel m_channel;
+    private long m_fileBytes;
+    private IOException m_error;
+
+    public ApiTrafficLogger(File file) {
+        this(file, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param capacity ring size in chars, rounded up to a power of two
+     * @param maxFileBytes size at which the file is rolled over to file.1, file.2 ...
+     * @param maxFiles number of rolled over files kept
+     */
+    public ApiTrafficLogger(File file, int capacity, long maxFileBytes, int maxFiles) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1024) - 1) << 1;
+        m_ring = new char[size];
+        m_mask = size - 1;
+        m_file = file;
+        m_maxFileBytes = maxFileBytes;
+        m_maxFiles = maxFiles;
+        m_writer = new Thread(new Runnable() {
+            @Override public void run() {
+                drainLoop();
+            }
+        }, "ApiTrafficLogger-" + file.getName());
+        m_writer.setDaemon(true);
+        m_writer.start();
+    }
+
+    /** Called by the connection with each chunk of traffic, "\n" ends a message. Never blocks on I/O. */
+    @Override public synchronized void log(String str) {
+        append(str, null, 0, str.length());
+    }
+
+    /**
+     * Log bytes read off the socket as ISO-8859-1 text, each 0 field terminator shown as '_' the way the connection
+     * logs it. Unlike {@link #log(String)} nothing is allocated, so the reader thread can log every read.
+     */
+    public synchronized void log(byte[] bytes, int offset, int length) {
+        append(null, bytes, offset, length);
+    }
+
+    /** Append the chars of str, or if it is null the bytes. */
+    private void append(String str, byte[] bytes, int offset, int length) {
+        if (m_closed) {
+            return;
+        }
+        long tail = m_tail;
+        long limit = m_head + m_ring.length;
+        int i = 0;
+        for (; i < length; i++) {
+            char c = str != null ? str.charAt(i) : bytes[offset + i] == 0 ? '_' : (char) (bytes[offset + i] & 0xff);
+            if (m_atLineStart) {
+                if (tail + TIMESTAMP_CHARS >= limit) {
+                    break;
+                }
+                tail = timestamp(tail);
+                m_atLineStart = false;
+            }
+            if (tail >= limit) {
+                break;
+            }
+            m_ring[(int) (tail++ & m_mask)] = c;
+            if (c == '\n') {
+                m_atLineStart = true;
+            }
+        }
+        if (i < length) {
+            m_dropped.addAndGet(length - i);
+        }
+        // wake the writer early once the ring is half full
+        long half = m_ring.length / 2;
+        if (m_tail - m_head < half && tail - m_head >= half) {
+            LockSupport.unpark(m_writer);
+        }
+        m_tail = tail;
+    }
+
+    /**
+     * The last lines of traffic still held in memory, oldest first.
+     * @param lines maximum number of lines
+     */
+    public String tail(int lines) {
+        char[] copy;
+        synchronized (this) {
+            long tail = m_tail;
+            long oldest = Math.max(0, tail - m_ring.length);
+            long start = tail;
+            int newlines = 0;
+            // skip a trailing newline so the last complete message counts as a line
+            while (start > oldest) {
+                char c = m_ring[(int) ((start - 1) & m_mask)];
+                if (c == '\n' && start != tail && ++newlines == lines) {
+                    break;
+                }
+                start--;
+            }
+            if (start == oldest && oldest > 0) {
+                // the oldest line was partly overwritten, start at the next one
+                while (start < tail && m_ring[(int) (start++ & m_mask)] != '\n') {
+                    // skip
+                }
+            }
+            copy = new char[(int) (tail - start)];
+            for (long i = start; i < tail; i++) {
+                copy[(int) (i - start)] = m_ring[(int) (i & m_mask)];
+            }
+        }
+        return new String(copy);
+    }
+
+    /** Chars discarded because the writer fell a whole ring behind. */
+    public long dropped() {
+        return m_dropped.get();
+    }
+
+    public File file() {
+        return m_file;
+    }
+
+    /** Stop accepting traffic, write out what's buffered and close the file. */
+    @Override public void close() throws IOException {
+        m_closed = true;
+        LockSupport.unpark(m_writer);
+        try {
+            m_writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (m_error != null) {
+            throw m_error;
+        }
+    }
+
+    // writes HH:mm:ss.SSS and a space without allocating, returns the new tail
+    private long timestamp(long tail) {
+        long now = System.currentTimeMillis();
+        if (now >= m_dayEndMillis || now < m_dayStartMillis) {
+            m_calendar.setTimeInMillis(now);
+            m_calendar.set(Calendar.HOUR_OF_DAY, 0);
+            m_calendar.set(Calendar.MINUTE, 0);
+            m_calendar.set(Calendar.SECOND, 0);
+            m_calendar.set(Calendar.MILLISECOND, 0);
+            m_dayStartMillis = m_calendar.getTimeInMillis();
+            m_calendar.add(Calendar.DAY_OF_MONTH, 1);
+            m_dayEndMillis = m_calendar.getTimeInMillis();
+        }
+        int millis = (int) (now - m_dayStartMillis);
+        tail = digits(tail, millis / 3600000, 2);
+        m_ring[(int) (tail++ & m_mask)] = ':';
+        tail = digits(tail, millis / 60000 % 60, 2);
+        m_ring[(int) (tail++ & m_mask)] = ':';
+        tail = digits(tail, millis / 1000 % 60, 2);
+        m_ring[(int) (tail++ & m_mask)] = '.';
+        tail = digits(tail, millis % 1000, 3);
+        m_ring[(int) (tail++ & m_mask)] = ' ';
+        return tail;
+    }
+
+    private long digits(long tail, int value, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            m_ring[(int) ((tail + i) & m_mask)] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return tail + width;
+    }
+
+    private void drainLoop() {
+        try {
+            open();
+            while (!m_closed) {
+                LockSupport.parkNanos(DRAIN_NANOS);
+                drain();
+            }
+            drain();
+        } catch (IOException e) {
+            m_error = e;
+            m_closed = true;
+        } finally {
+            try {
+                if (m_channel != null) {
+                    m_channel.close();
+                }
+            } catch (IOException e) {
+                if (m_error == null) {
+                    m_error = e;
+                }
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        long head = m_head;
+        long tail = m_tail;
+        while (head < tail) {
+            m_buffer.clear();
+            while (head < tail && m_buffer.hasRemaining()) {
+                char c = m_ring[(int) (head++ & m_mask)];
+                m_buffer.put(c < 256 ? (byte) c : (byte) '?');
+            }
+            // release the space as soon as it's copied so producers don't wait on the write
+            m_head = head;
+            m_buffer.flip();
+            while (m_buffer.hasRemaining()) {
+                m_fileBytes += m_channel.write(m_buffer);
+            }
+            if (m_fileBytes >= m_maxFileBytes) {
+                rotate();
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        File dir = m_file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        m_channel = FileChannel.open(m_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        m_fileBytes = m_channel.size();
+    }
+
+    private void rotate() throws IOException {
+        m_channel.close();
+        for (int i = m_maxFiles - 1; i >= 1; i--) {
+            File from = new File(m_file.getPath() + "." + i);
+            if (from.exists()) {
+                Files.move(from.toPath(), new File(m_file.getPath() + "." + (i + 1)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (m_maxFiles > 0) {
+            Files.move(m_file.toPath(), new File(m_file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(m_file.toPath());
+        }
+        open();
+    }
+}
@@ -0,0 +1,92 @@
+package com.peterflanner.twspositionsizer.diagnostics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram. Values up to 127ns get their own bucket; above that
+ * every power of two is split into 64 buckets, so a recorded value is off by at most 1/64 (about 1.6%). Recording is
+ * lock-free and allocation free, so it can sit on the EReader thread and the EDT. Values above about 73 minutes are
+ * clamped.
+ * <p>
+ * Readers see each bucket atomically but not the histogram as a whole, which is fine for percentiles shown to a human.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS; // buckets per power of two
+    private static final int HIGHEST_BIT = 41;
+    private static final long MAX_VALUE = (1L << (HIGHEST_BIT + 1)) - 1;
+    private static final int BUCKETS = bucket(MAX_VALUE) + 1;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_sum = new AtomicLong();
+    private final AtomicLong m_max = new AtomicLong();
+
+    /** Record one latency in nanoseconds. Negative values count as 0. */
+    public void record(long nanos) {
+        long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+        m_counts.incrementAndGet(bucket(value));
+        m_count.incrementAndGet();
+        m_sum.addAndGet(value);
+        long max;
+        while (value > (max = m_max.get()) && !m_max.compareAndSet(max, value)) {
+            // retry
+        }
+    }
+
+    public long count() { return m_count.get(); }
+    public long max() { return m_max.get(); }
+
+    /** Mean in nanoseconds, 0 if nothing was recorded. */
+    public double mean() {
+        long count = m_count.get();
+        return count == 0 ? 0 : (double) m_sum.get() / count;
+    }
+
+    /**
+     * The value at a percentile in nanoseconds, reported as the top of its bucket.
+     * @param percentile 0 to 100, e.g. 99.9
+     */
+    public long percentile(double percentile) {
+        long count = m_count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += m_counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), m_max.get());
+            }
+        }
+        return m_max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            m_counts.set(i, 0);
+        }
+        m_count.set(0);
+        m_sum.set(0);
+        m_max.set(0);
+    }
+
+    private static int bucket(long value) {
+        if (value < 2 * SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < 2 * SUB_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_COUNT - 1;
+        long sub = bucket % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,13 @@
+package com.peterflanner.twspositionsizer.diagnostics;
+
+/** JMX view of one pipeline stage's latency histogram, all values in microseconds. */
+public interface LatencyMXBean {
+    long getCount();
+    double getMeanMicros();
+    double getP50Micros();
+    double getP90Micros();
+    double getP99Micros();
+    double getP999Micros();
+    double getMaxMicros();
+    void reset();
+}
@@ -0,0 +1,116 @@
+package com.peterflanner.twspositionsizer.diagnostics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency of a tick through the sizer, from the moment EReader starts on the message to the share count being
+ * painted. Every tick stage except {@link Stage#CALCULATE} is measured from the same receive time, so each one
+ * includes the stages before it and the difference between two stages is the time spent in between. Order
+ * submission and reconnects are measured separately.
+ */
+public class PipelineLatency {
+    public enum Stage {
+        /** EReader parsed the message and called the wrapper. */
+        PARSE("EReader parse"),
+        /** ApiController and the shared market data line handed the tick to the panel. */
+        DISPATCH("Dispatch to panel"),
+        /** The EDT picked up the oldest tick of a frame. */
+        FRAME("Tick to frame"),
+        /** Time spent in calculate(), not measured from the receive time. */
+        CALCULATE("calculate()"),
+        /** The oldest tick of a frame was painted. */
+        PAINT("Tick to paint"),
+        /** Building and writing a batch of bracket orders to the socket, not measured from a tick. */
+        SUBMIT("Order submit"),
+        /** From the write to the first status of a bracket's parent order. */
+        ACK("Order ack"),
+        /** From the connect attempt that succeeded to every subscription being replayed and warm again. */
+        RESYNC("Connect to usable");
+
+        private final String m_label;
+
+        Stage(String label) {
+            m_label = label;
+        }
+
+        public String label() {
+            return m_label;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LatencyHistogram[] m_histograms = new LatencyHistogram[STAGES.length];
+
+    public PipelineLatency() {
+        for (int i = 0; i < m_histograms.length; i++) {
+            m_histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /** Record a latency in nanoseconds for a stage. */
+    public void record(Stage stage, long nanos) {
+        m_histograms[stage.ordinal()].record(nanos);
+    }
+
+    /** Record the time since a receive time from {@link System#nanoTime}, ignored if the receive time is unknown (0). */
+    public void recordSince(Stage stage, long receivedNanos) {
+        if (receivedNanos != 0) {
+            m_histograms[stage.ordinal()].record(System.nanoTime() - receivedNanos);
+        }
+    }
+
+    public LatencyHistogram histogram(Stage stage) {
+        return m_histograms[stage.ordinal()];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : m_histograms) {
+            histogram.reset();
+        }
+    }
+
+    /** Publish each stage as {@code com.peterflanner.twspositionsizer:type=Latency,name=<STAGE>}. */
+    public void registerMBeans() throws JMException {
+        register("com.peterflanner.twspositionsizer:type=Latency,name=");
+    }
+
+    /**
+     * Publish one connection's stages as
+     * {@code com.peterflanner.twspositionsizer:type=Latency,connection="<connection>",name=<STAGE>}.
+     */
+    public void registerMBeans(String connection) throws JMException {
+        register("com.peterflanner.twspositionsizer:type=Latency,connection=" + ObjectName.quote(connection) + ",name=");
+    }
+
+    private void register(String prefix) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Stage stage : STAGES) {
+            ObjectName name = new ObjectName(prefix + stage.name());
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StageBean(histogram(stage)), name);
+            }
+        }
+    }
+
+    private static class StageBean implements LatencyMXBean {
+        private final LatencyHistogram m_histogram;
+
+        StageBean(LatencyHistogram histogram) {
+            m_histogram = histogram;
+        }
+
+        @Override public long getCount() { return m_histogram.count(); }
+        @Override public double getMeanMicros() { return m_histogram.mean() / 1000; }
+        @Override public double getP50Micros() { return m_histogram.percentile(50) / 1000.0; }
+        @Override public double getP90Micros() { return m_histogram.percentile(90) / 1000.0; }
+        @Override public double getP99Micros() { return m_histogram.percentile(99) / 1000.0; }
+        @Override public double getP999Micros() { return m_histogram.percentile(99.9) / 1000.0; }
+        @Override public double getMaxMicros() { return m_histogram.max() / 1000.0; }
+        @Override public void reset() { m_histogram.reset(); }
+    }
+}
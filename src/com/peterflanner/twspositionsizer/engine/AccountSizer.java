@@ -0,0 +1,131 @@
+package com.peterflanner.twspositionsizer.engine;
+
+/**
+ * Sizes one trade for many accounts at once, the transpose of a {@link Watchlist}: rows are accounts, each with its
+ * own NLV and buying power tiers, and the price, stop and risk are shared. Rows are stored as parallel primitive
+ * arrays so re-sizing a few hundred accounts on a tick is a tight loop without allocation.
+ * <p>
+ * Writers synchronize on the sizer. Readers of the row accessors don't lock; a torn read is repainted on the next
+ * frame because the row is still flagged.
+ */
+public class AccountSizer {
+    private final int m_capacity;
+    private final double[] m_nlvs;
+    private final double[] m_buyingPowers;
+    private final double[] m_excessLiquidities;
+    private final double[] m_totalCashValues;
+    private final int[] m_shares;
+    private final double[] m_values;
+    private final byte[] m_tiers;
+    private final DirtyRows m_dirty;
+    private volatile int m_size;
+
+    private final PositionSizer m_sizer;
+    private final PositionSizer.Result m_result = new PositionSizer.Result();
+    private double m_price = Double.NaN;
+    private double m_risk;
+    private double m_stop;
+
+    private static final PositionSizer.Tier[] TIERS = PositionSizer.Tier.values();
+
+    public AccountSizer(int capacity, PositionSizer sizer) {
+        m_capacity = capacity;
+        m_sizer = sizer;
+        m_nlvs = new double[capacity];
+        m_buyingPowers = new double[capacity];
+        m_excessLiquidities = new double[capacity];
+        m_totalCashValues = new double[capacity];
+        m_shares = new int[capacity];
+        m_values = new double[capacity];
+        m_tiers = new byte[capacity];
+        m_dirty = new DirtyRows(capacity);
+    }
+
+    public int capacity() { return m_capacity; }
+    public int size() { return m_size; }
+    public double nlv(int row) { return m_nlvs[row]; }
+    public double buyingPower(int row) { return m_buyingPowers[row]; }
+    public double excessLiquidity(int row) { return m_excessLiquidities[row]; }
+    public double totalCashValue(int row) { return m_totalCashValues[row]; }
+    public int shares(int row) { return m_shares[row]; }
+    public double value(int row) { return m_values[row]; }
+    public PositionSizer.Tier tier(int row) { return TIERS[m_tiers[row]]; }
+
+    /**
+     * Account values for a row, negative if unknown. Rows are assigned by the caller, typically in the order accounts
+     * are first seen; rows skipped over start out unknown.
+     */
+    public synchronized void account(int row, double nlv, double buyingPower, double excessLiquidity, double totalCashValue) {
+        if (row < 0 || row >= m_capacity) {
+            return;
+        }
+        for (int i = m_size; i < row; i++) {
+            m_nlvs[i] = m_buyingPowers[i] = m_excessLiquidities[i] = m_totalCashValues[i] = -1.0;
+        }
+        if (row >= m_size) {
+            m_size = row + 1;
+        }
+        m_nlvs[row] = nlv;
+        m_buyingPowers[row] = buyingPower;
+        m_excessLiquidities[row] = excessLiquidity;
+        m_totalCashValues[row] = totalCashValue;
+        recalculate(row);
+        markDirty(row);
+    }
+
+    /**
+     * The trade to size, in the sizer's units. Re-sizes every account.
+     * @param price current price, NaN if unknown
+     * @param risk max risk, dollars or percent of each account's NLV
+     * @param stop stop loss, absolute or percent away from the price
+     */
+    public synchronized void trade(double price, double risk, double stop) {
+        m_price = price;
+        m_risk = risk;
+        m_stop = stop;
+        recalculateAll();
+    }
+
+    /** Latest price only, e.g. on a tick. Re-sizes every account if it changed. */
+    public synchronized void price(double price) {
+        if (m_price != price) {
+            m_price = price;
+            recalculateAll();
+        }
+    }
+
+    public synchronized void recalculateAll() {
+        for (int row = 0; row < m_size; row++) {
+            recalculate(row);
+        }
+    }
+
+    /** Visit and clear every dirty row below the current size. */
+    public void drainDirty(DirtyRows.IRowVisitor visitor) {
+        m_dirty.drain(m_size, visitor);
+    }
+
+    // only called with the lock held
+    private void recalculate(int row) {
+        int shares = 0;
+        double value = 0;
+        PositionSizer.Tier tier = PositionSizer.Tier.UNKNOWN;
+        // percent risk needs the account's own NLV
+        if (m_price > 0 && (!m_sizer.riskIsPercent() || m_nlvs[row] > 0)) {
+            m_sizer.size(m_nlvs[row], m_price, m_risk, m_stop, m_buyingPowers[row], m_excessLiquidities[row], m_totalCashValues[row], m_result);
+            shares = m_result.shares();
+            value = m_result.value();
+            tier = m_result.tier();
+        }
+        if (shares != m_shares[row] || value != m_values[row] || tier.ordinal() != m_tiers[row]) {
+            m_shares[row] = shares;
+            m_values[row] = value;
+            m_tiers[row] = (byte) tier.ordinal();
+            markDirty(row);
+        }
+    }
+
+    private void markDirty(int row) {
+        m_dirty.mark(row);
+    }
+}
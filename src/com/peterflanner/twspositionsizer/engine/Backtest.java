@@ -0,0 +1,405 @@
+package com.peterflanner.twspositionsizer.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a {@link PositionSizer}'s rules over historical bars and a list of trades, to see how the risk mode and the
+ * round lot flooring would have done before changing them in production. Symbols are independent and run in parallel
+ * on a fork/join pool, each as its own account starting from the same equity, so sizing by percent of NLV compounds
+ * per symbol.
+ * <p>
+ * A trade enters at the open of the first bar at or after its entry time and is sized on the equity at that point.
+ * It's closed by the first of: its stop (at the stop, or at the open if the bar gaps through it), its target, the open
+ * of the first bar at or after its exit time, or the close of the last bar. A bar that reaches both the stop and the
+ * target is taken as stopped. One trade is open per symbol at a time; a trade entering while another is open is
+ * skipped. Equity is marked to the close of every bar a trade is open, so drawdowns include open losses.
+ * <p>
+ * Bars are read in place through {@link IBars}, they must not change while a run is going.
+ */
+public class Backtest {
+    public static final long NO_EXIT_TIME = Long.MAX_VALUE;
+
+    /** A trade idea: when to get in, where the stop is, and optionally a target and when to get out. */
+    public static class Trade {
+        private final long m_entryTime;
+        private final double m_stop;
+        private final double m_target;
+        private final long m_exitTime;
+
+        /**
+         * @param entryTime epoch seconds
+         * @param stop absolute price, or percent away from the entry (e.g. -2.0) if the sizer's stop is a percent
+         * @param target absolute price, NaN for none
+         * @param exitTime epoch seconds, {@link #NO_EXIT_TIME} to hold until the stop or target
+         */
+        public Trade(long entryTime, double stop, double target, long exitTime) {
+            m_entryTime = entryTime;
+            m_stop = stop;
+            m_target = target;
+            m_exitTime = exitTime;
+        }
+
+        public long entryTime() { return m_entryTime; }
+        public double stop() { return m_stop; }
+        public double target() { return m_target; }
+        public long exitTime() { return m_exitTime; }
+    }
+
+    /** Outcome for one symbol, or for all of them combined. */
+    public static class Result {
+        private final String m_symbol;
+        private final double m_startingEquity;
+        private double m_equity;
+        private int m_trades;
+        private int m_skipped;
+        private int m_wins;
+        private long m_sharesTraded;
+        private double m_maxDrawdown;
+        private double m_maxDrawdownPercent;
+        private long m_bars;
+        // equity after each closed trade, preceded by the starting equity
+        private long[] m_curveTime = new long[16];
+        private double[] m_curveEquity = new double[16];
+        private int m_curveSize;
+
+        Result(String symbol, double startingEquity) {
+            m_symbol = symbol;
+            m_startingEquity = startingEquity;
+            m_equity = startingEquity;
+            point(0, startingEquity);
+        }
+
+        public String symbol() { return m_symbol; }
+        public double startingEquity() { return m_startingEquity; }
+        public double equity() { return m_equity; }
+        public double profit() { return m_equity - m_startingEquity; }
+        /** Trades taken. */
+        public int trades() { return m_trades; }
+        /** Trades skipped because another was open, they sized to 0 shares or there were no bars left. */
+        public int skipped() { return m_skipped; }
+        public int wins() { return m_wins; }
+        public long sharesTraded() { return m_sharesTraded; }
+        /** Largest fall from a peak, in dollars. */
+        public double maxDrawdown() { return m_maxDrawdown; }
+        /** Largest fall from a peak, as a percent of that peak. */
+        public double maxDrawdownPercent() { return m_maxDrawdownPercent; }
+        /** Bars read while trades were open. */
+        public long bars() { return m_bars; }
+
+        /** Points on the equity curve: the start, then one per closed trade. */
+        public int curveSize() { return m_curveSize; }
+        /** Exit time of the trade that closed at the point, 0 for the start. */
+        public long curveTime(int i) { return m_curveTime[i]; }
+        public double curveEquity(int i) { return m_curveEquity[i]; }
+
+        private void point(long time, double equity) {
+            if (m_curveSize == m_curveTime.length) {
+                m_curveTime = Arrays.copyOf(m_curveTime, m_curveSize * 2);
+                m_curveEquity = Arrays.copyOf(m_curveEquity, m_curveSize * 2);
+            }
+            m_curveTime[m_curveSize] = time;
+            m_curveEquity[m_curveSize++] = equity;
+        }
+
+        private void drawdown(double peak, double equity) {
+            double drawdown = peak - equity;
+            if (drawdown > m_maxDrawdown) {
+                m_maxDrawdown = drawdown;
+            }
+            if (peak > 0 && drawdown / peak * 100 > m_maxDrawdownPercent) {
+                m_maxDrawdownPercent = drawdown / peak * 100;
+            }
+        }
+
+        @Override public String toString() {
+            return String.format("%-10s trades %6d (%5.1f%% won, %d skipped) profit %,14.2f max drawdown %,12.2f (%5.2f%%)",
+                    m_symbol, m_trades, m_trades == 0 ? 0.0 : m_wins * 100.0 / m_trades, m_skipped, profit(),
+                    m_maxDrawdown, m_maxDrawdownPercent);
+        }
+    }
+
+    /** The results of a run. */
+    public static class Report {
+        private final List<Result> m_symbols;
+        private final Result m_combined;
+        private final long m_nanos;
+
+        Report(List<Result> symbols, Result combined, long nanos) {
+            m_symbols = symbols;
+            m_combined = combined;
+            m_nanos = nanos;
+        }
+
+        /** Per symbol, in the order they were added. */
+        public List<Result> symbols() { return m_symbols; }
+
+        /**
+         * Every symbol's closed trades on one curve, starting from the sum of their starting equities. Its drawdown
+         * is measured between trade exits, so open losses only show per symbol.
+         */
+        public Result combined() { return m_combined; }
+
+        public long bars() {
+            long bars = 0;
+            for (Result result : m_symbols) {
+                bars += result.bars();
+            }
+            return bars;
+        }
+
+        public long nanos() { return m_nanos; }
+
+        @Override public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Result result : m_symbols) {
+                sb.append(result).append('\n');
+            }
+            sb.append(m_combined).append('\n');
+            sb.append(String.format("%,d bars in %,.1f ms, %,.0f bars/s", bars(), m_nanos / 1e6, bars() * 1e9 / Math.max(1, m_nanos)));
+            return sb.toString();
+        }
+    }
+
+    private static class Symbol {
+        final String m_name;
+        final IBars m_bars;
+        final Trade[] m_trades;
+
+        Symbol(String name, IBars bars, Trade[] trades) {
+            m_name = name;
+            m_bars = bars;
+            m_trades = trades;
+        }
+    }
+
+    private static final Comparator<Trade> BY_ENTRY_TIME = new Comparator<Trade>() {
+        @Override public int compare(Trade a, Trade b) {
+            return Long.compare(a.m_entryTime, b.m_entryTime);
+        }
+    };
+
+    private final PositionSizer m_sizer;
+    private final double m_risk;
+    private final double m_startingEquity;
+    private double m_commissionPerShare;
+    private final List<Symbol> m_symbols = new ArrayList<>();
+
+    /**
+     * @param sizer risk and stop modes and round lot, only read during the run
+     * @param risk max risk per trade, percent of equity or dollars depending on the sizer
+     * @param startingEquity each symbol's starting equity
+     */
+    public Backtest(PositionSizer sizer, double risk, double startingEquity) {
+        m_sizer = sizer;
+        m_risk = risk;
+        m_startingEquity = startingEquity;
+    }
+
+    /** Charged on entry and on exit. */
+    public void commissionPerShare(double commission) {
+        m_commissionPerShare = commission;
+    }
+
+    public void add(String symbol, IBars bars, List<Trade> trades) {
+        Trade[] sorted = trades.toArray(new Trade[trades.size()]);
+        Arrays.sort(sorted, BY_ENTRY_TIME);
+        m_symbols.add(new Symbol(symbol, bars, sorted));
+    }
+
+    /** Run on the common fork/join pool. */
+    public Report run() {
+        return run(ForkJoinPool.commonPool());
+    }
+
+    public Report run(ForkJoinPool pool) {
+        long start = System.nanoTime();
+        Result[] results = new Result[m_symbols.size()];
+        pool.invoke(new Run(results, 0, results.length));
+        long nanos = System.nanoTime() - start;
+        List<Result> symbols = Collections.unmodifiableList(Arrays.asList(results));
+        return new Report(symbols, combine(symbols), nanos);
+    }
+
+    /** Splits the symbols in halves down to one per task. */
+    private class Run extends RecursiveAction {
+        private final Result[] m_results;
+        private final int m_from;
+        private final int m_to;
+
+        Run(Result[] results, int from, int to) {
+            m_results = results;
+            m_from = from;
+            m_to = to;
+        }
+
+        @Override protected void compute() {
+            if (m_to - m_from <= 1) {
+                if (m_to > m_from) {
+                    m_results[m_from] = simulate(m_symbols.get(m_from));
+                }
+                return;
+            }
+            int mid = (m_from + m_to) >>> 1;
+            invokeAll(new Run(m_results, m_from, mid), new Run(m_results, mid, m_to));
+        }
+    }
+
+    private Result simulate(Symbol symbol) {
+        Result result = new Result(symbol.m_name, m_startingEquity);
+        PositionSizer.Result sizing = new PositionSizer.Result();
+        IBars bars = symbol.m_bars;
+        int size = bars.size();
+        double peak = m_startingEquity;
+        // first bar the next trade may enter on
+        int next = 0;
+        for (Trade trade : symbol.m_trades) {
+            int entry = indexOf(bars, trade.m_entryTime, 0, size);
+            if (entry < next || entry >= size) {
+                result.m_skipped++;
+                continue;
+            }
+            double price = bars.open(entry);
+            m_sizer.size(result.m_equity, price, m_risk, trade.m_stop, -1, -1, -1, sizing);
+            int shares = sizing.shares();
+            if (shares == 0) {
+                result.m_skipped++;
+                continue;
+            }
+            double stop = sizing.stopPrice();
+            double target = trade.m_target;
+            boolean isLong = shares > 0;
+
+            double exit = Double.NaN;
+            int i = entry;
+            for (; i < size; i++) {
+                double open = bars.open(i);
+                if (i > entry && bars.time(i) >= trade.m_exitTime) {
+                    exit = open;
+                    break;
+                }
+                double high = bars.high(i);
+                double low = bars.low(i);
+                if (isLong) {
+                    if (low <= stop) {
+                        exit = i > entry ? Math.min(open, stop) : stop;
+                        break;
+                    }
+                    if (high >= target) {
+                        exit = i > entry ? Math.max(open, target) : target;
+                        break;
+                    }
+                } else {
+                    if (high >= stop) {
+                        exit = i > entry ? Math.max(open, stop) : stop;
+                        break;
+                    }
+                    if (low <= target) {
+                        exit = i > entry ? Math.min(open, target) : target;
+                        break;
+                    }
+                }
+                double marked = result.m_equity + shares * (bars.close(i) - price);
+                if (marked > peak) {
+                    peak = marked;
+                } else {
+                    result.drawdown(peak, marked);
+                }
+            }
+            if (i == size) {
+                i = size - 1;
+                exit = bars.close(i);
+            }
+            result.m_bars += i - entry + 1;
+
+            double profit = shares * (exit - price) - 2 * Math.abs(shares) * m_commissionPerShare;
+            result.m_equity += profit;
+            result.m_trades++;
+            result.m_sharesTraded += Math.abs(shares);
+            if (profit > 0) {
+                result.m_wins++;
+            }
+            if (result.m_equity > peak) {
+                peak = result.m_equity;
+            } else {
+                result.drawdown(peak, result.m_equity);
+            }
+            result.point(bars.time(i), result.m_equity);
+            // a trade closed at the open of a bar frees that bar for the next one
+            next = bars.time(i) >= trade.m_exitTime ? i : i + 1;
+        }
+        return result;
+    }
+
+    private Result combine(List<Result> symbols) {
+        int points = 0;
+        for (Result result : symbols) {
+            points += result.m_curveSize - 1;
+        }
+        // every symbol's trade exits, then put in time order with ties broken by symbol
+        long[] times = new long[points];
+        int[] owners = new int[points];
+        double[] profits = new double[points];
+        int n = 0;
+        for (int s = 0; s < symbols.size(); s++) {
+            Result result = symbols.get(s);
+            for (int p = 1; p < result.m_curveSize; p++) {
+                times[n] = result.m_curveTime[p];
+                owners[n] = s;
+                profits[n++] = result.m_curveEquity[p] - result.m_curveEquity[p - 1];
+            }
+        }
+        Integer[] order = new Integer[points];
+        for (int i = 0; i < points; i++) {
+            order[i] = i;
+        }
+        final long[] sortTimes = times;
+        final int[] sortOwners = owners;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override public int compare(Integer a, Integer b) {
+                int c = Long.compare(sortTimes[a], sortTimes[b]);
+                return c != 0 ? c : Integer.compare(sortOwners[a], sortOwners[b]);
+            }
+        });
+
+        Result combined = new Result("ALL", m_startingEquity * symbols.size());
+        double peak = combined.m_equity;
+        for (Integer i : order) {
+            combined.m_equity += profits[i];
+            if (combined.m_equity > peak) {
+                peak = combined.m_equity;
+            } else {
+                combined.drawdown(peak, combined.m_equity);
+            }
+            combined.point(times[i], combined.m_equity);
+        }
+        for (Result result : symbols) {
+            combined.m_trades += result.m_trades;
+            combined.m_skipped += result.m_skipped;
+            combined.m_wins += result.m_wins;
+            combined.m_sharesTraded += result.m_sharesTraded;
+            combined.m_bars += result.m_bars;
+        }
+        return combined;
+    }
+
+    /** First bar in [from, to) starting at or after the time, to if there is none. */
+    static int indexOf(IBars bars, long time, int from, int to) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (bars.time(mid) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,195 @@
+package com.peterflanner.twspositionsizer.engine;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Bars of one contract at one bar size, kept column by column in primitive arrays, with Wilder's average true range
+ * updated as bars arrive. The last bar is treated as still forming: it can be replaced (history) or merged into (real
+ * time bars) any number of times, and is only folded into the ATR once a later bar starts, so every update is O(1).
+ * <p>
+ * When the series is full the oldest half is dropped; the ATR doesn't need them. Not thread safe; callers guard it.
+ */
+public class BarSeries implements IBars {
+    public static final int DEFAULT_ATR_PERIOD = 14;
+
+    private final int m_barSeconds;
+    private final int m_atrPeriod;
+    private final int m_capacity;
+
+    private long[] m_time;
+    private double[] m_open;
+    private double[] m_high;
+    private double[] m_low;
+    private double[] m_close;
+    private long[] m_volume;
+    private int m_size;
+
+    // Wilder's ATR over the completed bars, NaN until m_atrPeriod true ranges have been seen
+    private double m_atr = Double.NaN;
+    private double m_trSum;
+    private int m_trCount;
+    // close of the last completed bar, NaN before the first
+    private double m_prevClose = Double.NaN;
+
+    /**
+     * @param barSeconds length of a bar, 86400 for daily bars which start at local midnight
+     * @param capacity most bars kept
+     */
+    public BarSeries(int barSeconds, int atrPeriod, int capacity) {
+        m_barSeconds = barSeconds;
+        m_atrPeriod = atrPeriod;
+        m_capacity = Math.max(capacity, 2 * atrPeriod);
+        int initial = Math.min(m_capacity, 64);
+        m_time = new long[initial];
+        m_open = new double[initial];
+        m_high = new double[initial];
+        m_low = new double[initial];
+        m_close = new double[initial];
+        m_volume = new long[initial];
+    }
+
+    public int barSeconds() { return m_barSeconds; }
+    @Override public int size() { return m_size; }
+    @Override public long time(int i) { return m_time[i]; }
+    @Override public double open(int i) { return m_open[i]; }
+    @Override public double high(int i) { return m_high[i]; }
+    @Override public double low(int i) { return m_low[i]; }
+    @Override public double close(int i) { return m_close[i]; }
+    @Override public long volume(int i) { return m_volume[i]; }
+
+    /** Start time of the last bar, 0 if there are none. */
+    public long lastTime() {
+        return m_size == 0 ? 0 : m_time[m_size - 1];
+    }
+
+    /** Start of the bar that a time in epoch seconds falls in. */
+    public long barStart(long time) {
+        if (m_barSeconds >= 86400) {
+            // daily bars are stamped with local midnight
+            long offset = TimeZone.getDefault().getOffset(time * 1000) / 1000;
+            return Math.floorDiv(time + offset, m_barSeconds) * m_barSeconds - offset;
+        }
+        return Math.floorDiv(time, m_barSeconds) * m_barSeconds;
+    }
+
+    /**
+     * A complete bar, e.g. from historical data. Replaces the last bar if it starts at the same time; bars older
+     * than the last are ignored.
+     * @return false if the bar was ignored
+     */
+    public boolean bar(long time, double open, double high, double low, double close, long volume) {
+        if (m_size > 0 && time < m_time[m_size - 1]) {
+            return false;
+        }
+        if (m_size == 0 || time > m_time[m_size - 1]) {
+            append(time);
+        }
+        int i = m_size - 1;
+        m_open[i] = open;
+        m_high[i] = high;
+        m_low[i] = low;
+        m_close[i] = close;
+        m_volume[i] = volume;
+        return true;
+    }
+
+    /**
+     * A shorter bar, e.g. a 5 second real time bar, merged into the bar it falls in.
+     * @return false if it falls before the last bar and was ignored
+     */
+    public boolean merge(long time, double open, double high, double low, double close, long volume) {
+        long start = barStart(time);
+        if (m_size > 0 && start == m_time[m_size - 1]) {
+            int i = m_size - 1;
+            m_high[i] = Math.max(m_high[i], high);
+            m_low[i] = Math.min(m_low[i], low);
+            m_close[i] = close;
+            m_volume[i] += volume;
+            return true;
+        }
+        return bar(start, open, high, low, close, volume);
+    }
+
+    /** ATR including the bar still forming, NaN until there are enough bars. */
+    public double atr() {
+        if (m_size == 0) {
+            return Double.NaN;
+        }
+        int last = m_size - 1;
+        double tr = trueRange(m_high[last], m_low[last], m_prevClose);
+        if (m_trCount >= m_atrPeriod) {
+            return (m_atr * (m_atrPeriod - 1) + tr) / m_atrPeriod;
+        }
+        return m_trCount + 1 >= m_atrPeriod ? (m_trSum + tr) / m_atrPeriod : Double.NaN;
+    }
+
+    /** ATR over the completed bars only. */
+    public double completedAtr() {
+        return m_atr;
+    }
+
+    public void clear() {
+        m_size = 0;
+        m_atr = Double.NaN;
+        m_trSum = 0;
+        m_trCount = 0;
+        m_prevClose = Double.NaN;
+    }
+
+    public static double trueRange(double high, double low, double prevClose) {
+        double range = high - low;
+        if (Double.isNaN(prevClose)) {
+            return range;
+        }
+        return Math.max(range, Math.max(Math.abs(high - prevClose), Math.abs(low - prevClose)));
+    }
+
+    // start a new bar, completing the last one
+    private void append(long time) {
+        if (m_size > 0) {
+            complete(m_size - 1);
+        }
+        if (m_size == m_time.length) {
+            if (m_size == m_capacity) {
+                drop(m_size / 2);
+            } else {
+                grow(Math.min(m_capacity, m_size * 2));
+            }
+        }
+        m_time[m_size++] = time;
+    }
+
+    private void complete(int i) {
+        double tr = trueRange(m_high[i], m_low[i], m_prevClose);
+        m_prevClose = m_close[i];
+        if (m_trCount < m_atrPeriod) {
+            m_trSum += tr;
+            if (++m_trCount == m_atrPeriod) {
+                m_atr = m_trSum / m_atrPeriod;
+            }
+        } else {
+            m_atr = (m_atr * (m_atrPeriod - 1) + tr) / m_atrPeriod;
+        }
+    }
+
+    private void drop(int count) {
+        int keep = m_size - count;
+        System.arraycopy(m_time, count, m_time, 0, keep);
+        System.arraycopy(m_open, count, m_open, 0, keep);
+        System.arraycopy(m_high, count, m_high, 0, keep);
+        System.arraycopy(m_low, count, m_low, 0, keep);
+        System.arraycopy(m_close, count, m_close, 0, keep);
+        System.arraycopy(m_volume, count, m_volume, 0, keep);
+        m_size = keep;
+    }
+
+    private void grow(int capacity) {
+        m_time = Arrays.copyOf(m_time, capacity);
+        m_open = Arrays.copyOf(m_open, capacity);
+        m_high = Arrays.copyOf(m_high, capacity);
+        m_low = Arrays.copyOf(m_low, capacity);
+        m_close = Arrays.copyOf(m_close, capacity);
+        m_volume = Arrays.copyOf(m_volume, capacity);
+    }
+}
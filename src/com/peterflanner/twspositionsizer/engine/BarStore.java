@@ -0,0 +1,221 @@
+package com.peterflanner.twspositionsizer.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+
+/**
+ * Bars on disk, one series per conid and bar size, so history is fetched from TWS once and only the bars since the
+ * last session are requested after that. Each series is six append-only files in the store's directory, one per
+ * column ({@code <conid>_<barSeconds>.time}, {@code .open}, ...), holding little endian longs and doubles in time
+ * order. Reads go through read-only memory maps of the columns, so finding a range is a binary search over the time
+ * column and a scan reads the page cache directly, without copying or parsing.
+ * <p>
+ * Appends write the price columns before the time column, and a series opened after a crash is cut back to its
+ * shortest column, so a torn append loses that append and nothing else. Not thread safe; callers guard it.
+ */
+public class BarStore implements Closeable {
+    static final String[] COLUMNS = { "time", "open", "high", "low", "close", "volume" };
+    private static final int TIME = 0, OPEN = 1, HIGH = 2, LOW = 3, CLOSE = 4, VOLUME = 5;
+
+    private final File m_dir;
+    private final HashMap<Long, Series> m_series = new HashMap<>();
+
+    public BarStore(File dir) {
+        m_dir = dir;
+    }
+
+    public File dir() {
+        return m_dir;
+    }
+
+    /** The series of a contract at one bar size, created empty if it isn't on disk yet. */
+    public Series series(int conid, int barSeconds) throws IOException {
+        Long key = ((long) conid << 32) | (barSeconds & 0xFFFFFFFFL);
+        Series series = m_series.get(key);
+        if (series == null) {
+            if (!m_dir.isDirectory() && !m_dir.mkdirs()) {
+                throw new IOException("Could not create " + m_dir);
+            }
+            series = new Series(new File(m_dir, conid + "_" + barSeconds));
+            m_series.put(key, series);
+        }
+        return series;
+    }
+
+    @Override public void close() throws IOException {
+        IOException error = null;
+        for (Series series : m_series.values()) {
+            try {
+                series.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        m_series.clear();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public static class Series implements IBars, Closeable {
+        private final FileChannel[] m_channels = new FileChannel[COLUMNS.length];
+        private int m_size;
+        // read-only views of the first m_mapped bars, remapped when a read goes past them
+        private LongBuffer m_time;
+        private DoubleBuffer m_open;
+        private DoubleBuffer m_high;
+        private DoubleBuffer m_low;
+        private DoubleBuffer m_close;
+        private LongBuffer m_volume;
+        private int m_mapped = -1;
+
+        Series(File base) throws IOException {
+            long shortest = Long.MAX_VALUE;
+            try {
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    m_channels[i] = FileChannel.open(new File(base.getPath() + "." + COLUMNS[i]).toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    shortest = Math.min(shortest, m_channels[i].size() / 8);
+                }
+                for (FileChannel channel : m_channels) {
+                    if (channel.size() > shortest * 8) {
+                        channel.truncate(shortest * 8);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            m_size = (int) shortest;
+        }
+
+        @Override public int size() { return m_size; }
+        @Override public long time(int i) { return map().m_time.get(i); }
+        @Override public double open(int i) { return map().m_open.get(i); }
+        @Override public double high(int i) { return map().m_high.get(i); }
+        @Override public double low(int i) { return map().m_low.get(i); }
+        @Override public double close(int i) { return map().m_close.get(i); }
+        @Override public long volume(int i) { return map().m_volume.get(i); }
+
+        /** Start time of the last bar, 0 if there are none. */
+        public long lastTime() {
+            return m_size == 0 ? 0 : time(m_size - 1);
+        }
+
+        /** Index of the first bar starting at or after the time, size() if there is none. */
+        public int indexOf(long time) {
+            map();
+            int lo = 0;
+            int hi = m_size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (m_time.get(mid) < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Append the bars of an in memory series that start at or after the last stored bar. The last stored bar is
+         * overwritten rather than repeated, it may have been stored while still forming.
+         * @return bars written
+         */
+        public int append(BarSeries bars) throws IOException {
+            long last = lastTime();
+            int from = 0;
+            while (from < bars.size() && bars.time(from) < last) {
+                from++;
+            }
+            int count = bars.size() - from;
+            if (count == 0) {
+                return 0;
+            }
+            int at = m_size > 0 && bars.time(from) == last ? m_size - 1 : m_size;
+            ByteBuffer[] columns = new ByteBuffer[COLUMNS.length];
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = ByteBuffer.allocate(count * 8).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            for (int i = from; i < bars.size(); i++) {
+                columns[TIME].putLong(bars.time(i));
+                columns[OPEN].putDouble(bars.open(i));
+                columns[HIGH].putDouble(bars.high(i));
+                columns[LOW].putDouble(bars.low(i));
+                columns[CLOSE].putDouble(bars.close(i));
+                columns[VOLUME].putLong(bars.volume(i));
+            }
+            // the time column goes last, it's what makes the bars visible to the next open
+            for (int c = COLUMNS.length - 1; c >= 0; c--) {
+                ByteBuffer column = columns[c];
+                column.flip();
+                long position = (long) at * 8;
+                while (column.hasRemaining()) {
+                    position += m_channels[c].write(column, position);
+                }
+            }
+            m_size = at + count;
+            // an overwritten bar is already mapped, make the next read see the new values
+            if (at < m_mapped) {
+                m_mapped = -1;
+            }
+            return count;
+        }
+
+        /** Feed the stored bars from an index on into an in memory series, e.g. the last few hundred for an ATR. */
+        public void load(BarSeries into, int from) {
+            map();
+            for (int i = Math.max(0, from); i < m_size; i++) {
+                into.bar(m_time.get(i), m_open.get(i), m_high.get(i), m_low.get(i), m_close.get(i), m_volume.get(i));
+            }
+        }
+
+        @Override public void close() throws IOException {
+            IOException error = null;
+            for (FileChannel channel : m_channels) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private Series map() {
+            if (m_mapped != m_size) {
+                try {
+                    m_time = buffer(TIME).asLongBuffer();
+                    m_open = buffer(OPEN).asDoubleBuffer();
+                    m_high = buffer(HIGH).asDoubleBuffer();
+                    m_low = buffer(LOW).asDoubleBuffer();
+                    m_close = buffer(CLOSE).asDoubleBuffer();
+                    m_volume = buffer(VOLUME).asLongBuffer();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not map bars", e);
+                }
+                m_mapped = m_size;
+            }
+            return this;
+        }
+
+        private ByteBuffer buffer(int column) throws IOException {
+            MappedByteBuffer buffer = m_channels[column].map(FileChannel.MapMode.READ_ONLY, 0, (long) m_size * 8);
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
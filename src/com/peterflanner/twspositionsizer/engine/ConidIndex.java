@@ -0,0 +1,132 @@
+package com.peterflanner.twspositionsizer.engine;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from conid to a row number, without boxing. Not thread safe; callers guard it together with
+ * the arrays it indexes.
+ */
+public class ConidIndex {
+    public static final int NONE = -1;
+
+    private static final int EMPTY = 0; // IB never hands out conid 0
+
+    private int[] m_keys;
+    private int[] m_values;
+    private int m_mask;
+    private int m_size;
+
+    public ConidIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        m_keys = new int[capacity];
+        m_values = new int[capacity];
+        m_mask = capacity - 1;
+    }
+
+    /** A copy, e.g. to change and publish in place of the original while readers still use it. */
+    public ConidIndex(ConidIndex other) {
+        m_keys = other.m_keys.clone();
+        m_values = other.m_values.clone();
+        m_mask = other.m_mask;
+        m_size = other.m_size;
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    /** Row for the conid, or {@link #NONE}. */
+    public int get(int conid) {
+        for (int i = slot(conid); ; i = (i + 1) & m_mask) {
+            int key = m_keys[i];
+            if (key == conid) {
+                return m_values[i];
+            }
+            if (key == EMPTY) {
+                return NONE;
+            }
+        }
+    }
+
+    public void put(int conid, int row) {
+        if (conid == EMPTY) {
+            throw new IllegalArgumentException("conid 0");
+        }
+        if ((m_size + 1) * 2 > m_keys.length) {
+            grow();
+        }
+        for (int i = slot(conid); ; i = (i + 1) & m_mask) {
+            int key = m_keys[i];
+            if (key == conid) {
+                m_values[i] = row;
+                return;
+            }
+            if (key == EMPTY) {
+                m_keys[i] = conid;
+                m_values[i] = row;
+                m_size++;
+                return;
+            }
+        }
+    }
+
+    /** Remove the conid, returning its row or {@link #NONE}. */
+    public int remove(int conid) {
+        for (int i = slot(conid); ; i = (i + 1) & m_mask) {
+            int key = m_keys[i];
+            if (key == EMPTY) {
+                return NONE;
+            }
+            if (key == conid) {
+                int row = m_values[i];
+                shiftBack(i);
+                m_size--;
+                return row;
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(m_keys, EMPTY);
+        m_size = 0;
+    }
+
+    // backward shift deletion keeps probe chains intact without tombstones
+    private void shiftBack(int hole) {
+        int i = hole;
+        while (true) {
+            i = (i + 1) & m_mask;
+            int key = m_keys[i];
+            if (key == EMPTY) {
+                break;
+            }
+            int home = slot(key);
+            boolean movable = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+            if (movable) {
+                m_keys[hole] = key;
+                m_values[hole] = m_values[i];
+                hole = i;
+            }
+        }
+        m_keys[hole] = EMPTY;
+    }
+
+    private void grow() {
+        int[] keys = m_keys;
+        int[] values = m_values;
+        m_keys = new int[keys.length * 2];
+        m_values = new int[keys.length * 2];
+        m_mask = m_keys.length - 1;
+        m_size = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                put(keys[i], values[i]);
+            }
+        }
+    }
+
+    private int slot(int conid) {
+        int h = conid * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & m_mask;
+    }
+}
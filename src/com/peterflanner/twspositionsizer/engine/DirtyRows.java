@@ -0,0 +1,45 @@
+package com.peterflanner.twspositionsizer.engine;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free bitset of rows whose output changed since a view last looked. Writers flag rows from any thread; the view
+ * drains the set once per frame and repaints only what it visits.
+ */
+public class DirtyRows {
+    public interface IRowVisitor {
+        void row(int row);
+    }
+
+    private final AtomicLongArray m_words;
+
+    public DirtyRows(int capacity) {
+        m_words = new AtomicLongArray((capacity + 63) >>> 6);
+    }
+
+    public void mark(int row) {
+        int word = row >>> 6;
+        long bit = 1L << row;
+        long prev;
+        do {
+            prev = m_words.get(word);
+        } while ((prev & bit) == 0 && !m_words.compareAndSet(word, prev, prev | bit));
+    }
+
+    /** Visit and clear every flagged row below size. Rows at or above size are cleared without a visit. */
+    public void drain(int size, IRowVisitor visitor) {
+        for (int word = 0; word < m_words.length(); word++) {
+            if (m_words.get(word) == 0) {
+                continue;
+            }
+            long bits = m_words.getAndSet(word, 0);
+            while (bits != 0) {
+                int row = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (row < size) {
+                    visitor.row(row);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.peterflanner.twspositionsizer.engine;
+
+/**
+ * Read access to bars in time order, by index, whether they're held in memory ({@link BarSeries}) or mapped from
+ * disk ({@link BarStore.Series}).
+ */
+public interface IBars {
+    int size();
+    /** Start of the bar in epoch seconds. */
+    long time(int i);
+    double open(int i);
+    double high(int i);
+    double low(int i);
+    double close(int i);
+    long volume(int i);
+}
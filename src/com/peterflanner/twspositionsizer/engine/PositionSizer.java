@@ -0,0 +1,176 @@
+package com.peterflanner.twspositionsizer.engine;
+
+/**
+ * Position sizing rules on primitive values, with no Swing or IB dependencies. A sizer holds the risk/stop modes and
+ * the round lot; {@link #size} writes into a caller owned {@link Result} so a call never allocates and can be made
+ * on every tick.
+ */
+public class PositionSizer {
+    public static final int DEFAULT_ROUND_LOT = 100;
+    public static final double DEFAULT_ATR_MULTIPLE = 2.0;
+
+    /** How the value of a position compares to the account's buying power, excess liquidity and cash. */
+    public enum Tier {
+        /** Not all of the account values are known yet. */
+        UNKNOWN,
+        WITHIN_CASH,
+        OVER_CASH,
+        OVER_EXCESS_LIQUIDITY,
+        OVER_BUYING_POWER
+    }
+
+    /** Output of {@link PositionSizer#size}. Reuse one instance per caller. */
+    public static class Result {
+        private double m_riskValue;
+        private double m_stopPrice;
+        private int m_shares;
+        private int m_totalShares;
+        private boolean m_capped;
+        private double m_value;
+        private Tier m_tier = Tier.UNKNOWN;
+
+        /** Risk in dollars after converting a percent of NLV. */
+        public double riskValue() { return m_riskValue; }
+        /** Stop price after converting a percent of the current price. */
+        public double stopPrice() { return m_stopPrice; }
+        /** Shares to buy (positive) or sell short (negative), on top of any position already held. */
+        public int shares() { return m_shares; }
+        /** Shares the whole position should have for the risk, including what is already held. */
+        public int totalShares() { return m_totalShares; }
+        /** True if the shares were cut down to the {@link PositionSizer#riskCap}. */
+        public boolean capped() { return m_capped; }
+        public double value() { return m_value; }
+        public Tier tier() { return m_tier; }
+    }
+
+    private boolean m_riskIsPercent;
+    private boolean m_stopIsPercent;
+    private int m_roundLot = DEFAULT_ROUND_LOT;
+    private double m_riskCap = Double.NaN;
+
+    public boolean riskIsPercent() { return m_riskIsPercent; }
+    public void riskIsPercent(boolean v) { m_riskIsPercent = v; }
+    public boolean stopIsPercent() { return m_stopIsPercent; }
+    public void stopIsPercent(boolean v) { m_stopIsPercent = v; }
+    public int roundLot() { return m_roundLot; }
+    public void roundLot(int v) { m_roundLot = v; }
+    /** Most a single trade may add in risk, e.g. what's left of a portfolio heat limit. NaN for no cap. */
+    public double riskCap() { return m_riskCap; }
+    public void riskCap(double v) { m_riskCap = v; }
+
+    /**
+     * Size a position.
+     * @param nlv net liquidation value, only used when risk is a percent
+     * @param price current price of the contract
+     * @param risk max risk, percent of nlv or dollars
+     * @param stop stop loss, absolute price or percent away from the current price (e.g. -1.0)
+     * @param buyingPower account buying power, negative if unknown
+     * @param excessLiquidity account excess liquidity, negative if unknown
+     * @param totalCashValue account cash, negative if unknown
+     * @param out receives the result
+     */
+    public void size(double nlv, double price, double risk, double stop,
+                     double buyingPower, double excessLiquidity, double totalCashValue, Result out) {
+        size(nlv, price, risk, 0, 0, stop, buyingPower, excessLiquidity, totalCashValue, out);
+    }
+
+    /**
+     * Size a position on a symbol that may already be held or have orders working. The max risk is the target for
+     * the whole position: working orders' risk is taken off it, and the shares already held are taken off the result.
+     * @param openRisk dollars at risk in working orders, taken off the max risk
+     * @param position shares already held, negative if short
+     * @see #size(double, double, double, double, double, double, double, Result)
+     */
+    public void size(double nlv, double price, double risk, double openRisk, int position, double stop,
+                     double buyingPower, double excessLiquidity, double totalCashValue, Result out) {
+        out.m_riskValue = remainingRisk(riskValue(nlv, risk, m_riskIsPercent), openRisk);
+        out.m_stopPrice = stopPrice(price, stop, m_stopIsPercent);
+        out.m_totalShares = shares(out.m_riskValue, price, out.m_stopPrice, m_roundLot);
+        int shares = additionalShares(out.m_totalShares, position);
+        out.m_shares = capShares(shares, price, out.m_stopPrice, m_riskCap, m_roundLot);
+        out.m_capped = out.m_shares != shares;
+        out.m_value = value(out.m_shares, price);
+        out.m_tier = tier(out.m_value, buyingPower, excessLiquidity, totalCashValue);
+    }
+
+    /** Risk in dollars, NaN if it is a percent of an NLV that isn't known yet, which sizes to no shares. */
+    public static double riskValue(double nlv, double risk, boolean riskIsPercent) {
+        if (!riskIsPercent) {
+            return risk;
+        }
+        return nlv > 0 ? nlv * risk / 100 : Double.NaN;
+    }
+
+    /** Risk left after the open risk, never negative. */
+    public static double remainingRisk(double riskValue, double openRisk) {
+        return openRisk > 0 ? Math.max(0, riskValue - openRisk) : riskValue;
+    }
+
+    public static double stopPrice(double price, double stop, boolean stopIsPercent) {
+        return stopIsPercent ? (1 + (stop / 100)) * price : stop;
+    }
+
+    /**
+     * A stop a multiple of the average true range away from the entry, below it for a long and above it for a short.
+     * NaN if the ATR isn't known.
+     */
+    public static double atrStop(double entry, double atr, double multiple, boolean isLong) {
+        if (!(atr > 0) || !(entry > 0)) {
+            return Double.NaN;
+        }
+        return isLong ? entry - multiple * atr : entry + multiple * atr;
+    }
+
+    /**
+     * Shares that risk riskValue between price and stopPrice. Long positions above one round lot are floored to the
+     * nearest round lot; a stop above the price gives a negative (short) count. Returns 0 if the inputs don't
+     * describe a position.
+     */
+    public static int shares(double riskValue, double price, double stopPrice, int roundLot) {
+        double riskPerShare = price - stopPrice;
+        if (!(price > 0) || riskPerShare == 0 || Double.isNaN(riskPerShare)) {
+            return 0;
+        }
+        int shares = (int) (riskValue / riskPerShare); // truncation is fine, this is just an estimate
+        if (roundLot > 1 && shares > roundLot) {
+            shares = shares / roundLot * roundLot;
+        }
+        return shares;
+    }
+
+    /**
+     * Shares to add to a position to reach the total. Never suggests trimming: a position already at or beyond the
+     * total gives 0, while one on the other side is reversed.
+     */
+    public static int additionalShares(int totalShares, int position) {
+        int additional = totalShares - position;
+        return Integer.signum(additional) == Integer.signum(totalShares) ? additional : 0;
+    }
+
+    /** Cut the shares down to those that risk no more than riskCap, which is ignored if NaN. */
+    public static int capShares(int shares, double price, double stopPrice, double riskCap, int roundLot) {
+        if (shares == 0 || Double.isNaN(riskCap)) {
+            return shares;
+        }
+        int most = Math.abs(shares(riskCap, price, stopPrice, roundLot));
+        return Math.abs(shares) <= most ? shares : Integer.signum(shares) * most;
+    }
+
+    /** Value of the shares at the price, 0 for no shares even if the price isn't known. */
+    public static double value(int shares, double price) {
+        return shares == 0 ? 0 : shares * price;
+    }
+
+    public static Tier tier(double value, double buyingPower, double excessLiquidity, double totalCashValue) {
+        if (buyingPower >= 0 && value > buyingPower) {
+            return Tier.OVER_BUYING_POWER;
+        } else if (excessLiquidity >= 0 && value > excessLiquidity) {
+            return Tier.OVER_EXCESS_LIQUIDITY;
+        } else if (totalCashValue >= 0 && value > totalCashValue) {
+            return Tier.OVER_CASH;
+        } else if (buyingPower >= 0 && excessLiquidity >= 0 && totalCashValue >= 0) {
+            return Tier.WITHIN_CASH;
+        }
+        return Tier.UNKNOWN;
+    }
+}
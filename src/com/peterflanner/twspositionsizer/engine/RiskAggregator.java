@@ -0,0 +1,145 @@
+package com.peterflanner.twspositionsizer.engine;
+
+import java.util.Arrays;
+
+/**
+ * Portfolio heat: what the account would lose if every position were stopped out, (price - stop) x shares summed over
+ * the positions that have a working stop. The price is the last trade once one is known, the entry price until then.
+ * <p>
+ * Each input recomputes only its own contract's row and moves the difference into the running total, so fills, stop
+ * changes and ticks cost the same however many positions the account holds. Positions without a stop carry no
+ * defined risk and are counted separately. Not thread safe; callers guard it.
+ */
+public class RiskAggregator {
+    private final ConidIndex m_index;
+    private int[] m_position;
+    private double[] m_entry;
+    private double[] m_price;
+    private int[] m_stopShares;
+    private double[] m_stopPrice;
+    private double[] m_risk;
+    private boolean[] m_unprotected;
+    private int m_size;
+
+    private double m_total;
+    private int m_unprotectedCount;
+    private long m_updates;
+
+    public RiskAggregator(int expectedPositions) {
+        m_index = new ConidIndex(expectedPositions);
+        grow(Math.max(16, expectedPositions));
+    }
+
+    /** Shares held, negative if short, and the average entry price. */
+    public void position(int conid, int position, double entry) {
+        int row = row(conid);
+        m_position[row] = position;
+        m_entry[row] = entry;
+        update(row);
+    }
+
+    /** Last price of the contract. */
+    public void price(int conid, double price) {
+        int row = m_index.get(conid);
+        if (row != ConidIndex.NONE && price > 0 && price != m_price[row]) {
+            m_price[row] = price;
+            update(row);
+        }
+    }
+
+    /**
+     * Working stops on the contract.
+     * @param shares shares the stops would close, 0 if there are none
+     * @param stopPrice average stop price over those shares
+     */
+    public void stop(int conid, int shares, double stopPrice) {
+        int row = row(conid);
+        m_stopShares[row] = shares;
+        m_stopPrice[row] = stopPrice;
+        update(row);
+    }
+
+    /** Forget every position, e.g. when switching accounts. */
+    public void clear() {
+        m_index.clear();
+        m_size = 0;
+        m_total = 0;
+        m_unprotectedCount = 0;
+    }
+
+    /** Dollars lost if every stop is hit. */
+    public double total() {
+        return m_total;
+    }
+
+    /** Risk of a single contract, 0 if it isn't held or has no stop. */
+    public double risk(int conid) {
+        int row = m_index.get(conid);
+        return row == ConidIndex.NONE ? 0 : m_risk[row];
+    }
+
+    /** Positions with shares that no stop protects. */
+    public int unprotected() {
+        return m_unprotectedCount;
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    /** Number of row recomputes, one per input that arrived. */
+    public long updates() {
+        return m_updates;
+    }
+
+    private int row(int conid) {
+        int row = m_index.get(conid);
+        if (row == ConidIndex.NONE) {
+            if (m_size == m_position.length) {
+                grow(m_size * 2);
+            }
+            row = m_size++;
+            m_index.put(conid, row);
+            m_position[row] = 0;
+            m_entry[row] = 0;
+            m_price[row] = 0;
+            m_stopShares[row] = 0;
+            m_stopPrice[row] = Double.NaN;
+            m_risk[row] = 0;
+            m_unprotected[row] = false;
+        }
+        return row;
+    }
+
+    private void update(int row) {
+        m_updates++;
+        int position = m_position[row];
+        int shares = Math.abs(position);
+        int protectedShares = Math.min(shares, m_stopShares[row]);
+        double risk = 0;
+        if (protectedShares > 0 && !Double.isNaN(m_stopPrice[row])) {
+            double price = m_price[row] > 0 ? m_price[row] : m_entry[row];
+            // a long loses when the price falls to the stop, a short when it rises
+            double direction = position > 0 ? 1 : -1;
+            risk = protectedShares * Math.max(0, direction * (price - m_stopPrice[row]));
+        }
+        m_total += risk - m_risk[row];
+        m_risk[row] = risk;
+
+        boolean unprotected = protectedShares < shares;
+        if (unprotected != m_unprotected[row]) {
+            m_unprotected[row] = unprotected;
+            m_unprotectedCount += unprotected ? 1 : -1;
+        }
+    }
+
+    private void grow(int capacity) {
+        m_position = m_position == null ? new int[capacity] : Arrays.copyOf(m_position, capacity);
+        m_entry = m_entry == null ? new double[capacity] : Arrays.copyOf(m_entry, capacity);
+        m_price = m_price == null ? new double[capacity] : Arrays.copyOf(m_price, capacity);
+        m_stopShares = m_stopShares == null ? new int[capacity] : Arrays.copyOf(m_stopShares, capacity);
+        m_stopPrice = m_stopPrice == null ? new double[capacity] : Arrays.copyOf(m_stopPrice, capacity);
+        m_risk = m_risk == null ? new double[capacity] : Arrays.copyOf(m_risk, capacity);
+        m_unprotected = m_unprotected == null ? new boolean[capacity] : Arrays.copyOf(m_unprotected, capacity);
+    }
+}
@@ -0,0 +1,220 @@
+package com.peterflanner.twspositionsizer.engine;
+
+/**
+ * Incremental sizing of a single trade. Each input remembers whether it actually changed, and {@link #recompute}
+ * only re-evaluates the nodes downstream of changed inputs:
+ * <pre>
+ *   nlv, risk, risk mode, open risk -> risk value --+
+ *   price, stop, stop mode ---------> stop price ---+-> shares -> value -> tier
+ *   position, risk cap ------------------------------+
+ *   buying power, excess liquidity, cash -------------------------------+
+ * </pre>
+ * Setting an input to the value it already has is free, so callers can feed every tick and every account update
+ * straight in and recompute once per frame. Every node is one of {@link PositionSizer}'s rules, so the outputs are
+ * always what {@link PositionSizer#size} gives for the same inputs; HotPathBenchmarks checks that on random input
+ * changes. Not thread safe; the Position Sizer drives it from the EDT.
+ */
+public class SizingGraph {
+    // inputs
+    private static final int PRICE = 1;
+    private static final int NLV = 1 << 1;
+    private static final int RISK = 1 << 2;
+    private static final int STOP = 1 << 3;
+    private static final int RISK_MODE = 1 << 4;
+    private static final int STOP_MODE = 1 << 5;
+    private static final int ACCOUNT = 1 << 6;
+    private static final int OPEN_RISK = 1 << 7;
+    private static final int POSITION = 1 << 8;
+    private static final int RISK_CAP = 1 << 9;
+
+    // outputs reported by recompute
+    public static final int SHARES_CHANGED = 1;
+    public static final int VALUE_CHANGED = 1 << 1;
+    public static final int TIER_CHANGED = 1 << 2;
+
+    private final int m_roundLot;
+
+    private double m_price = Double.NaN;
+    private double m_nlv = -1.0;
+    private double m_risk = Double.NaN;
+    private double m_stop = Double.NaN;
+    private double m_openRisk;
+    private int m_position;
+    private double m_riskCap = Double.NaN;
+    private boolean m_riskIsPercent;
+    private boolean m_stopIsPercent;
+    private double m_buyingPower = -1.0;
+    private double m_excessLiquidity = -1.0;
+    private double m_totalCashValue = -1.0;
+    private int m_dirty;
+
+    private double m_riskValue = Double.NaN;
+    private double m_stopPrice = Double.NaN;
+    private int m_shares;
+    private double m_value;
+    private PositionSizer.Tier m_tier = PositionSizer.Tier.UNKNOWN;
+    private long m_recomputes;
+
+    public SizingGraph() {
+        this(PositionSizer.DEFAULT_ROUND_LOT);
+    }
+
+    public SizingGraph(int roundLot) {
+        m_roundLot = roundLot;
+    }
+
+    /** Current price, NaN or negative if unknown. */
+    public void price(double price) {
+        if (changed(m_price, price)) {
+            m_price = price;
+            m_dirty |= PRICE;
+        }
+    }
+
+    /** Net liquidation value, negative if unknown. */
+    public void nlv(double nlv) {
+        if (changed(m_nlv, nlv)) {
+            m_nlv = nlv;
+            m_dirty |= NLV;
+        }
+    }
+
+    /** Max risk, dollars or percent of NLV, NaN if not entered. */
+    public void risk(double risk) {
+        if (changed(m_risk, risk)) {
+            m_risk = risk;
+            m_dirty |= RISK;
+        }
+    }
+
+    /** Stop loss, absolute or percent away from the price, NaN if not entered. */
+    public void stop(double stop) {
+        if (changed(m_stop, stop)) {
+            m_stop = stop;
+            m_dirty |= STOP;
+        }
+    }
+
+    /** Dollars already at risk on the symbol, taken off the max risk. */
+    public void openRisk(double openRisk) {
+        if (changed(m_openRisk, openRisk)) {
+            m_openRisk = openRisk;
+            m_dirty |= OPEN_RISK;
+        }
+    }
+
+    /** Shares already held, negative if short; the output is what to add on top. */
+    public void position(int position) {
+        if (m_position != position) {
+            m_position = position;
+            m_dirty |= POSITION;
+        }
+    }
+
+    /** Most the trade may add in risk, NaN for no cap. */
+    public void riskCap(double riskCap) {
+        if (changed(m_riskCap, riskCap)) {
+            m_riskCap = riskCap;
+            m_dirty |= RISK_CAP;
+        }
+    }
+
+    public void riskIsPercent(boolean riskIsPercent) {
+        if (m_riskIsPercent != riskIsPercent) {
+            m_riskIsPercent = riskIsPercent;
+            m_dirty |= RISK_MODE;
+        }
+    }
+
+    public void stopIsPercent(boolean stopIsPercent) {
+        if (m_stopIsPercent != stopIsPercent) {
+            m_stopIsPercent = stopIsPercent;
+            m_dirty |= STOP_MODE;
+        }
+    }
+
+    /** Account values for the buying power tiers, negative if unknown. */
+    public void account(double buyingPower, double excessLiquidity, double totalCashValue) {
+        if (changed(m_buyingPower, buyingPower) || changed(m_excessLiquidity, excessLiquidity) || changed(m_totalCashValue, totalCashValue)) {
+            m_buyingPower = buyingPower;
+            m_excessLiquidity = excessLiquidity;
+            m_totalCashValue = totalCashValue;
+            m_dirty |= ACCOUNT;
+        }
+    }
+
+    /** True if an input changed since the last {@link #recompute}. */
+    public boolean isDirty() {
+        return m_dirty != 0;
+    }
+
+    /**
+     * Re-evaluate whatever depends on the inputs that changed.
+     * @return a mask of {@link #SHARES_CHANGED}, {@link #VALUE_CHANGED} and {@link #TIER_CHANGED}, 0 if nothing
+     * visible changed
+     */
+    public int recompute() {
+        int dirty = m_dirty;
+        if (dirty == 0) {
+            return 0;
+        }
+        m_dirty = 0;
+        m_recomputes++;
+
+        boolean sharesInputs = (dirty & (PRICE | POSITION | RISK_CAP)) != 0;
+        if ((dirty & (NLV | RISK | RISK_MODE | OPEN_RISK)) != 0) {
+            double riskValue = PositionSizer.remainingRisk(PositionSizer.riskValue(m_nlv, m_risk, m_riskIsPercent), m_openRisk);
+            if (changed(m_riskValue, riskValue)) {
+                m_riskValue = riskValue;
+                sharesInputs = true;
+            }
+        }
+        if ((dirty & (PRICE | STOP | STOP_MODE)) != 0) {
+            double stopPrice = PositionSizer.stopPrice(m_price, m_stop, m_stopIsPercent);
+            if (changed(m_stopPrice, stopPrice)) {
+                m_stopPrice = stopPrice;
+                sharesInputs = true;
+            }
+        }
+
+        int changed = 0;
+        boolean valueInputs = (dirty & PRICE) != 0;
+        if (sharesInputs) {
+            int shares = PositionSizer.capShares(
+                    PositionSizer.additionalShares(PositionSizer.shares(m_riskValue, m_price, m_stopPrice, m_roundLot), m_position),
+                    m_price, m_stopPrice, m_riskCap, m_roundLot);
+            if (shares != m_shares) {
+                m_shares = shares;
+                changed |= SHARES_CHANGED;
+                valueInputs = true;
+            }
+        }
+        boolean tierInputs = (dirty & ACCOUNT) != 0;
+        if (valueInputs) {
+            double value = PositionSizer.value(m_shares, m_price);
+            if (value != m_value) {
+                m_value = value;
+                changed |= VALUE_CHANGED;
+                tierInputs = true;
+            }
+        }
+        if (tierInputs) {
+            PositionSizer.Tier tier = PositionSizer.tier(m_value, m_buyingPower, m_excessLiquidity, m_totalCashValue);
+            if (tier != m_tier) {
+                m_tier = tier;
+                changed |= TIER_CHANGED;
+            }
+        }
+        return changed;
+    }
+
+    public int shares() { return m_shares; }
+    public double value() { return m_value; }
+    public PositionSizer.Tier tier() { return m_tier; }
+    /** Number of recomputes that had a changed input to work on. */
+    public long recomputes() { return m_recomputes; }
+
+    private static boolean changed(double oldValue, double newValue) {
+        return Double.doubleToLongBits(oldValue) != Double.doubleToLongBits(newValue);
+    }
+}
@@ -0,0 +1,222 @@
+package com.peterflanner.twspositionsizer.engine;
+
+/**
+ * Sizes a list of contracts at once. Rows are stored as parallel primitive arrays indexed through a
+ * {@link ConidIndex}, so a tick is a lookup plus a few array writes. Every row whose output changes is flagged in a
+ * dirty bitset that the view drains once per frame.
+ * <p>
+ * Like the single sizer, each row takes off the shares already held and the risk of its working orders, and no row
+ * risks more than what's left of the portfolio heat limit, see {@link #exposure} and {@link #riskCap}.
+ * <p>
+ * Writers (ticks from the dispatcher threads, edits from the EDT) synchronize on the watchlist. Readers of the row
+ * accessors don't lock; a torn read is repainted on the next frame because the row is still flagged.
+ */
+public class Watchlist {
+    private final int m_capacity;
+    private final ConidIndex m_index;
+    private final int[] m_conids;
+    private final String[] m_symbols;
+    private final double[] m_prices;
+    // the price stopped streaming, the row isn't sized until a fresh one arrives
+    private final boolean[] m_stale;
+    private final double[] m_stops;
+    // shares held and dollars at risk in working orders, in the account being sized
+    private final int[] m_positions;
+    private final double[] m_openRisks;
+    private final int[] m_shares;
+    private final double[] m_values;
+    private final byte[] m_tiers;
+    private final DirtyRows m_dirty;
+    private volatile int m_size;
+
+    private final PositionSizer m_sizer;
+    private final PositionSizer.Result m_result = new PositionSizer.Result();
+    private double m_risk;
+    private double m_nlv = -1.0;
+    private double m_buyingPower = -1.0;
+    private double m_excessLiquidity = -1.0;
+    private double m_totalCashValue = -1.0;
+
+    private static final PositionSizer.Tier[] TIERS = PositionSizer.Tier.values();
+
+    public Watchlist(int capacity, PositionSizer sizer) {
+        m_capacity = capacity;
+        m_sizer = sizer;
+        m_index = new ConidIndex(capacity);
+        m_conids = new int[capacity];
+        m_symbols = new String[capacity];
+        m_prices = new double[capacity];
+        m_stale = new boolean[capacity];
+        m_stops = new double[capacity];
+        m_positions = new int[capacity];
+        m_openRisks = new double[capacity];
+        m_shares = new int[capacity];
+        m_values = new double[capacity];
+        m_tiers = new byte[capacity];
+        m_dirty = new DirtyRows(capacity);
+    }
+
+    public int capacity() { return m_capacity; }
+    public int size() { return m_size; }
+    public int conid(int row) { return m_conids[row]; }
+    public String symbol(int row) { return m_symbols[row]; }
+    public double price(int row) { return m_prices[row]; }
+    public boolean isStale(int row) { return m_stale[row]; }
+    public double stop(int row) { return m_stops[row]; }
+    public int position(int row) { return m_positions[row]; }
+    public double openRisk(int row) { return m_openRisks[row]; }
+    public int shares(int row) { return m_shares[row]; }
+    public double value(int row) { return m_values[row]; }
+    public PositionSizer.Tier tier(int row) { return TIERS[m_tiers[row]]; }
+
+    public synchronized int row(int conid) {
+        return m_index.get(conid);
+    }
+
+    /**
+     * Add a contract, or update the stop of one that's already listed.
+     * @return the row, or {@link ConidIndex#NONE} if the watchlist is full
+     */
+    public synchronized int add(int conid, String symbol, double stop) {
+        int row = m_index.get(conid);
+        if (row == ConidIndex.NONE) {
+            if (m_size == m_capacity) {
+                return ConidIndex.NONE;
+            }
+            row = m_size;
+            m_conids[row] = conid;
+            m_symbols[row] = symbol;
+            m_prices[row] = Double.NaN;
+            m_stale[row] = false;
+            m_positions[row] = 0;
+            m_openRisks[row] = 0;
+            m_index.put(conid, row);
+            m_size = row + 1;
+        }
+        m_stops[row] = stop;
+        recalculate(row);
+        return row;
+    }
+
+    /** Remove a contract by moving the last row into its place. Both rows are flagged dirty. */
+    public synchronized void remove(int conid) {
+        int row = m_index.remove(conid);
+        if (row == ConidIndex.NONE) {
+            return;
+        }
+        int last = m_size - 1;
+        if (row != last) {
+            m_conids[row] = m_conids[last];
+            m_symbols[row] = m_symbols[last];
+            m_prices[row] = m_prices[last];
+            m_stale[row] = m_stale[last];
+            m_stops[row] = m_stops[last];
+            m_positions[row] = m_positions[last];
+            m_openRisks[row] = m_openRisks[last];
+            m_shares[row] = m_shares[last];
+            m_values[row] = m_values[last];
+            m_tiers[row] = m_tiers[last];
+            m_index.put(m_conids[row], row);
+            markDirty(row);
+        }
+        m_symbols[last] = null;
+        m_size = last;
+        markDirty(last);
+    }
+
+    /** Latest price for a contract. Unknown conids are ignored. */
+    public synchronized void price(int conid, double price) {
+        int row = m_index.get(conid);
+        if (row != ConidIndex.NONE && (m_prices[row] != price || m_stale[row])) {
+            m_prices[row] = price;
+            m_stale[row] = false;
+            recalculate(row);
+            markDirty(row);
+        }
+    }
+
+    /** The contract's price stopped streaming. Its row keeps the last price but sizes to nothing until the next one. */
+    public synchronized void stale(int conid) {
+        int row = m_index.get(conid);
+        if (row != ConidIndex.NONE && !m_stale[row]) {
+            m_stale[row] = true;
+            recalculate(row);
+            markDirty(row);
+        }
+    }
+
+    public synchronized void stopAt(int row, double stop) {
+        if (row < m_size) {
+            m_stops[row] = stop;
+            recalculate(row);
+        }
+    }
+
+    /** The position held in the row's contract and the risk of its working orders. Re-sizes the row if they changed. */
+    public synchronized void exposure(int row, int position, double openRisk) {
+        if (row < m_size && (m_positions[row] != position || m_openRisks[row] != openRisk)) {
+            m_positions[row] = position;
+            m_openRisks[row] = openRisk;
+            recalculate(row);
+        }
+    }
+
+    /** Most dollars any one row may risk, what's left of the heat limit, NaN for no cap. Re-sizes every row. */
+    public synchronized void riskCap(double riskCap) {
+        if (Double.compare(riskCap, m_sizer.riskCap()) != 0) {
+            m_sizer.riskCap(riskCap);
+            recalculateAll();
+        }
+    }
+
+    /** Max risk in the sizer's units (dollars or percent of NLV). Re-sizes every row. */
+    public synchronized void risk(double risk) {
+        m_risk = risk;
+        recalculateAll();
+    }
+
+    /** Account values used for percent risk and the buying power tiers, negative if unknown. Re-sizes every row. */
+    public synchronized void account(double nlv, double buyingPower, double excessLiquidity, double totalCashValue) {
+        m_nlv = nlv;
+        m_buyingPower = buyingPower;
+        m_excessLiquidity = excessLiquidity;
+        m_totalCashValue = totalCashValue;
+        recalculateAll();
+    }
+
+    public synchronized void recalculateAll() {
+        for (int row = 0; row < m_size; row++) {
+            recalculate(row);
+        }
+    }
+
+    /** Visit and clear every dirty row below the current size. */
+    public void drainDirty(DirtyRows.IRowVisitor visitor) {
+        m_dirty.drain(m_size, visitor);
+    }
+
+    // only called with the lock held
+    private void recalculate(int row) {
+        double price = m_prices[row];
+        int shares = 0;
+        double value = 0;
+        PositionSizer.Tier tier = PositionSizer.Tier.UNKNOWN;
+        if (price > 0 && !m_stale[row]) {
+            m_sizer.size(m_nlv, price, m_risk, m_openRisks[row], m_positions[row], m_stops[row], m_buyingPower,
+                    m_excessLiquidity, m_totalCashValue, m_result);
+            shares = m_result.shares();
+            value = m_result.value();
+            tier = m_result.tier();
+        }
+        if (shares != m_shares[row] || value != m_values[row] || tier.ordinal() != m_tiers[row]) {
+            m_shares[row] = shares;
+            m_values[row] = value;
+            m_tiers[row] = (byte) tier.ordinal();
+            markDirty(row);
+        }
+    }
+
+    private void markDirty(int row) {
+        m_dirty.mark(row);
+    }
+}
@@ -0,0 +1,782 @@
+package com.peterflanner.twspositionsizer.replay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ib.controller.NewContract;
+import com.ib.controller.NewContractDetails;
+import com.ib.controller.NewTickType;
+import com.peterflanner.twspositionsizer.engine.ConidIndex;
+
+/**
+ * A stand-in for TWS that replays a feed recorded by {@link FeedWriter} over the same socket protocol, so the sizer
+ * can be load tested without a live session. Replay starts when the first client streams market data and runs at the
+ * recorded pace, a multiple of it, or as fast as the socket takes it.
+ * <p>
+ * Ticks are sent to every client streaming the conid, using that client's request id. Account summary and display
+ * group records go to their subscribers as they are replayed. Contract details are reference data, so every contract
+ * in the feed is served from the start. Orders are acknowledged with an order status but never fill.
+ * <p>
+ * Only what the sizer sends is understood. Combo contracts are rejected, and orders must not use the optional
+ * algo, scale, hedge or delta neutral fields. Anything else closes the client's connection with a message on stdout.
+ * <p>
+ * Usage: {@code java -cp target/classes:lib/javaclient.jar com.peterflanner.twspositionsizer.replay.FakeTwsServer
+ * feed.bin [-port 7497] [-speed 1|10|max] [-loop] [-accounts DU123,DU456]}
+ */
+public class FakeTwsServer {
+    public static final int SERVER_VERSION = 70;
+    public static final int DEFAULT_PORT = 7497;
+
+    // client -> server
+    private static final int REQ_MKT_DATA = 1;
+    private static final int CANCEL_MKT_DATA = 2;
+    private static final int PLACE_ORDER = 3;
+    private static final int CANCEL_ORDER = 4;
+    private static final int REQ_OPEN_ORDERS = 5;
+    private static final int REQ_ACCOUNT_DATA = 6;
+    private static final int REQ_EXECUTIONS = 7;
+    private static final int REQ_IDS = 8;
+    private static final int REQ_CONTRACT_DATA = 9;
+    private static final int REQ_NEWS_BULLETINS = 12;
+    private static final int CANCEL_NEWS_BULLETINS = 13;
+    private static final int SET_SERVER_LOGLEVEL = 14;
+    private static final int REQ_AUTO_OPEN_ORDERS = 15;
+    private static final int REQ_ALL_OPEN_ORDERS = 16;
+    private static final int REQ_MANAGED_ACCTS = 17;
+    private static final int REQ_HISTORICAL_DATA = 20;
+    private static final int CANCEL_HISTORICAL_DATA = 25;
+    private static final int REQ_CURRENT_TIME = 49;
+    private static final int REQ_REAL_TIME_BARS = 50;
+    private static final int CANCEL_REAL_TIME_BARS = 51;
+    private static final int REQ_MKT_DATA_TYPE = 59;
+    private static final int REQ_POSITIONS = 61;
+    private static final int REQ_ACCOUNT_SUMMARY = 62;
+    private static final int CANCEL_ACCOUNT_SUMMARY = 63;
+    private static final int CANCEL_POSITIONS = 64;
+    private static final int QUERY_DISPLAY_GROUPS = 67;
+    private static final int SUBSCRIBE_TO_GROUP_EVENTS = 68;
+    private static final int UPDATE_DISPLAY_GROUP = 69;
+    private static final int UNSUBSCRIBE_FROM_GROUP_EVENTS = 70;
+    private static final int START_API = 71;
+
+    // server -> client
+    private static final int TICK_PRICE = 1;
+    private static final int TICK_SIZE = 2;
+    private static final int ORDER_STATUS = 3;
+    private static final int ERR_MSG = 4;
+    private static final int NEXT_VALID_ID = 9;
+    private static final int CONTRACT_DATA = 10;
+    private static final int MANAGED_ACCTS = 15;
+    private static final int HISTORICAL_DATA = 17;
+    private static final int CURRENT_TIME = 49;
+    private static final int CONTRACT_DATA_END = 52;
+    private static final int OPEN_ORDER_END = 53;
+    private static final int ACCT_DOWNLOAD_END = 54;
+    private static final int EXECUTION_DATA_END = 55;
+    private static final int TICK_SNAPSHOT_END = 57;
+    private static final int POSITION_END = 62;
+    private static final int ACCOUNT_SUMMARY = 63;
+    private static final int ACCOUNT_SUMMARY_END = 64;
+    private static final int DISPLAY_GROUP_LIST = 67;
+    private static final int DISPLAY_GROUP_UPDATED = 68;
+
+    // flush at least this often when replaying flat out
+    private static final int MAX_SPEED_FLUSH_RECORDS = 256;
+
+    private static final int TICK_TYPES = NewTickType.values().length;
+
+    private final File m_feed;
+    private final double m_speed;
+    private final boolean m_loop;
+    private final String m_accounts;
+    private final ServerSocket m_serverSocket;
+    private final CopyOnWriteArrayList<Session> m_sessions = new CopyOnWriteArrayList<>();
+
+    // loaded from the whole feed before serving, read only afterwards
+    private final HashMap<Integer, NewContractDetails> m_contracts = new HashMap<>();
+    private final HashMap<String, NewContractDetails> m_contractsBySymbol = new HashMap<>();
+
+    // replayed state served to new requests, guarded by this
+    private final ConidIndex m_priceSlots = new ConidIndex(256);
+    private final ArrayList<double[]> m_prices = new ArrayList<>();
+    private final LinkedHashMap<String, String[]> m_accountSummary = new LinkedHashMap<>();
+    private String m_displayGroup;
+    private int m_nextOrderId = 1;
+    private int m_nextPermId = 1000000;
+    private boolean m_replaying;
+
+    public FakeTwsServer(File feed, int port, double speed, boolean loop, String accounts) throws IOException {
+        m_feed = feed;
+        m_speed = speed;
+        m_loop = loop;
+        String feedAccounts = loadReferenceData();
+        m_accounts = accounts != null ? accounts : feedAccounts;
+        m_serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: FakeTwsServer feed.bin [-port 7497] [-speed 1|10|max] [-loop] [-accounts DU123,DU456]");
+            return;
+        }
+        int port = DEFAULT_PORT;
+        double speed = 1;
+        boolean loop = false;
+        String accounts = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-port": port = Integer.parseInt(args[++i]); break;
+                case "-speed": speed = "max".equals(args[++i]) ? 0 : Double.parseDouble(args[i]); break;
+                case "-loop": loop = true; break;
+                case "-accounts": accounts = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        new FakeTwsServer(new File(args[0]), port, speed, loop, accounts).serve();
+    }
+
+    public int port() {
+        return m_serverSocket.getLocalPort();
+    }
+
+    /** Accept clients until the server socket is closed. */
+    public void serve() throws IOException {
+        System.out.println("Serving " + m_feed + " (" + m_contracts.size() + " contracts) on port " + port()
+                + " at " + (m_speed > 0 ? m_speed + "x" : "max speed"));
+        while (!m_serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = m_serverSocket.accept();
+            } catch (IOException e) {
+                if (m_serverSocket.isClosed()) {
+                    break;
+                }
+                throw e;
+            }
+            socket.setTcpNoDelay(true);
+            Session session = new Session(socket);
+            Thread thread = new Thread(session, "FakeTwsSession-" + socket.getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void close() throws IOException {
+        m_serverSocket.close();
+        for (Session session : m_sessions) {
+            session.close();
+        }
+    }
+
+    /** Reads contract details and account names from the whole feed, returning the accounts for MANAGED_ACCTS. */
+    private String loadReferenceData() throws IOException {
+        final LinkedHashSet<String> accounts = new LinkedHashSet<>();
+        try (FeedReader reader = new FeedReader(m_feed)) {
+            FeedReader.IFeedHandler handler = new FeedReader.FeedAdapter() {
+                @Override public void accountSummary(long micros, String account, String tag, String value, String currency) {
+                    accounts.add(account);
+                }
+
+                @Override public void contractDetails(long micros, NewContractDetails details) {
+                    m_contracts.put(details.conid(), details);
+                    m_contractsBySymbol.put(details.contract().symbol(), details);
+                }
+            };
+            while (reader.next(handler)) {
+                // keep reading
+            }
+        }
+        if (accounts.isEmpty()) {
+            accounts.add("DU0000000");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String account : accounts) {
+            sb.append(sb.length() == 0 ? "" : ",").append(account);
+        }
+        return sb.toString();
+    }
+
+    private synchronized void startReplay() {
+        if (m_replaying) {
+            return;
+        }
+        m_replaying = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    do {
+                        replay();
+                    } while (m_loop && !m_serverSocket.isClosed());
+                } catch (IOException e) {
+                    System.out.println("Replay stopped: " + e);
+                }
+            }
+        }, "FakeTwsReplay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void replay() throws IOException {
+        Replayer replayer = new Replayer();
+        long start = System.nanoTime();
+        try (FeedReader reader = new FeedReader(m_feed)) {
+            while (reader.next(replayer)) {
+                // each record is sent from the handler
+            }
+        }
+        flushAll();
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println("Replayed " + replayer.m_records + " records, " + replayer.m_ticks + " ticks in " + millis + " ms ("
+                + replayer.m_records * 1000 / millis + " records/s) to " + m_sessions.size() + " clients");
+    }
+
+    private void flushAll() {
+        for (Session session : m_sessions) {
+            session.flush();
+        }
+    }
+
+    /** Sends each record when it is due. */
+    private class Replayer implements FeedReader.IFeedHandler {
+        private final long m_startNanos = System.nanoTime();
+        private long m_records;
+        private long m_ticks;
+
+        private void due(long micros) {
+            m_records++;
+            if (m_speed <= 0) {
+                if (m_records % MAX_SPEED_FLUSH_RECORDS == 0) {
+                    flushAll();
+                }
+                return;
+            }
+            long dueNanos = m_startNanos + (long) (micros * 1000 / m_speed);
+            if (dueNanos - System.nanoTime() > 0) {
+                // everything up to now goes out before waiting for the next record
+                flushAll();
+                long wait;
+                while ((wait = dueNanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }
+
+        @Override public void tickPrice(long micros, int conid, int tickType, double price) {
+            due(micros);
+            if (tickType >= TICK_TYPES) {
+                return;
+            }
+            synchronized (FakeTwsServer.this) {
+                int slot = m_priceSlots.get(conid);
+                if (slot == ConidIndex.NONE) {
+                    slot = m_prices.size();
+                    double[] prices = new double[TICK_TYPES];
+                    Arrays.fill(prices, Double.NaN);
+                    m_prices.add(prices);
+                    m_priceSlots.put(conid, slot);
+                }
+                m_prices.get(slot)[tickType] = price;
+            }
+            for (Session session : m_sessions) {
+                if (session.tickPrice(conid, tickType, price)) {
+                    m_ticks++;
+                }
+            }
+        }
+
+        @Override public void tickSize(long micros, int conid, int tickType, int size) {
+            due(micros);
+            for (Session session : m_sessions) {
+                if (session.tickSize(conid, tickType, size)) {
+                    m_ticks++;
+                }
+            }
+        }
+
+        @Override public void accountSummary(long micros, String account, String tag, String value, String currency) {
+            due(micros);
+            String[] row = { account, tag, value, currency };
+            synchronized (FakeTwsServer.this) {
+                m_accountSummary.put(account + '\u0000' + tag, row);
+            }
+            for (Session session : m_sessions) {
+                session.accountSummary(row);
+            }
+        }
+
+        @Override public void accountSummaryEnd(long micros) {
+            due(micros);
+            for (Session session : m_sessions) {
+                session.accountSummaryEnd();
+            }
+        }
+
+        @Override public void displayGroupUpdated(long micros, String contractInfo) {
+            due(micros);
+            displayGroup(contractInfo);
+        }
+
+        @Override public void contractDetails(long micros, NewContractDetails details) {
+            due(micros);
+        }
+    }
+
+    private void displayGroup(String contractInfo) {
+        synchronized (this) {
+            m_displayGroup = contractInfo;
+        }
+        for (Session session : m_sessions) {
+            session.displayGroupUpdated(contractInfo);
+        }
+    }
+
+    /** One connected client. Its socket is written by its own thread and by the replay thread, always under its lock. */
+    private class Session implements Runnable {
+        private final Socket m_socket;
+        private final InputStream m_in;
+        private final OutputStream m_out;
+        private final StringBuilder m_field = new StringBuilder();
+        private int m_clientId;
+
+        // guarded by this
+        private final ConidIndex m_reqByConid = new ConidIndex(64);
+        private final ConidIndex m_conidByReq = new ConidIndex(64);
+        private final HashMap<Integer, HashSet<String>> m_accountSummaryTags = new HashMap<>();
+        private final HashSet<Integer> m_displayGroupReqs = new HashSet<>();
+        private boolean m_closed;
+
+        Session(Socket socket) throws IOException {
+            m_socket = socket;
+            m_in = new BufferedInputStream(socket.getInputStream(), 8192);
+            m_out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
+
+        @Override public void run() {
+            try {
+                readField(); // client version
+                synchronized (this) {
+                    send(SERVER_VERSION);
+                    send(new SimpleDateFormat("yyyyMMdd HH:mm:ss z").format(new Date()));
+                    m_out.flush();
+                }
+                m_sessions.add(this);
+                while (true) {
+                    int msgId = readInt();
+                    synchronized (this) {
+                        message(msgId);
+                        m_out.flush();
+                    }
+                }
+            } catch (EOFException e) {
+                System.out.println("Client " + m_clientId + " disconnected");
+            } catch (IOException e) {
+                System.out.println("Client " + m_clientId + " dropped: " + e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        private void message(int msgId) throws IOException {
+            switch (msgId) {
+                case START_API:
+                    readField();
+                    m_clientId = readInt();
+                    System.out.println("Client " + m_clientId + " connected");
+                    send(NEXT_VALID_ID, 1, nextOrderId(0));
+                    send(MANAGED_ACCTS, 1, m_accounts);
+                    break;
+                case REQ_MKT_DATA:
+                    reqMktData();
+                    break;
+                case CANCEL_MKT_DATA: {
+                    readField();
+                    int conid = m_conidByReq.remove(readInt());
+                    if (conid != ConidIndex.NONE) {
+                        m_reqByConid.remove(conid);
+                    }
+                    break;
+                }
+                case REQ_CONTRACT_DATA:
+                    reqContractData();
+                    break;
+                case REQ_ACCOUNT_SUMMARY: {
+                    readField();
+                    int reqId = readInt();
+                    readField(); // group
+                    HashSet<String> tags = new HashSet<>(Arrays.asList(readField().split(",")));
+                    m_accountSummaryTags.put(reqId, tags);
+                    ArrayList<String[]> rows;
+                    synchronized (FakeTwsServer.this) {
+                        rows = new ArrayList<>(m_accountSummary.values());
+                    }
+                    for (String[] row : rows) {
+                        if (tags.contains(row[1])) {
+                            send(ACCOUNT_SUMMARY, 1, reqId, row[0], row[1], row[2], row[3]);
+                        }
+                    }
+                    send(ACCOUNT_SUMMARY_END, 1, reqId);
+                    break;
+                }
+                case CANCEL_ACCOUNT_SUMMARY:
+                    readField();
+                    m_accountSummaryTags.remove(readInt());
+                    break;
+                case QUERY_DISPLAY_GROUPS:
+                    readField();
+                    send(DISPLAY_GROUP_LIST, 1, readInt(), "1|2|3|4|5|6|7");
+                    break;
+                case SUBSCRIBE_TO_GROUP_EVENTS: {
+                    readField();
+                    int reqId = readInt();
+                    readField(); // group id
+                    m_displayGroupReqs.add(reqId);
+                    String displayGroup;
+                    synchronized (FakeTwsServer.this) {
+                        displayGroup = m_displayGroup;
+                    }
+                    if (displayGroup != null) {
+                        send(DISPLAY_GROUP_UPDATED, 1, reqId, displayGroup);
+                    }
+                    break;
+                }
+                case UPDATE_DISPLAY_GROUP: {
+                    skip(2);
+                    final String contractInfo = readField();
+                    // other sessions are locked by their own threads, so don't broadcast while holding ours
+                    new Thread(new Runnable() {
+                        @Override public void run() {
+                            displayGroup(contractInfo);
+                        }
+                    }).start();
+                    break;
+                }
+                case UNSUBSCRIBE_FROM_GROUP_EVENTS:
+                    readField();
+                    m_displayGroupReqs.remove(readInt());
+                    break;
+                case PLACE_ORDER:
+                    placeOrder();
+                    break;
+                case CANCEL_ORDER: {
+                    readField();
+                    int orderId = readInt();
+                    send(ORDER_STATUS, 6, orderId, "Cancelled", 0, 0, 0, 0, 0, 0, m_clientId, "");
+                    break;
+                }
+                case REQ_IDS:
+                    skip(2);
+                    send(NEXT_VALID_ID, 1, nextOrderId(0));
+                    break;
+                case REQ_CURRENT_TIME:
+                    readField();
+                    send(CURRENT_TIME, 1, System.currentTimeMillis() / 1000);
+                    break;
+                case REQ_MANAGED_ACCTS:
+                    readField();
+                    send(MANAGED_ACCTS, 1, m_accounts);
+                    break;
+                case REQ_OPEN_ORDERS:
+                case REQ_ALL_OPEN_ORDERS:
+                    readField();
+                    send(OPEN_ORDER_END, 1);
+                    break;
+                case REQ_AUTO_OPEN_ORDERS:
+                    skip(2);
+                    send(OPEN_ORDER_END, 1);
+                    break;
+                case REQ_ACCOUNT_DATA: {
+                    readField();
+                    boolean subscribe = readInt() != 0;
+                    String account = readField();
+                    if (subscribe) {
+                        send(ACCT_DOWNLOAD_END, 1, account);
+                    }
+                    break;
+                }
+                case REQ_POSITIONS:
+                    readField();
+                    send(POSITION_END, 1);
+                    break;
+                case REQ_EXECUTIONS: {
+                    readField();
+                    int reqId = readInt();
+                    skip(7); // filter
+                    send(EXECUTION_DATA_END, 1, reqId);
+                    break;
+                }
+                case REQ_HISTORICAL_DATA: {
+                    readField();
+                    int reqId = readInt();
+                    readContract(true);
+                    skip(8); // includeExpired, end, bar size, duration, rth, what to show, date format, chart options
+                    String now = new SimpleDateFormat("yyyyMMdd  HH:mm:ss").format(new Date());
+                    send(HISTORICAL_DATA, 3, reqId, now, now, 0);
+                    break;
+                }
+                case REQ_REAL_TIME_BARS:
+                    skip(2);
+                    readContract(true);
+                    skip(4); // bar size, what to show, rth, options
+                    break;
+                case CANCEL_HISTORICAL_DATA:
+                case CANCEL_REAL_TIME_BARS:
+                case REQ_NEWS_BULLETINS:
+                case SET_SERVER_LOGLEVEL:
+                case REQ_MKT_DATA_TYPE:
+                    skip(2);
+                    break;
+                case CANCEL_NEWS_BULLETINS:
+                case CANCEL_POSITIONS:
+                    readField();
+                    break;
+                default:
+                    throw new IOException("unsupported message " + msgId);
+            }
+        }
+
+        private void reqMktData() throws IOException {
+            readField();
+            int reqId = readInt();
+            int conid = readContract(true);
+            if (readInt() != 0) {
+                skip(3); // under comp
+            }
+            readField(); // generic ticks
+            boolean snapshot = readInt() != 0;
+            readField(); // options
+
+            double[] prices = null;
+            synchronized (FakeTwsServer.this) {
+                int slot = m_priceSlots.get(conid);
+                if (slot != ConidIndex.NONE) {
+                    prices = m_prices.get(slot).clone();
+                }
+            }
+            if (prices != null) {
+                for (int i = 0; i < prices.length; i++) {
+                    if (!Double.isNaN(prices[i])) {
+                        sendTickPrice(reqId, i, prices[i]);
+                    }
+                }
+            }
+            if (snapshot) {
+                send(TICK_SNAPSHOT_END, 1, reqId);
+            } else {
+                m_reqByConid.put(conid, reqId);
+                m_conidByReq.put(reqId, conid);
+                startReplay();
+            }
+        }
+
+        private void reqContractData() throws IOException {
+            readField();
+            int reqId = readInt();
+            int conid = readContract(false);
+            skip(3); // include expired, sec id type, sec id
+            NewContractDetails details = m_contracts.get(conid);
+            if (details == null) {
+                send(ERR_MSG, 2, reqId, 200, "No security definition has been found for the request");
+                return;
+            }
+            NewContract c = details.contract();
+            send(CONTRACT_DATA, 8, reqId, c.symbol(), c.secType() == null ? "" : c.secType().getApiString(), c.expiry(),
+                    c.strike(), c.right() == null ? "" : c.right().getApiString(), c.exchange(), c.currency(), c.localSymbol(),
+                    details.marketName(), c.tradingClass(), c.conid(), details.minTick(), c.multiplier(), details.orderTypes(),
+                    details.validExchanges(), details.PripeMagnifier(), details.underConid(), details.longName(), c.primaryExch(),
+                    "", details.industry(), details.category(), details.subcategory(), details.timeZoneId(),
+                    details.tradingHours(), details.liquidHours(), "", 0, 0);
+            send(CONTRACT_DATA_END, 1, reqId);
+        }
+
+        private void placeOrder() throws IOException {
+            readField(); // version
+            int orderId = readInt();
+            readContract(true);
+            skip(2); // sec id type, sec id
+            readField(); // action
+            int quantity = readInt();
+            skip(8); // type, limit, aux, tif, oca group, account, open close, origin
+            readField(); // order ref
+            boolean transmit = readInt() != 0;
+            int parentId = readInt();
+            // the rest of the order, fixed as long as no optional blocks are used
+            skip(56);
+            nextOrderId(orderId + 1);
+            int permId;
+            synchronized (FakeTwsServer.this) {
+                permId = m_nextPermId++;
+            }
+            send(ORDER_STATUS, 6, orderId, transmit ? "Submitted" : "PreSubmitted", 0, quantity, 0, permId, parentId, 0, m_clientId, "");
+        }
+
+        /**
+         * Reads the contract fields common to most requests, starting at the conid.
+         * @param primaryExch whether the request sends the primary exchange after the exchange
+         * @return the conid, looked up by symbol if the request didn't have one
+         */
+        private int readContract(boolean primaryExch) throws IOException {
+            int conid = readInt();
+            String symbol = readField();
+            String secType = readField();
+            if ("BAG".equals(secType)) {
+                throw new IOException("combo contracts are not supported");
+            }
+            skip(primaryExch ? 9 : 8); // expiry, strike, right, multiplier, exchange, (primary), currency, local symbol, trading class
+            if (conid == 0) {
+                NewContractDetails details = m_contractsBySymbol.get(symbol);
+                conid = details != null ? details.conid() : 0;
+            }
+            return conid;
+        }
+
+        synchronized boolean tickPrice(int conid, int tickType, double price) {
+            int reqId = m_reqByConid.get(conid);
+            if (reqId == ConidIndex.NONE || m_closed) {
+                return false;
+            }
+            try {
+                sendTickPrice(reqId, tickType, price);
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        synchronized boolean tickSize(int conid, int tickType, int size) {
+            int reqId = m_reqByConid.get(conid);
+            if (reqId == ConidIndex.NONE || m_closed) {
+                return false;
+            }
+            try {
+                send(TICK_SIZE, 1, reqId, tickType, size);
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void accountSummary(String[] row) {
+            try {
+                for (Map.Entry<Integer, HashSet<String>> entry : m_accountSummaryTags.entrySet()) {
+                    if (entry.getValue().contains(row[1])) {
+                        send(ACCOUNT_SUMMARY, 1, entry.getKey(), row[0], row[1], row[2], row[3]);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        synchronized void accountSummaryEnd() {
+            try {
+                for (Integer reqId : m_accountSummaryTags.keySet()) {
+                    send(ACCOUNT_SUMMARY_END, 1, reqId);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        synchronized void displayGroupUpdated(String contractInfo) {
+            try {
+                for (Integer reqId : m_displayGroupReqs) {
+                    send(DISPLAY_GROUP_UPDATED, 1, reqId, contractInfo);
+                }
+                m_out.flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        synchronized void flush() {
+            if (!m_closed) {
+                try {
+                    m_out.flush();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        void close() {
+            m_sessions.remove(this);
+            synchronized (this) {
+                m_closed = true;
+            }
+            try {
+                m_socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+
+        // version 1, the size goes in its own TICK_SIZE as recorded
+        private void sendTickPrice(int reqId, int tickType, double price) throws IOException {
+            send(TICK_PRICE, 1, reqId, tickType, price);
+        }
+
+        private void send(Object... fields) throws IOException {
+            for (Object field : fields) {
+                send(field);
+            }
+        }
+
+        private void send(Object field) throws IOException {
+            if (field != null) {
+                m_out.write(field.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            m_out.write(0);
+        }
+
+        private String readField() throws IOException {
+            m_field.setLength(0);
+            int c;
+            while ((c = m_in.read()) != 0) {
+                if (c < 0) {
+                    throw new EOFException();
+                }
+                m_field.append((char) c);
+            }
+            return m_field.toString();
+        }
+
+        private int readInt() throws IOException {
+            String field = readField();
+            return field.isEmpty() ? 0 : Integer.parseInt(field);
+        }
+
+        private void skip(int fields) throws IOException {
+            for (int i = 0; i < fields; i++) {
+                readField();
+            }
+        }
+    }
+
+    /** Reserves order ids below {@code atLeast} and returns the next free one. */
+    private synchronized int nextOrderId(int atLeast) {
+        m_nextOrderId = Math.max(m_nextOrderId, atLeast);
+        return m_nextOrderId;
+    }
+}
@@ -0,0 +1,113 @@
+package com.peterflanner.twspositionsizer.replay;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import com.ib.controller.NewContractDetails;
+import com.peterflanner.twspositionsizer.controller.ContractDetailsCache;
+
+/** Reads a feed written by {@link FeedWriter}, one record at a time. */
+public class FeedReader implements Closeable {
+    public interface IFeedHandler {
+        /** @param micros time of the record since the start of the recording */
+        void tickPrice(long micros, int conid, int tickType, double price);
+        void tickSize(long micros, int conid, int tickType, int size);
+        void accountSummary(long micros, String account, String tag, String value, String currency);
+        void accountSummaryEnd(long micros);
+        void displayGroupUpdated(long micros, String contractInfo);
+        void contractDetails(long micros, NewContractDetails details);
+    }
+
+    public static class FeedAdapter implements IFeedHandler {
+        @Override public void tickPrice(long micros, int conid, int tickType, double price) { }
+        @Override public void tickSize(long micros, int conid, int tickType, int size) { }
+        @Override public void accountSummary(long micros, String account, String tag, String value, String currency) { }
+        @Override public void accountSummaryEnd(long micros) { }
+        @Override public void displayGroupUpdated(long micros, String contractInfo) { }
+        @Override public void contractDetails(long micros, NewContractDetails details) { }
+    }
+
+    private final DataInputStream m_in;
+    private final long m_startMillis;
+    private long m_micros;
+
+    public FeedReader(File file) throws IOException {
+        m_in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        if (m_in.readInt() != FeedWriter.MAGIC) {
+            m_in.close();
+            throw new IOException(file + " is not a recorded feed");
+        }
+        int version = m_in.readInt();
+        if (version != FeedWriter.VERSION) {
+            m_in.close();
+            throw new IOException(file + " is feed version " + version + ", expected " + FeedWriter.VERSION);
+        }
+        m_startMillis = m_in.readLong();
+    }
+
+    /** Wall clock time the recording started. */
+    public long startMillis() { return m_startMillis; }
+
+    /**
+     * Read the next record and pass it to the handler.
+     * @return false at the end of the feed
+     */
+    public boolean next(IFeedHandler handler) throws IOException {
+        int type = m_in.read();
+        if (type < 0) {
+            return false;
+        }
+        m_micros += readVarLong();
+        switch (type) {
+            case FeedWriter.TICK_PRICE:
+                handler.tickPrice(m_micros, readVarInt(), m_in.readUnsignedByte(), m_in.readDouble());
+                break;
+            case FeedWriter.TICK_SIZE:
+                handler.tickSize(m_micros, readVarInt(), m_in.readUnsignedByte(), readVarInt());
+                break;
+            case FeedWriter.ACCOUNT_SUMMARY:
+                handler.accountSummary(m_micros, m_in.readUTF(), m_in.readUTF(), m_in.readUTF(), m_in.readUTF());
+                break;
+            case FeedWriter.ACCOUNT_SUMMARY_END:
+                handler.accountSummaryEnd(m_micros);
+                break;
+            case FeedWriter.DISPLAY_GROUP_UPDATED:
+                handler.displayGroupUpdated(m_micros, m_in.readUTF());
+                break;
+            case FeedWriter.CONTRACT_DETAILS:
+                handler.contractDetails(m_micros, ContractDetailsCache.readDetails(m_in));
+                break;
+            default:
+                throw new IOException("Unknown feed record type " + type);
+        }
+        return true;
+    }
+
+    @Override public void close() throws IOException {
+        m_in.close();
+    }
+
+    private int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    private long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = m_in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
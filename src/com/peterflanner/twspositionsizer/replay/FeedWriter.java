@@ -0,0 +1,144 @@
+package com.peterflanner.twspositionsizer.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.ib.controller.NewContractDetails;
+import com.peterflanner.twspositionsizer.controller.ContractDetailsCache;
+
+/**
+ * Records a session's market data, account summary, display group and contract details callbacks to a compact
+ * binary feed that {@link FakeTwsServer} can replay. Ticks are keyed by conid rather than request id so a replay can
+ * map them onto whatever requests the client makes.
+ * <p>
+ * Each record is a type byte, the microseconds since the previous record as a varint, then the payload. A tick
+ * price is usually 12 bytes. Writes are synchronized, callers are the EReader thread and whoever closes the feed.
+ * An I/O error stops the recording rather than the session, see {@link #error()}.
+ */
+public class FeedWriter implements Closeable {
+    static final int MAGIC = 0x54505346; // "TPSF"
+    static final int VERSION = 1;
+
+    static final int TICK_PRICE = 1;
+    static final int TICK_SIZE = 2;
+    static final int ACCOUNT_SUMMARY = 3;
+    static final int ACCOUNT_SUMMARY_END = 4;
+    static final int DISPLAY_GROUP_UPDATED = 5;
+    static final int CONTRACT_DETAILS = 6;
+
+    private final DataOutputStream m_out;
+    private final long m_startNanos;
+    private long m_lastMicros;
+    private long m_records;
+    private IOException m_error;
+
+    public FeedWriter(File file) throws IOException {
+        m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        m_startNanos = System.nanoTime();
+        m_out.writeInt(MAGIC);
+        m_out.writeInt(VERSION);
+        m_out.writeLong(System.currentTimeMillis());
+    }
+
+    public synchronized void tickPrice(int conid, int tickType, double price) {
+        try {
+            header(TICK_PRICE);
+            writeVarInt(conid);
+            m_out.writeByte(tickType);
+            m_out.writeDouble(price);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    public synchronized void tickSize(int conid, int tickType, int size) {
+        try {
+            header(TICK_SIZE);
+            writeVarInt(conid);
+            m_out.writeByte(tickType);
+            writeVarInt(size);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    public synchronized void accountSummary(String account, String tag, String value, String currency) {
+        try {
+            header(ACCOUNT_SUMMARY);
+            m_out.writeUTF(account);
+            m_out.writeUTF(tag);
+            m_out.writeUTF(value);
+            m_out.writeUTF(currency == null ? "" : currency);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    public synchronized void accountSummaryEnd() {
+        try {
+            header(ACCOUNT_SUMMARY_END);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    public synchronized void displayGroupUpdated(String contractInfo) {
+        try {
+            header(DISPLAY_GROUP_UPDATED);
+            m_out.writeUTF(contractInfo);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    public synchronized void contractDetails(NewContractDetails details) {
+        try {
+            header(CONTRACT_DETAILS);
+            ContractDetailsCache.writeDetails(m_out, details);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    public synchronized long records() { return m_records; }
+
+    /** The error that stopped the recording, or null. */
+    public synchronized IOException error() { return m_error; }
+
+    @Override public synchronized void close() throws IOException {
+        m_out.close();
+    }
+
+    private void header(int type) throws IOException {
+        if (m_error != null) {
+            throw m_error;
+        }
+        long micros = (System.nanoTime() - m_startNanos) / 1000;
+        m_out.writeByte(type);
+        writeVarLong(micros - m_lastMicros);
+        m_lastMicros = micros;
+        m_records++;
+    }
+
+    private void failed(IOException e) {
+        if (m_error == null) {
+            m_error = e;
+        }
+    }
+
+    private void writeVarInt(int v) throws IOException {
+        writeVarLong(v & 0xFFFFFFFFL);
+    }
+
+    private void writeVarLong(long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            m_out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        m_out.writeByte((int) v);
+    }
+}
@@ -0,0 +1,220 @@
+package com.peterflanner.twspositionsizer.ui;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+
+import com.ib.controller.AccountSummaryTag;
+import com.peterflanner.twspositionsizer.controller.AccountSummaries;
+import com.peterflanner.twspositionsizer.controller.ConnectionPool;
+import com.peterflanner.twspositionsizer.engine.AccountSizer;
+import com.peterflanner.twspositionsizer.engine.DirtyRows;
+import com.peterflanner.twspositionsizer.engine.PositionSizer;
+import com.peterflanner.twspositionsizer.util.UIUtils;
+
+/**
+ * The trade on the Position Sizer tab sized for every account of every connection at once. Account values arrive into
+ * each connection's {@link AccountSummaries} on its EReader thread; once per frame the EDT copies the accounts that
+ * changed into the {@link AccountSizer} and repaints only the rows whose output changed. An account listed by two
+ * connections is shown once.
+ */
+public class AccountsPanel extends JPanel {
+	private final ConnectionPool m_pool;
+	// one per connection, in the pool's order, only touched on the EDT
+	private final ArrayList<Source> m_sources = new ArrayList<>();
+	// account -> table row, and the account shown in each row
+	private final HashMap<String, Integer> m_rows = new HashMap<>();
+	private final String[] m_rowAccounts;
+	private final PositionSizer m_sizer = new PositionSizer();
+	private final AccountSizer m_accountSizer;
+	private final AccountsModel m_model = new AccountsModel();
+	private final JTable m_table = new JTable(m_model);
+	private final JLabel m_trade = new JLabel(" ");
+	private final JLabel m_totals = new JLabel(" ");
+
+	private final NumberFormat m_doubleZeroFormat = new DecimalFormat("0.00");
+	private final NumberFormat m_numberFormat = NumberFormat.getInstance();
+
+	// rows shown in the table, only touched on the EDT
+	private int m_rowCount;
+	private boolean m_changed;
+
+	private final AccountSummaries.Snapshot m_snapshot = new AccountSummaries.Snapshot();
+
+	AccountsPanel(ConnectionPool pool) {
+		m_pool = pool;
+		m_accountSizer = new AccountSizer(AccountSummaries.DEFAULT_CAPACITY, m_sizer);
+		m_rowAccounts = new String[m_accountSizer.capacity()];
+
+		m_table.setDefaultRenderer(Object.class, new TierRenderer());
+
+		setLayout(new BorderLayout());
+		add(m_trade, BorderLayout.NORTH);
+		add(new JScrollPane(m_table));
+		add(m_totals, BorderLayout.SOUTH);
+
+		new Timer(Integer.getInteger("twspositionsizer.frameMillis", TickCoalescer.DEFAULT_FRAME_MILLIS), new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e) {
+				frame();
+			}
+		}).start();
+	}
+
+	/**
+	 * The trade to size, called from the EDT when the Position Sizer calculates.
+	 * @param risk dollars, or percent of each account's NLV
+	 * @param stop absolute price, or percent away from the price
+	 */
+	public void trade(String symbol, double price, double risk, boolean riskIsPercent, double stop, boolean stopIsPercent) {
+		m_sizer.riskIsPercent(riskIsPercent);
+		m_sizer.stopIsPercent(stopIsPercent);
+		m_accountSizer.trade(price, risk, stop);
+		m_trade.setText(symbol + "  risk " + m_doubleZeroFormat.format(risk) + (riskIsPercent ? "%" : "")
+				+ "  stop " + m_doubleZeroFormat.format(stop) + (stopIsPercent ? "%" : ""));
+	}
+
+	/** Latest price of the trade's contract. */
+	public void price(double price) {
+		m_accountSizer.price(price);
+	}
+
+	private void frame() {
+		// connections can be added after the panel
+		List<ConnectionPool.Connection> connections = m_pool.connections();
+		for (int i = m_sources.size(); i < connections.size(); i++) {
+			m_sources.add(new Source(connections.get(i).controller().accounts()));
+		}
+		for (Source source : m_sources) {
+			source.m_accounts.drainDirty(source);
+		}
+		int size = m_accountSizer.size();
+		if (size != m_rowCount) {
+			m_model.fireTableRowsInserted(m_rowCount, size - 1);
+			m_rowCount = size;
+			m_changed = true;
+		}
+		m_accountSizer.drainDirty(m_model);
+		if (m_changed) {
+			m_changed = false;
+			updateTotals();
+		}
+	}
+
+	private void updateTotals() {
+		double nlv = 0;
+		long shares = 0;
+		double value = 0;
+		for (int row = 0; row < m_rowCount; row++) {
+			nlv += Math.max(0, m_accountSizer.nlv(row));
+			shares += m_accountSizer.shares(row);
+			value += m_accountSizer.value(row);
+		}
+		m_totals.setText(m_rowCount + " accounts  NLV " + m_doubleZeroFormat.format(nlv)
+				+ "  shares " + m_numberFormat.format(shares) + "  value " + m_doubleZeroFormat.format(value));
+	}
+
+	/** One connection's accounts, copied into the table rows they were given when first seen. */
+	private class Source implements DirtyRows.IRowVisitor {
+		private final AccountSummaries m_accounts;
+		// row in the store -> table row, NONE until the account is first seen
+		private final int[] m_tableRows;
+
+		Source(AccountSummaries accounts) {
+			m_accounts = accounts;
+			m_tableRows = new int[accounts.capacity()];
+			Arrays.fill(m_tableRows, AccountSummaries.NONE);
+		}
+
+		@Override public void row(int row) {
+			if (!m_accounts.snapshot(row, m_snapshot)) {
+				return;
+			}
+			int tableRow = m_tableRows[row];
+			if (tableRow == AccountSummaries.NONE) {
+				String account = m_accounts.account(row);
+				Integer shown = m_rows.get(account);
+				if (shown != null) {
+					tableRow = shown;
+				} else if (m_rows.size() < m_rowAccounts.length) {
+					tableRow = m_rows.size();
+					m_rows.put(account, tableRow);
+					m_rowAccounts[tableRow] = account;
+				} else {
+					return;
+				}
+				m_tableRows[row] = tableRow;
+			}
+			m_accountSizer.account(tableRow,
+					m_snapshot.get(AccountSummaryTag.NetLiquidation, -1.0),
+					m_snapshot.get(AccountSummaryTag.BuyingPower, -1.0),
+					m_snapshot.get(AccountSummaryTag.ExcessLiquidity, -1.0),
+					m_snapshot.get(AccountSummaryTag.TotalCashValue, -1.0));
+		}
+	}
+
+	private class AccountsModel extends AbstractTableModel implements DirtyRows.IRowVisitor {
+		private final String[] m_columns = { "Account", "Net Liq", "Buying Power", "Excess Liq", "Cash", "Shares", "Value" };
+
+		@Override public int getRowCount() {
+			return m_rowCount;
+		}
+
+		@Override public int getColumnCount() {
+			return m_columns.length;
+		}
+
+		@Override public String getColumnName(int col) {
+			return m_columns[col];
+		}
+
+		@Override public Object getValueAt(int row, int col) {
+			switch (col) {
+				case 0: return m_rowAccounts[row];
+				case 1: return format(m_accountSizer.nlv(row));
+				case 2: return format(m_accountSizer.buyingPower(row));
+				case 3: return format(m_accountSizer.excessLiquidity(row));
+				case 4: return format(m_accountSizer.totalCashValue(row));
+				case 5: return m_accountSizer.shares(row);
+				case 6: return m_doubleZeroFormat.format(m_accountSizer.value(row));
+				default: return null;
+			}
+		}
+
+		/** Repaint a single changed row, called once per frame for each dirty row. */
+		@Override public void row(int row) {
+			if (row < m_rowCount) {
+				fireTableRowsUpdated(row, row);
+				m_changed = true;
+			}
+		}
+
+		private String format(double v) {
+			return v < 0 ? "" : m_doubleZeroFormat.format(v);
+		}
+	}
+
+	private class TierRenderer extends DefaultTableCellRenderer {
+		@Override public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int col) {
+			Component c = super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, col);
+			if (!isSelected) {
+				c.setBackground(col == 5 || col == 6 ? UIUtils.tierColor(m_accountSizer.tier(row), table.getBackground()) : table.getBackground());
+			}
+			return c;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.peterflanner.twspositionsizer.ui;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
+
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+
+import com.peterflanner.twspositionsizer.controller.ConnectionPool;
+import com.peterflanner.twspositionsizer.controller.MyApiController;
+import com.peterflanner.twspositionsizer.controller.StripedDispatcher;
+import com.peterflanner.twspositionsizer.diagnostics.LatencyHistogram;
+import com.peterflanner.twspositionsizer.diagnostics.PipelineLatency;
+
+/**
+ * Tick latency percentiles for each stage of the pipeline and the dispatcher's queue depths, refreshed once a second,
+ * for the connection picked in the list.
+ */
+public class DiagnosticsPanel extends JPanel {
+	private static final PipelineLatency.Stage[] STAGES = PipelineLatency.Stage.values();
+	private static final int REFRESH_MILLIS = 1000;
+
+	private final ConnectionPool m_pool;
+	private final JComboBox<String> m_connections = new JComboBox<>();
+	// the picked connection's, only touched on the EDT
+	private PipelineLatency m_latency;
+	private StripedDispatcher m_dispatcher;
+	private final LatencyModel m_model = new LatencyModel();
+	private final JLabel m_dispatch = new JLabel();
+
+	DiagnosticsPanel(ConnectionPool pool) {
+		m_pool = pool;
+		addConnections();
+		m_connections.addActionListener(new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e) {
+				pick();
+			}
+		});
+
+		JButton resetButton = new JButton("Reset");
+		resetButton.addActionListener(new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e) {
+				m_latency.reset();
+				m_model.fireTableDataChanged();
+			}
+		});
+
+		setLayout(new BorderLayout());
+		add(m_connections, BorderLayout.NORTH);
+		add(new JScrollPane(new JTable(m_model)));
+		add(resetButton, BorderLayout.EAST);
+		add(m_dispatch, BorderLayout.SOUTH);
+
+		new Timer(REFRESH_MILLIS, new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e) {
+				addConnections();
+				if (isShowing()) {
+					m_model.fireTableRowsUpdated(0, STAGES.length - 1);
+					m_dispatch.setText(m_dispatcher.toString());
+				}
+			}
+		}).start();
+	}
+
+	/** List the connections added since the last refresh, picking the first one. */
+	private void addConnections() {
+		List<ConnectionPool.Connection> connections = m_pool.connections();
+		for (int i = m_connections.getItemCount(); i < connections.size(); i++) {
+			m_connections.addItem(connections.get(i).name());
+		}
+		if (m_latency == null && !connections.isEmpty()) {
+			pick();
+		}
+	}
+
+	private void pick() {
+		int index = Math.max(0, m_connections.getSelectedIndex());
+		MyApiController controller = m_pool.connections().get(index).controller();
+		m_latency = controller.latency();
+		m_dispatcher = controller.dispatcher();
+		m_model.fireTableDataChanged();
+		m_dispatch.setText(m_dispatcher.toString());
+	}
+
+	private class LatencyModel extends AbstractTableModel {
+		private final String[] m_columns = { "Stage (us)", "Count", "Mean", "p50", "p90", "p99", "p99.9", "Max" };
+
+		@Override public int getRowCount() {
+			return STAGES.length;
+		}
+
+		@Override public int getColumnCount() {
+			return m_columns.length;
+		}
+
+		@Override public String getColumnName(int col) {
+			return m_columns[col];
+		}
+
+		@Override public Object getValueAt(int row, int col) {
+			LatencyHistogram histogram = m_latency.histogram(STAGES[row]);
+			switch (col) {
+				case 0: return STAGES[row].label();
+				case 1: return histogram.count();
+				case 2: return micros(histogram.mean());
+				case 3: return micros(histogram.percentile(50));
+				case 4: return micros(histogram.percentile(90));
+				case 5: return micros(histogram.percentile(99));
+				case 6: return micros(histogram.percentile(99.9));
+				case 7: return micros(histogram.max());
+				default: return null;
+			}
+		}
+
+		private String micros(double nanos) {
+			return String.format("%.1f", nanos / 1000);
+		}
+	}
+}
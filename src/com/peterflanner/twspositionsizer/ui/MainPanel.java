@@ -5,20 +5,24 @@ package com.peterflanner.twspositionsizer.ui;
 
 
 import java.awt.BorderLayout;
-import java.awt.Dimension;
-import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
+import javax.management.JMException;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 
+import com.peterflanner.twspositionsizer.controller.ConnectionPool;
 import com.peterflanner.twspositionsizer.controller.MyApiController;
+import com.peterflanner.twspositionsizer.diagnostics.ApiTrafficLogger;
+import com.peterflanner.twspositionsizer.engine.BarStore;
+import com.peterflanner.twspositionsizer.replay.FeedWriter;
 import com.peterflanner.twspositionsizer.ui.components.HtmlButton;
 import com.peterflanner.twspositionsizer.ui.components.NewLookAndFeel;
 import com.peterflanner.twspositionsizer.ui.components.NewTabbedPanel;
 import com.peterflanner.twspositionsizer.ui.components.VerticalPanel;
 
-import com.ib.controller.ApiConnection.ILogger;
 import com.ib.controller.ApiController.IBulletinHandler;
 import com.ib.controller.ApiController.IConnectionHandler;
 import com.ib.controller.ApiController.ITimeHandler;
@@ -28,21 +32,45 @@ import com.ib.controller.Types.NewsType;
 public class MainPanel implements IConnectionHandler {
 	static MainPanel INSTANCE = new MainPanel();
 
-	private final JTextArea m_inLog = new JTextArea();
-	private final JTextArea m_outLog = new JTextArea();
-	private final Logger m_inLogger = new Logger( m_inLog);
-	private final Logger m_outLogger = new Logger( m_outLog);
-	private final MyApiController m_controller = new MyApiController( this, m_inLogger, m_outLogger);
-	private final ArrayList<String> m_acctList = new ArrayList<>();
+	// contract details snapshot, loaded at startup and written on exit
+	private static final File CONTRACTS_FILE = new File( System.getProperty( "user.home"), ".twspositionsizer" + File.separator + "contracts.bin");
+	// initial connection, point these at a FakeTwsServer to run against a recorded feed
+	private static final String HOST = System.getProperty( "twspositionsizer.host", "127.0.0.1");
+	private static final int PORT = Integer.getInteger( "twspositionsizer.port", 7497);
+	// more sessions to connect to, as name@host:port:clientId separated by commas, e.g. paper@127.0.0.1:7497:1
+	private static final String CONNECTIONS = System.getProperty( "twspositionsizer.connections");
+	// set to a file to record the session's feed for FakeTwsServer
+	private static final String RECORD_FILE = System.getProperty( "twspositionsizer.record");
+
+	// daily and intraday bars of the contracts viewed, kept across sessions
+	private static final File BARS_DIR = new File( System.getProperty( "user.home"), ".twspositionsizer" + File.separator + "bars");
+
+	private static final File LOG_DIR = new File( System.getProperty( "user.home"), ".twspositionsizer" + File.separator + "logs");
+
+	private final ApiTrafficLogger m_inLogger = new ApiTrafficLogger( new File( LOG_DIR, "api-in.log") );
+	private final ApiTrafficLogger m_outLogger = new ApiTrafficLogger( new File( LOG_DIR, "api-out.log") );
+	private final ArrayList<ApiTrafficLogger> m_connectionLoggers = new ArrayList<>();
+	private final ConnectionPool m_pool = new ConnectionPool( this);
+	// the connection panel's session, which also owns the bar store, contract cache and recording
+	private final MyApiController m_controller = m_pool.add( "TWS", HOST, PORT, 0, m_inLogger, m_outLogger);
+	// the session of the account selected in the sizer
+	private volatile MyApiController m_active = m_controller;
 	private final JFrame m_frame = new JFrame();
 	private final NewTabbedPanel m_tabbedPanel = new NewTabbedPanel(true);
 	private final ConnectionPanel m_connectionPanel = new ConnectionPanel();
 	private final PositionSizerPanel positionSizerPanel = new PositionSizerPanel();
-	private final JTextArea m_msg = new JTextArea();
+	private final WatchlistPanel m_watchlistPanel = new WatchlistPanel();
+	// every session's accounts, and the diagnostics of the session picked on the panel
+	private final AccountsPanel m_accountsPanel = new AccountsPanel( m_pool);
+	private final DiagnosticsPanel m_diagnosticsPanel = new DiagnosticsPanel( m_pool);
+	private final MessageConsole m_console = new MessageConsole();
 
 	// getter methods
-	public ArrayList<String> accountList() 	{ return m_acctList; }
-	public MyApiController controller() 		{ return m_controller; }
+	public ArrayList<String> accountList() 	{ return m_pool.accounts(); }
+	public MyApiController controller() 		{ return m_active; }
+	public ConnectionPool connections()		{ return m_pool; }
+	public WatchlistPanel watchlistPanel()		{ return m_watchlistPanel; }
+	public AccountsPanel accountsPanel()		{ return m_accountsPanel; }
 
 	public static void main(String[] args) {
 		try {
@@ -54,24 +82,28 @@ public class MainPanel implements IConnectionHandler {
 	}
 	
 	private void run() {
+		loadContractDetails();
+		openBarStore();
+		startRecording();
+		addConnections();
+		closeLogsOnExit();
+		
 		m_tabbedPanel.addTab( "Equities Position Sizer", positionSizerPanel);
+		m_tabbedPanel.addTab( "Watchlist", m_watchlistPanel);
+		m_tabbedPanel.addTab( "Accounts", m_accountsPanel);
 		m_tabbedPanel.addTab( "Connection", m_connectionPanel);
 			
-		m_msg.setEditable( false);
-		m_msg.setLineWrap( true);
-		JScrollPane msgScroll = new JScrollPane( m_msg);
-		msgScroll.setPreferredSize( new Dimension( 10000, 120) );
-
-		JScrollPane outLogScroll = new JScrollPane( m_outLog);
-		outLogScroll.setPreferredSize( new Dimension( 10000, 120) );
-
-		JScrollPane inLogScroll = new JScrollPane( m_inLog);
-		inLogScroll.setPreferredSize( new Dimension( 10000, 120) );
-
 		NewTabbedPanel bot = new NewTabbedPanel();
-		bot.addTab( "Messages", msgScroll);
-		bot.addTab( "Log (out)", outLogScroll);
-		bot.addTab( "Log (in)", inLogScroll);
+		bot.addTab( "Messages", m_console);
+		bot.addTab( "Log (out)", new TrafficLogPanel( m_outLogger) );
+		bot.addTab( "Log (in)", new TrafficLogPanel( m_inLogger) );
+		bot.addTab( "Diagnostics", m_diagnosticsPanel);
+		
+		try {
+			m_pool.registerMBeans();
+		} catch (JMException e) {
+			show( "Could not publish latency over JMX: " + e);
+		}
 		
         m_frame.add( m_tabbedPanel);
         m_frame.add( bot, BorderLayout.SOUTH);
@@ -79,10 +111,137 @@ public class MainPanel implements IConnectionHandler {
         m_frame.setVisible( true);
         m_frame.setDefaultCloseOperation( WindowConstants.EXIT_ON_CLOSE);
         
-        // make initial connection to local host, port 7496, client id 0
-		m_controller.connect( "127.0.0.1", 7497, 0);
+        // make initial connection to local host, port 7497 unless overridden, client id 0, and to any other sessions
+		m_pool.connectAll();
     }
 	
+	/** The session an account belongs to, the connection panel's one if no session has listed it. */
+	public MyApiController controllerFor( String account) {
+		MyApiController controller = account == null ? null : m_pool.controller( account);
+		return controller == null ? m_controller : controller;
+	}
+	
+	/** Route sizing, market data and orders to another session. */
+	void activate( MyApiController controller) {
+		m_active = controller;
+	}
+	
+	private void addConnections() {
+		if (CONNECTIONS == null) {
+			return;
+		}
+		for (String spec : CONNECTIONS.split( ",") ) {
+			String[] parts = spec.trim().split( "[@:]");
+			if (parts.length != 4) {
+				show( "Ignoring connection " + spec + ", expected name@host:port:clientId");
+				continue;
+			}
+			String name = parts[0];
+			ApiTrafficLogger inLogger = new ApiTrafficLogger( new File( LOG_DIR, "api-in-" + name + ".log") );
+			ApiTrafficLogger outLogger = new ApiTrafficLogger( new File( LOG_DIR, "api-out-" + name + ".log") );
+			try {
+				m_pool.add( name, parts[1], Integer.parseInt( parts[2]), Integer.parseInt( parts[3]), inLogger, outLogger);
+			} catch (IllegalArgumentException e) {
+				show( "Ignoring connection " + spec + ": " + e.getMessage() );
+				closeQuietly( inLogger);
+				closeQuietly( outLogger);
+				continue;
+			}
+			m_connectionLoggers.add( inLogger);
+			m_connectionLoggers.add( outLogger);
+		}
+	}
+	
+	private static void closeQuietly( ApiTrafficLogger logger) {
+		try {
+			logger.close();
+		} catch (IOException e) {
+			// nothing was written
+		}
+	}
+	
+	private void closeLogsOnExit() {
+		Runtime.getRuntime().addShutdownHook( new Thread( new Runnable() {
+			@Override public void run() {
+				try {
+					m_inLogger.close();
+					m_outLogger.close();
+					for (ApiTrafficLogger logger : m_connectionLoggers) {
+						logger.close();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "ApiTrafficLoggerCloser"));
+	}
+	
+	private void startRecording() {
+		if (RECORD_FILE == null) {
+			return;
+		}
+		final FeedWriter recorder;
+		try {
+			recorder = new FeedWriter( new File( RECORD_FILE));
+		} catch (IOException e) {
+			show( "Could not record to " + RECORD_FILE + ": " + e);
+			return;
+		}
+		m_controller.record( recorder);
+		show( "Recording feed to " + RECORD_FILE);
+		
+		Runtime.getRuntime().addShutdownHook( new Thread( new Runnable() {
+			@Override public void run() {
+				m_controller.record( null);
+				try {
+					recorder.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "FeedRecorderCloser"));
+	}
+	
+	private void openBarStore() {
+		m_controller.bars().store( new BarStore( BARS_DIR) );
+		
+		Runtime.getRuntime().addShutdownHook( new Thread( new Runnable() {
+			@Override public void run() {
+				try {
+					m_controller.bars().closeStore();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "BarStoreCloser"));
+	}
+	
+	private void loadContractDetails() {
+		Thread loader = new Thread( new Runnable() {
+			@Override public void run() {
+				try {
+					int loaded = m_controller.contractDetails().load( CONTRACTS_FILE);
+					show( "Loaded " + loaded + " cached contracts");
+				} catch (IOException e) {
+					show( "Could not load cached contracts: " + e);
+				}
+			}
+		}, "ContractDetailsLoader");
+		loader.setDaemon( true);
+		loader.start();
+		
+		Runtime.getRuntime().addShutdownHook( new Thread( new Runnable() {
+			@Override public void run() {
+				try {
+					m_controller.contractDetails().save( CONTRACTS_FILE);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "ContractDetailsSaver"));
+
+	}
+	
 	@Override public void connected() {
 		show( "connected");
 		m_connectionPanel.m_status.setText( "connected");
@@ -104,42 +263,49 @@ public class MainPanel implements IConnectionHandler {
 	
 	@Override public void disconnected() {
 		show( "disconnected");
-		m_connectionPanel.m_status.setText( "disconnected");
-		positionSizerPanel.disconnected();
+		m_connectionPanel.m_status.setText( m_controller.supervisor().isReconnecting() ? "reconnecting" : "disconnected");
 	}
 
 	@Override public void accountList(ArrayList<String> list) {
 		show( "Received account list");
-		m_acctList.clear();
-		m_acctList.addAll( list);
+		m_controller.accounts().subscribe();
+		m_controller.orderTracker().subscribe();
+		m_controller.positions().subscribe();
 		
 		// TODO hack
-		positionSizerPanel.activated();
-	}
-
-	@Override public void show( final String str) {
 		SwingUtilities.invokeLater( new Runnable() {
 			@Override public void run() {
-				m_msg.append(str);
-				m_msg.append( "\n\n");
-				
-				Dimension d = m_msg.getSize();
-				m_msg.scrollRectToVisible( new Rectangle( 0, d.height, 1, 1) );
+				positionSizerPanel.activated();
 			}
 		});
 	}
 
+	@Override public void show( final String str) {
+		m_console.add( MessageConsole.Severity.INFO, str);
+	}
+
 	@Override public void error(Exception e) {
-		show( e.toString() );
+		m_console.add( MessageConsole.Severity.ERROR, e.toString() );
 	}
 	
 	@Override public void message(int id, int errorCode, String errorMsg) {
-		show( id + " " + errorCode + " " + errorMsg);
+		m_console.add( severity( errorCode), id + " " + errorCode + " " + errorMsg);
+	}
+	
+	/** 2100-2199 are status notices such as "market data farm connection is OK", 1100-1102 are connectivity changes. */
+	private static MessageConsole.Severity severity(int errorCode) {
+		if (errorCode >= 2100 && errorCode < 2200) {
+			return MessageConsole.Severity.INFO;
+		}
+		if (errorCode >= 1100 && errorCode <= 1102) {
+			return MessageConsole.Severity.WARNING;
+		}
+		return MessageConsole.Severity.ERROR;
 	}
 	
 	private class ConnectionPanel extends JPanel {
-		private final JTextField m_host = new JTextField(7);
-		private final JTextField m_port = new JTextField( "7497", 7);
+		private final JTextField m_host = new JTextField( HOST, 7);
+		private final JTextField m_port = new JTextField( String.valueOf( PORT), 7);
 		private final JTextField m_clientId = new JTextField("0", 7);
 		private final JLabel m_status = new JLabel("Disconnected");
 		
@@ -185,23 +351,4 @@ public class MainPanel implements IConnectionHandler {
 			m_controller.connect( m_host.getText(), port, clientId);
 		}
 	}
-	
-	private static class Logger implements ILogger {
-		final private JTextArea m_area;
-
-		Logger( JTextArea area) {
-			m_area = area;
-		}
-
-		@Override public void log(final String str) {
-			SwingUtilities.invokeLater( new Runnable() {
-				@Override public void run() {
-//					m_area.append(str);
-//					
-//					Dimension d = m_area.getSize();
-//					m_area.scrollRectToVisible( new Rectangle( 0, d.height, 1, 1) );
-				}
-			});
-		}
-	}
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+package com.peterflanner.twspositionsizer.ui;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.JComboBox;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+
+/**
+ * The Messages tab. Any thread can add a message; messages queue up lock-free and the EDT drains them in one batch,
+ * with a single append and scroll per batch instead of one per message. Only the last {@link #MAX_MESSAGES} messages
+ * are kept, so the document stays small however long the session runs.
+ */
+public class MessageConsole extends JPanel {
+	public static final int MAX_MESSAGES = 1000;
+
+	public enum Severity { INFO, WARNING, ERROR }
+
+	private static class Message {
+		final long m_time;
+		final Severity m_severity;
+		final String m_text;
+
+		Message(Severity severity, String text) {
+			m_time = System.currentTimeMillis();
+			m_severity = severity;
+			m_text = text;
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Message> m_queue = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean m_scheduled = new AtomicBoolean();
+	private final Runnable m_drain = new Runnable() {
+		@Override public void run() {
+			drain();
+		}
+	};
+
+	// only touched on the EDT
+	private final ArrayDeque<Message> m_history = new ArrayDeque<>();
+	// number of lines each shown message takes in the document, oldest first
+	private final ArrayDeque<Integer> m_shownLines = new ArrayDeque<>();
+	private final JTextArea m_text = new JTextArea();
+	private final JComboBox<Severity> m_filter = new JComboBox<>(Severity.values());
+	private final SimpleDateFormat m_timeFormat = new SimpleDateFormat("HH:mm:ss");
+	private final StringBuilder m_batch = new StringBuilder();
+
+	MessageConsole() {
+		m_text.setEditable(false);
+		m_text.setLineWrap(true);
+		m_filter.addActionListener(new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e) {
+				render();
+			}
+		});
+
+		JPanel top = new JPanel(new BorderLayout());
+		top.add(m_filter, BorderLayout.EAST);
+
+		JScrollPane scroll = new JScrollPane(m_text);
+		scroll.setPreferredSize(new Dimension(10000, 120));
+
+		setLayout(new BorderLayout());
+		add(top, BorderLayout.NORTH);
+		add(scroll);
+	}
+
+	/** Queue a message. Safe to call from any thread, never blocks. */
+	public void add(Severity severity, String text) {
+		m_queue.add(new Message(severity, text));
+		if (m_scheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(m_drain);
+		}
+	}
+
+	private void drain() {
+		// clear the flag first so a message added while we drain schedules another batch
+		m_scheduled.set(false);
+		Severity min = minSeverity();
+		m_batch.setLength(0);
+		Message message;
+		while ((message = m_queue.poll()) != null) {
+			m_history.addLast(message);
+			if (m_history.size() > MAX_MESSAGES) {
+				m_history.removeFirst();
+			}
+			if (message.m_severity.compareTo(min) >= 0) {
+				int start = m_batch.length();
+				format(message, m_batch);
+				m_shownLines.addLast(lines(m_batch, start));
+			}
+		}
+		if (m_batch.length() > 0) {
+			m_text.append(m_batch.toString());
+			trim();
+			m_text.setCaretPosition(m_text.getDocument().getLength());
+		}
+	}
+
+	/** Rebuild the document from the history, after the filter changed. */
+	private void render() {
+		Severity min = minSeverity();
+		m_batch.setLength(0);
+		m_shownLines.clear();
+		for (Message message : m_history) {
+			if (message.m_severity.compareTo(min) >= 0) {
+				int start = m_batch.length();
+				format(message, m_batch);
+				m_shownLines.addLast(lines(m_batch, start));
+			}
+		}
+		m_text.setText(m_batch.toString());
+		m_text.setCaretPosition(m_text.getDocument().getLength());
+	}
+
+	// drop the oldest shown messages past the cap with one remove
+	private void trim() {
+		int lines = 0;
+		while (m_shownLines.size() > MAX_MESSAGES) {
+			lines += m_shownLines.removeFirst();
+		}
+		if (lines > 0) {
+			Element root = m_text.getDocument().getDefaultRootElement();
+			int end = root.getElement(Math.min(lines, root.getElementCount()) - 1).getEndOffset();
+			try {
+				m_text.getDocument().remove(0, end);
+			} catch (BadLocationException e) {
+				m_text.setText("");
+			}
+		}
+	}
+
+	private void format(Message message, StringBuilder sb) {
+		sb.append(m_timeFormat.format(new Date(message.m_time)));
+		if (message.m_severity != Severity.INFO) {
+			sb.append(' ').append(message.m_severity);
+		}
+		sb.append(' ').append(message.m_text).append("\n\n");
+	}
+
+	private static int lines(StringBuilder sb, int start) {
+		int lines = 0;
+		for (int i = start; i < sb.length(); i++) {
+			if (sb.charAt(i) == '\n') {
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	private Severity minSeverity() {
+		return (Severity) m_filter.getSelectedItem();
+	}
+}
@@ -6,6 +6,7 @@ package com.peterflanner.twspositionsizer.ui;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Graphics;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseWheelEvent;
@@ -16,6 +17,7 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.InputMismatchException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.ButtonGroup;
 import javax.swing.DefaultListModel;
@@ -26,14 +28,24 @@ import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JRadioButton;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
 import com.ib.controller.ApiController;
-import com.ib.controller.NewOrder;
 import com.ib.controller.NewOrderState;
 import com.ib.controller.OrderStatus;
-import com.ib.controller.OrderType;
+import com.peterflanner.twspositionsizer.controller.AccountSummaries;
+import com.peterflanner.twspositionsizer.controller.BarCache;
+import com.peterflanner.twspositionsizer.controller.Bracket;
+import com.peterflanner.twspositionsizer.controller.MyApiController;
+import com.peterflanner.twspositionsizer.controller.OrderTracker;
+import com.peterflanner.twspositionsizer.controller.PortfolioHeat;
+import com.peterflanner.twspositionsizer.controller.PositionCache;
+import com.peterflanner.twspositionsizer.diagnostics.PipelineLatency;
+import com.peterflanner.twspositionsizer.engine.PositionSizer;
+import com.peterflanner.twspositionsizer.engine.SizingGraph;
 import com.peterflanner.twspositionsizer.ui.components.NewTabbedPanel.INewTab;
 
 import com.ib.controller.AccountSummaryTag;
@@ -41,27 +53,111 @@ import com.ib.controller.NewContract;
 import com.ib.controller.NewContractDetails;
 import com.ib.controller.NewTickType;
 import com.ib.controller.Types;
-import com.ib.controller.ApiController.IAccountSummaryHandler;
 import com.ib.controller.ApiController.IDisplayGroupHandler;
 import com.ib.controller.ApiController.ITopMktDataHandler;
 import com.ib.controller.ApiController.IContractDetailsHandler;
 import com.peterflanner.twspositionsizer.ui.components.VerticalPanel;
 import com.peterflanner.twspositionsizer.util.UIUtils;
 
-public class PositionSizerPanel extends JPanel implements INewTab, IAccountSummaryHandler, IDisplayGroupHandler, ITopMktDataHandler, IContractDetailsHandler {
+public class PositionSizerPanel extends JPanel implements INewTab, IDisplayGroupHandler, ITopMktDataHandler, IContractDetailsHandler {
 	private DefaultListModel<String> m_acctList = new DefaultListModel<>();
 	private JList<String> m_accounts = new JList<>( m_acctList);
-	private String m_selAcct = "";
+	private volatile String m_selAcct = "";
+	// row of the selected account in the account store, NONE until its first value arrives
+	private volatile int m_selRow = AccountSummaries.NONE;
+	private final AccountSummaries.Snapshot m_account = new AccountSummaries.Snapshot();
+	private final AtomicBoolean m_accountRefreshScheduled = new AtomicBoolean();
+	private final Runnable m_accountRefresh = new Runnable() {
+		@Override public void run() {
+			refreshAccount();
+		}
+	};
+	private final AccountSummaries.IAccountListener m_accountListener = new AccountSummaries.IAccountListener() {
+		@Override public void changed(int row, AccountSummaryTag tag, double value) {
+			// runs on a dispatcher stripe, the EDT takes one snapshot of the account however many tags changed
+			if (!isSizingTag( tag) ) {
+				return;
+			}
+			if (m_selRow == AccountSummaries.NONE) {
+				m_selRow = MainPanel.INSTANCE.controller().accounts().row( m_selAcct);
+			}
+			if (row == m_selRow && m_accountRefreshScheduled.compareAndSet( false, true) ) {
+				SwingUtilities.invokeLater( m_accountRefresh);
+			}
+		}
+	};
+	// contract whose orders and position are taken into account, compared on the EReader thread
+	private volatile String m_riskSymbol = null;
+	private volatile int m_riskConid = 0;
+	private final AtomicBoolean m_exposureRefreshScheduled = new AtomicBoolean();
+	private final Runnable m_exposureRefresh = new Runnable() {
+		@Override public void run() {
+			refreshExposure();
+		}
+	};
+	private final OrderTracker.IOrderListener m_orderListener = new OrderTracker.IOrderListener() {
+		@Override public void changed(String account, String symbol, int conid) {
+			if (symbol.equals( m_riskSymbol) && account.equals( m_selAcct) ) {
+				scheduleExposureRefresh();
+			}
+		}
+	};
+	private final PortfolioHeat.IHeatListener m_heatListener = new PortfolioHeat.IHeatListener() {
+		@Override public void changed() {
+			scheduleExposureRefresh();
+		}
+	};
+	private final PositionCache.IPositionListener m_positionListener = new PositionCache.IPositionListener() {
+		@Override public void changed(String account, int conid) {
+			if (conid == m_riskConid && account.equals( m_selAcct) ) {
+				scheduleExposureRefresh();
+			}
+		}
+	};
+	// contract of the display group, whose bars are streaming
+	private volatile int m_atrConid = 0;
+	private final AtomicBoolean m_atrRefreshScheduled = new AtomicBoolean();
+	private final Runnable m_atrRefresh = new Runnable() {
+		@Override public void run() {
+			refreshAtr();
+		}
+	};
+	private final BarCache.IBarListener m_barListener = new BarCache.IBarListener() {
+		@Override public void changed(int conid) {
+			// real time bars arrive every 5 seconds, still only one refresh waits on the EDT at a time
+			if (conid == m_atrConid) {
+				scheduleAtrRefresh();
+			}
+		}
+	};
 	private JLabel m_lastUpdated = new JLabel();
 	
 	private JTextField netLiquidationTextField = new JTextField(7);
 	private JTextField currentContractTextField = new JTextField(7);
-	private JTextField currentPriceTextField = new JTextField(7);
+	// receive time of the frame whose price is waiting to be painted, 0 if none, only touched on the EDT
+	private long paintReceivedNanos = 0;
+	private JTextField currentPriceTextField = new JTextField(7) {
+		@Override
+		protected void paintComponent(Graphics g) {
+			super.paintComponent(g);
+			if (paintReceivedNanos != 0) {
+				MainPanel.INSTANCE.controller().latency().recordSince(PipelineLatency.Stage.PAINT, paintReceivedNanos);
+				paintReceivedNanos = 0;
+			}
+		}
+	};
 	private JTextField riskTextField = new JTextField("100",7);
 	private JTextField stopLossTextField = new JTextField(7);
 	private JTextField sharesToBuyTextField = new JTextField(7);
 	private JTextField valueOfSharesTextField = new JTextField(7);
+	private JTextField targetTextField = new JTextField(7);
+	private JTextField openRiskTextField = new JTextField(7);
+	private JTextField positionTextField = new JTextField(7);
+	private JTextField heatTextField = new JTextField(12);
+	private JTextField heatLimitTextField = new JTextField(7);
+	private JTextField atrTextField = new JTextField(12);
 	private JCheckBox liveUpdateCheckbox = new JCheckBox("Live Update");
+	private JCheckBox autoCalculateCheckbox = new JCheckBox("Auto");
 	private JCheckBox outsideRTHCheckbox = new JCheckBox("Outside RTH");
     
     private JRadioButton stopLossPercentRadioButton = new JRadioButton("Percent");
@@ -74,21 +170,121 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
 	private NumberFormat doubleZeroFormat = new DecimalFormat("0.00");
 	private NumberFormat numberFormat = NumberFormat.getInstance();
 	
-	private volatile boolean wasAcctSummaryRequested = false;
-	// are we refreshing because of a refresh button press?
-	private volatile boolean isRefreshing = false;
+	// fill the absolute stop with the first price of a new contract, later ticks leave the user's stop alone; the stop
+	// and ATR fields are only touched on the EDT
+	private boolean prefillStop = false;
+	// the stop we filled in ourselves, replaced by the ATR stop once the ATR arrives unless the user changed it
+	private String prefilledStop = null;
+	// daily ATR of the display group's contract, NaN until its bars are in
+	private double atr = Double.NaN;
+	private final double atrMultiple = parseProperty("twspositionsizer.atrMultiple", PositionSizer.DEFAULT_ATR_MULTIPLE);
+	// sizing inputs from the selected account's last snapshot, only touched on the EDT
 	private double excessLiquidity = -1.0;
 	private double totalCashValue = -1.0;
 	private double buyingPower = -1.0;
+	private double accountNlv = -1.0;
 	
+	// the display group's contract once its details are in, only touched on the EDT
 	private NewContract currentContract = null;
+	// conid of the streaming subscription this panel is attached to, 0 if none
+	private volatile int subscribedConid = 0;
+
+	// parsed once when the text changes rather than on every calculation
+	private double nlv = -1.0;
+	private double currentPrice = -1.0;
+	// dollars at risk in our unfilled brackets on the current symbol, taken off the max risk
+	private double openRisk = 0;
+	// shares of the current symbol the selected account holds, taken off the shares to buy
+	private int position = 0;
+	// what's left of the portfolio heat limit, NaN until the account's NLV is known
+	private double riskCap = Double.NaN;
+	private final PositionSizer sizer = new PositionSizer();
+	private final PositionSizer.Result sizing = new PositionSizer.Result();
+	// auto mode, every input is fed in as it changes and the outputs are recomputed at most once per frame
+	private final SizingGraph sizingGraph = new SizingGraph();
+	private final Timer recalcTimer = new Timer(
+			Integer.getInteger("twspositionsizer.frameMillis", TickCoalescer.DEFAULT_FRAME_MILLIS),
+			new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					recalculate();
+				}
+			});
+
+	private final TickCoalescer m_ticks = new TickCoalescer(
+			Integer.getInteger("twspositionsizer.frameMillis", TickCoalescer.DEFAULT_FRAME_MILLIS),
+			new TickCoalescer.IFrameListener() {
+				@Override
+				public void frame(TickCoalescer ticks) {
+					MainPanel.INSTANCE.controller().latency().recordSince(PipelineLatency.Stage.FRAME, ticks.receivedNanos());
+					if (ticks.isDirty(NewTickType.LAST)) {
+						updatePrice(ticks.price(NewTickType.LAST));
+						paintReceivedNanos = ticks.receivedNanos();
+					} else if (ticks.isDirty(NewTickType.CLOSE) && currentPriceTextField.getText().isEmpty()) {
+						updatePrice(ticks.price(NewTickType.CLOSE));
+						paintReceivedNanos = ticks.receivedNanos();
+					}
+					// the tick is already debounced to this frame, don't wait for another
+					recalculate();
+				}
+			});
 
 	PositionSizerPanel() {
 		m_accounts.setPreferredSize( new Dimension( 100, 100) );
         UIUtils.disableTextField(currentContractTextField);
 		UIUtils.disableTextField(sharesToBuyTextField);
 		UIUtils.disableTextField(valueOfSharesTextField);
+		UIUtils.disableTextField(openRiskTextField);
+		UIUtils.disableTextField(positionTextField);
+		openRiskTextField.setToolTipText("Risk in bracket entries on this symbol that haven't filled yet, taken off the max risk");
+		UIUtils.disableTextField(heatTextField);
+		heatTextField.setToolTipText("Risk to the stops over all positions and working entries, and the heat limit");
+		UIUtils.addTextChangeListener(heatLimitTextField, new Runnable() {
+			@Override
+			public void run() {
+				double percent = parseOrNaN(heatLimitTextField);
+				if (percent > 0) {
+					MainPanel.INSTANCE.controller().heat().limitPercent(percent);
+				}
+			}
+		});
+		UIUtils.disableTextField(atrTextField);
+		atrTextField.setToolTipText("Average true range over 14 daily and 14 five minute bars");
+		positionTextField.setToolTipText("Shares the account already holds, Shares to Buy is what to add to reach the max risk");
 		originalDisabledBackgroundColor = currentContractTextField.getBackground();
+		UIUtils.addTextChangeListener(netLiquidationTextField, new Runnable() {
+			@Override
+			public void run() {
+				nlv = parseOrNegative(netLiquidationTextField);
+				sizingGraph.nlv(nlv);
+				inputChanged();
+			}
+		});
+		UIUtils.addTextChangeListener(currentPriceTextField, new Runnable() {
+			@Override
+			public void run() {
+				currentPrice = parseOrNegative(currentPriceTextField);
+				sizingGraph.price(currentPrice);
+				inputChanged();
+			}
+		});
+		UIUtils.addTextChangeListener(riskTextField, new Runnable() {
+			@Override
+			public void run() {
+				sizingGraph.risk(parseOrNaN(riskTextField));
+				inputChanged();
+			}
+		});
+		UIUtils.addTextChangeListener(stopLossTextField, new Runnable() {
+			@Override
+			public void run() {
+				sizingGraph.stop(parseOrNaN(stopLossTextField));
+				inputChanged();
+			}
+		});
+		sizingGraph.risk(parseOrNaN(riskTextField));
+		recalcTimer.setRepeats(false);
+		recalcTimer.setCoalesce(true);
 
 		JLabel stopLossLabel = new JLabel("Stop Loss (Absolute)");
 		MouseWheelListener stopLossMouseWheelListener = new MouseWheelListener() {
@@ -122,6 +318,8 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
                     stopLossTextField.setText("-1.0");
                     stopLossLabel.setText("Stop Loss (%)");
                 }
+                sizingGraph.stopIsPercent(stopLossPercentRadioButton.isSelected());
+                inputChanged();
             }
         };
 		stopLossAbsoluteRadioButton.addActionListener(slRadioButtonActionListener);
@@ -160,6 +358,8 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
                     riskTextField.setText("0.5");
                     riskLabel.setText("Risk (%)");
                 }
+                sizingGraph.riskIsPercent(riskPercentRadioButton.isSelected());
+                inputChanged();
             }
         };
         riskAbsoluteRadioButton.addActionListener(riskRadioButtonActionListener);
@@ -169,7 +369,6 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
 		refreshButton.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				isRefreshing = true;
 				requestData();
 			}
 		});
@@ -182,6 +381,15 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
 			}
 		});
 		
+		JButton atrStopButton = new JButton("ATR Stop");
+		atrStopButton.setToolTipText("Set the stop " + doubleZeroFormat.format(atrMultiple) + " daily ATRs below the current price");
+		atrStopButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				useAtrStop();
+			}
+		});
+
 		JButton orderButton = new JButton("Place Order");
 		orderButton.addActionListener(new ActionListener() {
             @Override
@@ -197,6 +405,18 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
             }
         });
 		
+		autoCalculateCheckbox.setToolTipText("Recalculate whenever the price, account, risk or stop changes");
+		autoCalculateCheckbox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                calculateButton.setEnabled(!autoCalculateCheckbox.isSelected());
+                if (autoCalculateCheckbox.isSelected()) {
+                    showSizing(sizingGraph.shares(), sizingGraph.value(), sizingGraph.tier());
+                    inputChanged();
+                }
+            }
+        });
+		
 		VerticalPanel mainPanel = new VerticalPanel();
 
 		mainPanel.add("Net Liquidation", netLiquidationTextField);
@@ -204,10 +424,16 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
 		mainPanel.add("Current Price", currentPriceTextField);
 		mainPanel.add(riskLabel, riskTextField, riskAbsoluteRadioButton, riskPercentRadioButton);
 		mainPanel.add(stopLossLabel, stopLossTextField, stopLossAbsoluteRadioButton, stopLossPercentRadioButton);
+		mainPanel.add("ATR", atrTextField, atrStopButton);
+		mainPanel.add("Position", positionTextField);
+		mainPanel.add("Working Risk", openRiskTextField);
+		mainPanel.add("Portfolio Heat", heatTextField);
+		mainPanel.add("Heat Limit (%)", heatLimitTextField);
 		mainPanel.add("Shares to Buy", sharesToBuyTextField);
 		mainPanel.add("Value of Shares", valueOfSharesTextField);
+		mainPanel.add("Target (optional)", targetTextField);
 		mainPanel.add(refreshButton, calculateButton, orderButton);
-		mainPanel.add(-1, liveUpdateCheckbox, outsideRTHCheckbox);
+		mainPanel.add(-1, liveUpdateCheckbox, autoCalculateCheckbox, outsideRTHCheckbox);
 
 		setLayout(new BorderLayout());
 		add(m_lastUpdated, BorderLayout.SOUTH);
@@ -222,59 +448,73 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
 	}
 
 	private void calculate() {
+		if (!(nlv > 0) || !(currentPrice > 0)) {
+			MainPanel.INSTANCE.show("Cannot calculate without Net Liquidating Value and Current Price.  Press Refresh to request these values again.");
+			return;
+		}
 		try {
-            double nlv = doubleZeroFormat.parse(netLiquidationTextField.getText()).doubleValue();
-            double currentPrice = numberFormat.parse(currentPriceTextField.getText()).doubleValue();
-            try {
-                // this could be percent of nlv or a dollar value
-                double maxRisk = numberFormat.parse(riskTextField.getText()).doubleValue();
-                double maxRiskValue;
-                if (riskPercentRadioButton.isSelected()) {
-                    maxRiskValue = nlv * maxRisk / 100;
-                } else {
-                    maxRiskValue = maxRisk;
-                }
-                double stopLoss = numberFormat.parse(stopLossTextField.getText()).doubleValue();
-                if (stopLossPercentRadioButton.isSelected()) {
-                    stopLoss = ((1 + (stopLoss / 100)) * currentPrice);
-                }
-                //validateValues(nlv, currentPrice, maxRisk, stopLoss);// TODO revisit
+			// this could be percent of nlv or a dollar value
+			double maxRisk = numberFormat.parse(riskTextField.getText()).doubleValue();
+			double stopLoss = numberFormat.parse(stopLossTextField.getText()).doubleValue();
+			long start = System.nanoTime();
+			sizer.riskIsPercent(riskPercentRadioButton.isSelected());
+			sizer.stopIsPercent(stopLossPercentRadioButton.isSelected());
+			sizer.riskCap(riskCap);
+			sizer.size(nlv, currentPrice, maxRisk, openRisk, position, stopLoss, buyingPower, excessLiquidity, totalCashValue, sizing);
+			showSizing(sizing.shares(), sizing.value(), sizing.tier());
+			MainPanel.INSTANCE.controller().latency().record(PipelineLatency.Stage.CALCULATE, System.nanoTime() - start);
+			if (sizing.capped()) {
+				MainPanel.INSTANCE.show("Shares to Buy cut to " + sizing.shares() + " by the portfolio heat limit.");
+			}
+			MainPanel.INSTANCE.accountsPanel().trade(currentContractTextField.getText(), currentPrice, maxRisk, sizer.riskIsPercent(),
+					stopLoss, sizer.stopIsPercent());
+		} catch (ParseException pe) {
+			MainPanel.INSTANCE.show("Invalid value entered for Risk or Stop Loss.");
+		}
+	}
 
-                int sharesToBuy = (int) (maxRiskValue / (currentPrice - stopLoss)); // truncation is fine, this is just an estimate
-				if (sharesToBuy > 100) {
-					sharesToBuy = sharesToBuy / 100 * 100; // floor to the nearest 100
-				}
-                sharesToBuyTextField.setText(String.valueOf(sharesToBuy));
-                double valueOfShares = sharesToBuy * currentPrice;
-                valueOfSharesTextField.setText(doubleZeroFormat.format(valueOfShares));
-                
-                // color code shares to buy and value of shares based on what account values it exceeds
-                if (buyingPower >=0 && valueOfShares > buyingPower) {
-                    sharesToBuyTextField.setBackground(Color.RED);
-                    valueOfSharesTextField.setBackground(Color.RED);
-                } else if (excessLiquidity >= 0 && valueOfShares > excessLiquidity) {
-                    sharesToBuyTextField.setBackground(Color.ORANGE);
-                    valueOfSharesTextField.setBackground(Color.ORANGE);
-                } else if (totalCashValue >= 0 && valueOfShares > totalCashValue) {
-                    sharesToBuyTextField.setBackground(Color.YELLOW);
-                    valueOfSharesTextField.setBackground(Color.YELLOW);
-                } else if (buyingPower >= 0 && excessLiquidity >= 0 && totalCashValue >= 0) {
-                    sharesToBuyTextField.setBackground(Color.GREEN);
-                    valueOfSharesTextField.setBackground(Color.GREEN);
-                } else {
-                    sharesToBuyTextField.setBackground(originalDisabledBackgroundColor);
-                    valueOfSharesTextField.setBackground(originalDisabledBackgroundColor);
-                }
-            } catch (ParseException pe) {
-                MainPanel.INSTANCE.show("Invalid value entered for Risk or Stop Loss.");
-            } catch (InputMismatchException ie) {
-                MainPanel.INSTANCE.show("Invalid input");
-            }
-        } catch (ParseException pe) {
-            MainPanel.INSTANCE.show("Cannot calculate without Net Liquidating Value and Current Price.  Press Refresh to request these values again.");
-        }
+	/** An input of the sizing graph changed, recompute on the next frame if we're in auto mode. */
+	private void inputChanged() {
+		if (autoCalculateCheckbox.isSelected() && !recalcTimer.isRunning()) {
+			recalcTimer.start();
+		}
 	}
-	
+
+	/** Auto mode: recompute whatever depends on the inputs that changed and touch only the fields whose value moved. */
+	private void recalculate() {
+		recalcTimer.stop();
+		if (!autoCalculateCheckbox.isSelected() || !sizingGraph.isDirty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		sizingGraph.riskIsPercent(riskPercentRadioButton.isSelected());
+		sizingGraph.stopIsPercent(stopLossPercentRadioButton.isSelected());
+		int changed = sizingGraph.recompute();
+		if ((changed & SizingGraph.SHARES_CHANGED) != 0) {
+			sharesToBuyTextField.setText(String.valueOf(sizingGraph.shares()));
+		}
+		if ((changed & SizingGraph.VALUE_CHANGED) != 0) {
+			valueOfSharesTextField.setText(doubleZeroFormat.format(sizingGraph.value()));
+		}
+		if ((changed & SizingGraph.TIER_CHANGED) != 0) {
+			showTier(sizingGraph.tier());
+		}
+		MainPanel.INSTANCE.controller().latency().record(PipelineLatency.Stage.CALCULATE, System.nanoTime() - start);
+	}
+
+	private void showSizing(int shares, double value, PositionSizer.Tier tier) {
+		sharesToBuyTextField.setText(String.valueOf(shares));
+		valueOfSharesTextField.setText(doubleZeroFormat.format(value));
+		showTier(tier);
+	}
+
+	private void showTier(PositionSizer.Tier tier) {
+		// color code shares to buy and value of shares based on what account values it exceeds
+		Color color = UIUtils.tierColor(tier, originalDisabledBackgroundColor);
+		sharesToBuyTextField.setBackground(color);
+		valueOfSharesTextField.setBackground(color);
+	}
+
 	static class OrderHandler implements ApiController.IOrderHandler {
         @Override
         public void orderState(NewOrderState orderState) {
@@ -305,34 +545,20 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
 	        int totalQuantity = Integer.parseInt(sharesToBuyTextField.getText());
 	        
 	        if (totalQuantity != 0) {
-				int parentId = MainPanel.INSTANCE.controller().getNextValidId();
-	        	Types.Action orderAction = totalQuantity > 0 ? Types.Action.BUY : Types.Action.SELL;
-	        	Types.Action stopAction = totalQuantity > 0 ? Types.Action.SELL : Types.Action.BUY;
-	        	totalQuantity = Math.abs(totalQuantity);
-
-				NewOrder order = new NewOrder();
-				order.orderId(parentId);
-				order.action(orderAction);
-				order.orderType(OrderType.LMT);
-				order.lmtPrice(numberFormat.parse(currentPriceTextField.getText()).doubleValue());
-				order.totalQuantity(totalQuantity);
-				order.outsideRth(outsideRTHCheckbox.isSelected());
-				order.transmit(false);
-
-				NewOrder stopLoss = new NewOrder();
-				stopLoss.orderId(parentId + 1);
-				stopLoss.action(stopAction);
-				stopLoss.orderType(OrderType.STP);
-				stopLoss.auxPrice(numberFormat.parse(stopLossTextField.getText()).doubleValue());
-				stopLoss.totalQuantity(totalQuantity);
-				stopLoss.parentId(parentId);
-				order.outsideRth(outsideRTHCheckbox.isSelected());
-				stopLoss.transmit(true);
-
-				MainPanel.INSTANCE.controller().placeOrModifyOrder(currentContract, order, new OrderHandler());
-				MainPanel.INSTANCE.controller().placeOrModifyOrder(currentContract, stopLoss, new OrderHandler());
-
-				MainPanel.INSTANCE.controller().nextValidId(parentId + 2);
+				double price = numberFormat.parse(currentPriceTextField.getText()).doubleValue();
+				double stopLoss = numberFormat.parse(stopLossTextField.getText()).doubleValue();
+
+				Bracket bracket = new Bracket(currentContract);
+				bracket.account(m_selAcct.isEmpty() ? null : m_selAcct);
+				bracket.shares(totalQuantity);
+				bracket.limitPrice(price);
+				bracket.stopPrice(PositionSizer.stopPrice(price, stopLoss, stopLossPercentRadioButton.isSelected()));
+				bracket.targetPrice(parseOrNaN(targetTextField));
+				bracket.outsideRth(outsideRTHCheckbox.isSelected());
+				bracket.handler(new OrderHandler());
+
+				// the order ids come from the controller's allocator, all legs go out in one write
+				MainPanel.INSTANCE.controller().orders().submit(bracket);
 			} else {
 	        	MainPanel.INSTANCE.show("Order quantity was 0. No action taken.");
 			}
@@ -341,21 +567,26 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
         }
     }
 
-	/** Called when the tab is first visited. */
+	/** Called when the tab is first visited, and again whenever the account list arrives. */
 	@Override public void activated() {
+		listen( MainPanel.INSTANCE.controller() );
+		
+		String selAcct = m_accounts.getSelectedValue();
+		m_acctList.clear();
 		for (String account : MainPanel.INSTANCE.accountList() ) {
 			m_acctList.addElement( account);
 		}
 		
-		if (MainPanel.INSTANCE.accountList().size() == 1) {
-			m_accounts.setSelectedIndex( 0);
+		// keep the selection across reconnects, otherwise start with the first account
+		int i = selAcct == null ? -1 : m_acctList.indexOf( selAcct);
+		if (i == -1 && !m_acctList.isEmpty() ) {
+			i = 0;
+		}
+		if (i != -1) {
+			m_accounts.setSelectedIndex( i);
 		}
 	}
 	
-	public void disconnected() {
-	    wasAcctSummaryRequested = false;
-    }
-	
 	/** Called when the tab is closed by clicking the X. */
 	@Override public void closed() {
 	}
@@ -365,49 +596,94 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
 		if (i != -1) {
 			String selAcct = m_acctList.get(i);
 			if (selAcct != null && !selAcct.isEmpty()) {
-				m_selAcct = selAcct;
-				AccountSummaryTag[] tags = {AccountSummaryTag.NetLiquidation, AccountSummaryTag.ExcessLiquidity, AccountSummaryTag.TotalCashValue, AccountSummaryTag.BuyingPower};
-				if (!wasAcctSummaryRequested) {
-					MainPanel.INSTANCE.controller().reqAccountSummary("All", tags, this);
-					wasAcctSummaryRequested = true;
-				}
+				selectAccount( selAcct);
+				MainPanel.INSTANCE.controller().accounts().subscribe();
 				MainPanel.INSTANCE.controller().queryDisplayGroups(this);
 			}
 		}
 	}
 	
+	private void listen( MyApiController controller) {
+		controller.accounts().addListener( m_accountListener);
+		controller.orderTracker().addListener( m_orderListener);
+		controller.positions().addListener( m_positionListener);
+		controller.heat().addListener( m_heatListener);
+		controller.bars().addListener( m_barListener);
+		heatLimitTextField.setText( doubleZeroFormat.format( controller.heat().limitPercent() ) );
+	}
+	
+	private void unlisten( MyApiController controller) {
+		controller.accounts().removeListener( m_accountListener);
+		controller.orderTracker().removeListener( m_orderListener);
+		controller.positions().removeListener( m_positionListener);
+		controller.heat().removeListener( m_heatListener);
+		controller.bars().removeListener( m_barListener);
+	}
+	
+	/** Switch to another account, starting from whatever the store already holds for it. */
+	private void selectAccount(String account) {
+		MyApiController previous = MainPanel.INSTANCE.controller();
+		MyApiController controller = MainPanel.INSTANCE.controllerFor( account);
+		if (controller != previous) {
+			// the account is on another session: follow its stores, its market data and its display group instead
+			cancelData();
+			previous.unsubscribeFromGroupEvents( this);
+			unlisten( previous);
+			MainPanel.INSTANCE.activate( controller);
+			listen( controller);
+			m_atrConid = 0;
+		}
+		m_selAcct = account;
+		m_selRow = MainPanel.INSTANCE.controller().accounts().row( account);
+		MainPanel.INSTANCE.controller().positions().portfolio( account);
+		MainPanel.INSTANCE.controller().heat().account( account);
+		refreshAccount();
+		refreshExposure();
+	}
+	
+	/** Copy the selected account's values out of the store, on the EDT. */
+	private void refreshAccount() {
+		m_accountRefreshScheduled.set( false);
+		AccountSummaries accounts = MainPanel.INSTANCE.controller().accounts();
+		if (accounts.snapshot( m_selRow, m_account) ) {
+			accountNlv = m_account.get( AccountSummaryTag.NetLiquidation, -1.0);
+			buyingPower = m_account.get( AccountSummaryTag.BuyingPower, -1.0);
+			excessLiquidity = m_account.get( AccountSummaryTag.ExcessLiquidity, -1.0);
+			totalCashValue = m_account.get( AccountSummaryTag.TotalCashValue, -1.0);
+			m_lastUpdated.setText("Last Updated: " + new Date());
+		} else {
+			accountNlv = buyingPower = excessLiquidity = totalCashValue = -1.0;
+		}
+		netLiquidationTextField.setText( accountNlv < 0 ? "" : doubleZeroFormat.format( accountNlv) );
+		sizingGraph.account( buyingPower, excessLiquidity, totalCashValue);
+		// the heat limit is a percent of NLV
+		refreshHeat();
+		MainPanel.INSTANCE.watchlistPanel().account(m_selAcct, accountNlv, buyingPower, excessLiquidity, totalCashValue);
+	}
+	
+	private static boolean isSizingTag(AccountSummaryTag tag) {
+		return tag == AccountSummaryTag.NetLiquidation || tag == AccountSummaryTag.BuyingPower
+				|| tag == AccountSummaryTag.ExcessLiquidity || tag == AccountSummaryTag.TotalCashValue;
+	}
+	
 	private void cancelData() {
-	    MainPanel.INSTANCE.controller().cancelTopMktData(this);
+		int conid = subscribedConid;
+		if (conid != 0) {
+			subscribedConid = 0;
+			MainPanel.INSTANCE.controller().mktData().unsubscribe(conid, this);
+		}
     }
 	
 	private void toggleLiveUpdate() {
         cancelData();
         if (liveUpdateCheckbox.isSelected()) {
 			requestData();
+		} else {
+			MainPanel.INSTANCE.show(m_ticks.toString());
+			MainPanel.INSTANCE.show(MainPanel.INSTANCE.controller().mktData().toString());
 		}
     }
 
-	@Override
-	public void accountSummary(String account, AccountSummaryTag accountSummaryTag, String value, String currency) {
-	    if (account.equals( m_selAcct) ) {
-			if (accountSummaryTag == AccountSummaryTag.NetLiquidation) {
-				netLiquidationTextField.setText(doubleZeroFormat.format(Double.parseDouble(value)));
-				m_lastUpdated.setText("Last Updated: " + new Date());
-			} else if (accountSummaryTag == AccountSummaryTag.ExcessLiquidity) {
-			    excessLiquidity = Double.parseDouble(value);
-            } else if (accountSummaryTag == AccountSummaryTag.TotalCashValue) {
-			    totalCashValue = Double.parseDouble(value);
-            } else if (accountSummaryTag == AccountSummaryTag.BuyingPower) {
-			    buyingPower = Double.parseDouble(value);
-            }
-		}
-	}
-
-	@Override
-	public void accountSummaryEnd() {
-
-	}
-	
 	//---------- Display Groups -------
 	@Override
 	public void displayGroupList(int[] groups) {
@@ -420,58 +696,84 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
 	
 	@Override
 	public void displayGroupUpdated(String contractInfo) {
+		// called on the EReader thread, the fields, the graph and the stop prefill belong to the EDT
 		String CONTRACT_INFO_SEPARATOR = "@";
 		String[] split = contractInfo.split(CONTRACT_INFO_SEPARATOR);
 		if (split.length > 0) {
-			int id = Integer.parseInt(split[0]);
-			String exchange = "SMART";
-			if (split.length == 2) {
-				exchange = split[1];
-			}
-			NewContract contract = new NewContract();
-			contract.exchange(exchange);
-			contract.conid(id);
-			
-			// before we request the data, we should clear the current price and stop loss fields so it's not confusing
-            // if we don't get anything back for the current contract price
-            currentPriceTextField.setText("");
-            
-//            sharesToBuyTextField.setText("");
-//            valueOfSharesTextField.setText("");
-//            sharesToBuyTextField.setBackground(originalDisabledBackgroundColor);
-//            valueOfSharesTextField.setBackground(originalDisabledBackgroundColor);
-            
-            // if  we're live updating, request a market stream, otherwise just a snapshot
-            if (liveUpdateCheckbox.isSelected()) {
-                cancelData();
-                MainPanel.INSTANCE.controller().reqTopMktData(contract, "", false, this);
-            } else {
-                MainPanel.INSTANCE.controller().reqTopMktData(contract, "", true, this);
-            }
-			MainPanel.INSTANCE.controller().reqContractDetails(contract, this);
+			final int id = Integer.parseInt(split[0]);
+			final String exchange = split.length == 2 ? split[1] : "SMART";
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override public void run() {
+					showContract(id, exchange);
+				}
+			});
 		}
 	}
 
+	/** Follow the contract the display group moved to, on the EDT. */
+	private void showContract(int id, String exchange) {
+		NewContract contract = new NewContract();
+		contract.exchange(exchange);
+		contract.conid(id);
+		if (currentContract == null || currentContract.conid() != id) {
+			prefillStop = true;
+		}
+		if (m_atrConid != id) {
+			m_atrConid = id;
+			atr = Double.NaN;
+			scheduleAtrRefresh();
+		}
+		// history comes from the cache after the first visit, only the live bars move to the new contract
+		MainPanel.INSTANCE.controller().bars().view(contract);
+		
+		// before we request the data, we should clear the current price and stop loss fields so it's not confusing
+		// if we don't get anything back for the current contract price
+		currentPriceTextField.setText("");
+		m_ticks.clear();
+		
+//		sharesToBuyTextField.setText("");
+//		valueOfSharesTextField.setText("");
+//		sharesToBuyTextField.setBackground(originalDisabledBackgroundColor);
+//		valueOfSharesTextField.setBackground(originalDisabledBackgroundColor);
+		
+		// if  we're live updating, request a market stream, otherwise just a snapshot
+		if (liveUpdateCheckbox.isSelected()) {
+			cancelData();
+			subscribedConid = id;
+			MainPanel.INSTANCE.controller().mktData().subscribe(contract, this);
+		} else {
+			MainPanel.INSTANCE.controller().mktData().snapshot(contract, this);
+		}
+		MainPanel.INSTANCE.controller().contractDetails().reqContractDetails(contract, this);
+	}
+
 	// -------------------- Top of Market Data ------------------
 	@Override
 	public void tickPrice(NewTickType tickType, double price, int canAutoExecute) {
-		if (tickType == NewTickType.LAST) {
-			updatePrice(price);
-		} else if (tickType == NewTickType.CLOSE) {
-			if (currentPriceTextField.getText().isEmpty()) {
-				updatePrice(price);
-			}
+		// runs on the conid's dispatcher stripe, the EDT picks up the latest LAST/CLOSE once per frame
+		if (tickType == NewTickType.LAST || tickType == NewTickType.CLOSE) {
+			MyApiController controller = MainPanel.INSTANCE.controller();
+			long received = controller.receivedNanos();
+			controller.latency().recordSince(PipelineLatency.Stage.DISPATCH, received);
+			m_ticks.tickPrice(tickType, price, received);
 		}
 	}
 	
 	private void updatePrice(double price) {
 		String strPrice = doubleZeroFormat.format(price);
 		currentPriceTextField.setText(strPrice);
-		if (stopLossAbsoluteRadioButton.isSelected() && !isRefreshing) {
-            stopLossTextField.setText(strPrice);
+		MainPanel.INSTANCE.accountsPanel().price(price);
+		if (currentContract != null) {
+			MainPanel.INSTANCE.controller().positions().mark(currentContract.conid(), price);
+			MainPanel.INSTANCE.controller().heat().price(currentContract.conid(), price);
+		}
+		if (stopLossAbsoluteRadioButton.isSelected() && prefillStop) {
+			double stop = PositionSizer.atrStop(price, atr, atrMultiple, true);
+			prefilledStop = Double.isNaN(stop) ? strPrice : doubleZeroFormat.format(stop);
+			stopLossTextField.setText(prefilledStop);
         }
 		m_lastUpdated.setText("Last Updated: " + new Date());
-		isRefreshing = false;
+		prefillStop = false;
 	}
 
 	@Override
@@ -496,14 +798,125 @@ public class PositionSizerPanel extends JPanel implements INewTab, IAccountSumma
 
 	// ------------------- Contract Details -------------------
 	@Override
-	public void contractDetails(ArrayList<NewContractDetails> list) {
-		for (NewContractDetails details : list) {
-			String symbol = details.contract().symbol();
-			currentContract = details.contract();
-			currentContractTextField.setText(symbol);
+	public void contractDetails(final ArrayList<NewContractDetails> list) {
+		// called on a dispatcher stripe
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override public void run() {
+				for (NewContractDetails details : list) {
+					String symbol = details.contract().symbol();
+					currentContract = details.contract();
+					currentContractTextField.setText(symbol);
+					m_riskSymbol = symbol;
+					m_riskConid = details.contract().conid();
+				}
+				refreshExposure();
+			}
+		});
+	}
+
+	private void scheduleExposureRefresh() {
+		if (m_exposureRefreshScheduled.compareAndSet( false, true) ) {
+			SwingUtilities.invokeLater( m_exposureRefresh);
+		}
+	}
+
+	/** Take the working risk and the position in the current contract from the tracker and the cache, on the EDT. */
+	private void refreshExposure() {
+		m_exposureRefreshScheduled.set( false);
+		MyApiController controller = MainPanel.INSTANCE.controller();
+		String symbol = m_riskSymbol;
+		openRisk = symbol == null ? 0 : controller.orderTracker().workingRisk( m_selAcct, symbol);
+		openRiskTextField.setText( doubleZeroFormat.format( openRisk) );
+		position = controller.positions().position( m_selAcct, m_riskConid);
+		positionTextField.setText( position == 0 ? "0"
+				: position + " @ " + doubleZeroFormat.format( controller.positions().avgCost( m_selAcct, m_riskConid) ) );
+		sizingGraph.openRisk( openRisk);
+		sizingGraph.position( position);
+		refreshHeat();
+	}
+
+	private void scheduleAtrRefresh() {
+		if (m_atrRefreshScheduled.compareAndSet( false, true) ) {
+			SwingUtilities.invokeLater( m_atrRefresh);
+		}
+	}
+
+	/** Show the ATRs of the current contract, and move a stop we prefilled to the ATR stop, on the EDT. */
+	private void refreshAtr() {
+		m_atrRefreshScheduled.set( false);
+		BarCache bars = MainPanel.INSTANCE.controller().bars();
+		int conid = m_atrConid;
+		atr = bars.atr( conid);
+		double intradayAtr = bars.intradayAtr( conid);
+		atrTextField.setText( (Double.isNaN( atr) ? "-" : doubleZeroFormat.format( atr) ) + " / "
+				+ (Double.isNaN( intradayAtr) ? "-" : doubleZeroFormat.format( intradayAtr) ) + " 5m");
+		if (prefilledStop != null && prefilledStop.equals( stopLossTextField.getText() ) && stopLossAbsoluteRadioButton.isSelected() ) {
+			double stop = PositionSizer.atrStop( currentPrice, atr, atrMultiple, true);
+			if (!Double.isNaN( stop) ) {
+				prefilledStop = doubleZeroFormat.format( stop);
+				stopLossTextField.setText( prefilledStop);
+			}
+		}
+	}
+
+	private void useAtrStop() {
+		double stop = PositionSizer.atrStop(currentPrice, atr, atrMultiple, true);
+		if (Double.isNaN(stop)) {
+			MainPanel.INSTANCE.show("No ATR for the current contract yet.");
+			return;
+		}
+		if (stopLossAbsoluteRadioButton.isSelected()) {
+			stopLossTextField.setText(doubleZeroFormat.format(stop));
+		} else {
+			stopLossTextField.setText(doubleZeroFormat.format((stop / currentPrice - 1) * 100));
+		}
+	}
+
+	/** Show the portfolio heat and cap the next trade to what's left of the limit, on the EDT. */
+	private void refreshHeat() {
+		PortfolioHeat heat = MainPanel.INSTANCE.controller().heat();
+		double limit = heat.limit();
+		String text = doubleZeroFormat.format( heat.heat() );
+		if (limit >= 0) {
+			text += " / " + doubleZeroFormat.format( limit);
+		}
+		if (heat.unprotected() > 0) {
+			text += "  (" + heat.unprotected() + " without stop)";
+		}
+		heatTextField.setText( text);
+		riskCap = heat.remaining();
+		sizingGraph.riskCap( riskCap);
+		inputChanged();
+	}
+	
+	private static double parseProperty(String name, double defaultValue) {
+		String value = System.getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private double parseOrNaN(JTextField textField) {
+		try {
+			return numberFormat.parse(textField.getText()).doubleValue();
+		} catch (ParseException pe) {
+			return Double.NaN;
 		}
 	}
 	
+	private double parseOrNegative(JTextField textField) {
+		try {
+			return numberFormat.parse(textField.getText()).doubleValue();
+		} catch (ParseException pe) {
+			return -1.0;
+		}
+	}
+
 	private void validateValues(double nlv, double currentPrice, double risk, double stopLoss) throws InputMismatchException {
 		// TODO make this more robust, and display meaningful messages
 		if (nlv <= 0 || currentPrice <= 0 || currentPrice >= nlv || risk <= 0 || risk > 100 || stopLoss == currentPrice) {
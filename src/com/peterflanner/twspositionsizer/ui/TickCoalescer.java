@@ -0,0 +1,156 @@
+package com.peterflanner.twspositionsizer.ui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.swing.Timer;
+
+import com.ib.controller.NewTickType;
+
+/**
+ * Sits between the market data dispatcher and the EDT for top of market price ticks. Each tick type has a single
+ * lock-free slot holding its latest price; the dispatching thread overwrites the slot and marks it dirty, and at most
+ * one flush per frame interval is scheduled on the EDT. Ticks that are overwritten before the EDT sees them are
+ * counted as coalesced, ticks that can't be stored are counted as dropped.
+ */
+public class TickCoalescer {
+    /** Frame interval used when none is configured, roughly 60 Hz. */
+    public static final int DEFAULT_FRAME_MILLIS = 16;
+
+    public interface IFrameListener {
+        /** Called on the EDT once per frame in which at least one tick type changed. */
+        void frame(TickCoalescer ticks);
+    }
+
+    private static final int MAX_SLOTS = Long.SIZE;
+
+    private final AtomicLongArray m_prices = new AtomicLongArray(Math.min(NewTickType.values().length, MAX_SLOTS));
+    private final AtomicLong m_dirty = new AtomicLong();
+    // receive time of the oldest tick not yet delivered, 0 if none
+    private final AtomicLong m_oldestNanos = new AtomicLong();
+    private final AtomicBoolean m_scheduled = new AtomicBoolean();
+    private final IFrameListener m_listener;
+    private final Timer m_timer;
+
+    private final AtomicLong m_received = new AtomicLong();
+    private final AtomicLong m_coalesced = new AtomicLong();
+    private final AtomicLong m_dropped = new AtomicLong();
+    private final AtomicLong m_frames = new AtomicLong();
+
+    // dirty mask and oldest receive time of the frame currently being delivered, only touched on the EDT
+    private long m_frameDirty;
+    private long m_frameReceivedNanos;
+
+    public TickCoalescer(int frameMillis, IFrameListener listener) {
+        m_listener = listener;
+        m_timer = new Timer(frameMillis, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                flush();
+            }
+        });
+        m_timer.setRepeats(false);
+        m_timer.setCoalesce(true);
+    }
+
+    /**
+     * Store the latest price for a tick type. Safe to call from any thread, never blocks and never touches Swing
+     * beyond scheduling the next frame.
+     */
+    public void tickPrice(NewTickType tickType, double price) {
+        tickPrice(tickType, price, System.nanoTime());
+    }
+
+    /**
+     * Store the latest price for a tick type.
+     * @param receivedNanos when the tick came off the socket, from {@link System#nanoTime}
+     */
+    public void tickPrice(NewTickType tickType, double price, long receivedNanos) {
+        m_received.incrementAndGet();
+        int slot = tickType.ordinal();
+        if (slot >= m_prices.length()) {
+            m_dropped.incrementAndGet();
+            return;
+        }
+        m_prices.set(slot, Double.doubleToRawLongBits(price));
+        // stamped before the dirty bit so a frame that sees the tick also sees its receive time
+        if (m_oldestNanos.get() == 0) {
+            m_oldestNanos.compareAndSet(0, receivedNanos);
+        }
+
+        long bit = 1L << slot;
+        long prev;
+        do {
+            prev = m_dirty.get();
+        } while (!m_dirty.compareAndSet(prev, prev | bit));
+        if ((prev & bit) != 0) {
+            m_coalesced.incrementAndGet();
+        }
+
+        if (m_scheduled.compareAndSet(false, true)) {
+            m_timer.start();
+        }
+    }
+
+    /** Discard any ticks that haven't been delivered yet, e.g. when the contract changes. */
+    public void clear() {
+        m_dropped.addAndGet(Long.bitCount(m_dirty.getAndSet(0)));
+        m_oldestNanos.set(0);
+    }
+
+    /** True if the tick type changed in the frame being delivered. Only meaningful inside {@link IFrameListener#frame}. */
+    public boolean isDirty(NewTickType tickType) {
+        int slot = tickType.ordinal();
+        return slot < MAX_SLOTS && (m_frameDirty & (1L << slot)) != 0;
+    }
+
+    /**
+     * When the oldest tick in the frame being delivered was received, from {@link System#nanoTime}. Only meaningful
+     * inside {@link IFrameListener#frame}.
+     */
+    public long receivedNanos() {
+        return m_frameReceivedNanos;
+    }
+
+    /** Latest price stored for the tick type. */
+    public double price(NewTickType tickType) {
+        return Double.longBitsToDouble(m_prices.get(tickType.ordinal()));
+    }
+
+    private void flush() {
+        // clear the flag first so a tick arriving while we deliver schedules the next frame
+        m_scheduled.set(false);
+        m_frameReceivedNanos = m_oldestNanos.getAndSet(0);
+        m_frameDirty = m_dirty.getAndSet(0);
+        if (m_frameDirty != 0) {
+            m_frames.incrementAndGet();
+            m_listener.frame(this);
+        }
+        m_frameDirty = 0;
+        m_frameReceivedNanos = 0;
+    }
+
+    public long received() {
+        return m_received.get();
+    }
+
+    public long coalesced() {
+        return m_coalesced.get();
+    }
+
+    public long dropped() {
+        return m_dropped.get();
+    }
+
+    public long frames() {
+        return m_frames.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Ticks received=" + received() + " coalesced=" + coalesced() + " dropped=" + dropped() + " frames=" + frames();
+    }
+}
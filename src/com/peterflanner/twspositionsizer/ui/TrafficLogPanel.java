@@ -0,0 +1,66 @@
+package com.peterflanner.twspositionsizer.ui;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+
+import com.peterflanner.twspositionsizer.diagnostics.ApiTrafficLogger;
+
+/**
+ * The last lines of one direction of API traffic. Nothing is rendered while the tab is hidden; the text is pulled from
+ * the logger's ring when the tab is shown or Refresh is pressed.
+ */
+class TrafficLogPanel extends JPanel {
+	private static final int LINES = 500;
+
+	private final ApiTrafficLogger m_logger;
+	private final JTextArea m_text = new JTextArea();
+	private final JLabel m_file = new JLabel();
+
+	TrafficLogPanel(ApiTrafficLogger logger) {
+		m_logger = logger;
+		m_text.setEditable( false);
+
+		JButton refresh = new JButton( "Refresh");
+		refresh.addActionListener( new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+
+		addHierarchyListener( new HierarchyListener() {
+			@Override public void hierarchyChanged(HierarchyEvent e) {
+				if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0 && isShowing() ) {
+					refresh();
+				}
+			}
+		});
+
+		JPanel top = new JPanel( new BorderLayout() );
+		top.add( m_file);
+		top.add( refresh, BorderLayout.EAST);
+
+		JScrollPane scroll = new JScrollPane( m_text);
+		scroll.setPreferredSize( new Dimension( 10000, 120) );
+
+		setLayout( new BorderLayout() );
+		add( top, BorderLayout.NORTH);
+		add( scroll);
+	}
+
+	private void refresh() {
+		m_text.setText( m_logger.tail( LINES) );
+		m_text.setCaretPosition( m_text.getDocument().getLength() );
+		long dropped = m_logger.dropped();
+		m_file.setText( m_logger.file().getPath() + (dropped > 0 ? "  (" + dropped + " chars dropped)" : "") );
+	}
+}
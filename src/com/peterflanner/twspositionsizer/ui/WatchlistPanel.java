@@ -0,0 +1,438 @@
+package com.peterflanner.twspositionsizer.ui;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.ButtonGroup;
+import javax.swing.JButton;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JRadioButton;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+
+import com.ib.controller.ApiController.IContractDetailsHandler;
+import com.ib.controller.ApiController.TopMktDataAdapter;
+import com.ib.controller.NewContract;
+import com.ib.controller.NewContractDetails;
+import com.ib.controller.NewTickType;
+import com.ib.controller.Types.SecType;
+import com.peterflanner.twspositionsizer.controller.Bracket;
+import com.peterflanner.twspositionsizer.controller.MarketDataSubscriptions;
+import com.peterflanner.twspositionsizer.controller.MyApiController;
+import com.peterflanner.twspositionsizer.controller.OrderTracker;
+import com.peterflanner.twspositionsizer.controller.PortfolioHeat;
+import com.peterflanner.twspositionsizer.controller.PositionCache;
+import com.peterflanner.twspositionsizer.engine.ConidIndex;
+import com.peterflanner.twspositionsizer.engine.DirtyRows;
+import com.peterflanner.twspositionsizer.engine.PositionSizer;
+import com.peterflanner.twspositionsizer.engine.Watchlist;
+import com.peterflanner.twspositionsizer.ui.components.VerticalPanel;
+import com.peterflanner.twspositionsizer.util.UIUtils;
+
+/**
+ * Live share counts for a list of equities, each with its own stop. Ticks are sized on their dispatcher stripe
+ * straight into the {@link Watchlist}; once per frame the EDT repaints only the rows that changed.
+ * <p>
+ * Rows are sized like the sizer tab sizes its contract: net of the position held and the risk of working orders in
+ * the selected account, and capped to what's left of the heat limit. A batch of brackets is capped to it as a whole.
+ */
+public class WatchlistPanel extends JPanel {
+	private static final int CAPACITY = 1024;
+
+	private final PositionSizer m_sizer = new PositionSizer();
+	private final Watchlist m_watchlist = new Watchlist(CAPACITY, m_sizer);
+	private final WatchlistModel m_model = new WatchlistModel();
+	private final JTable m_table = new JTable(m_model);
+	// conid -> market data handler, only touched on the EDT
+	private final HashMap<Integer, RowTicker> m_tickers = new HashMap<>();
+	// the account selected in the sizer, null for TWS's default
+	private volatile String m_account;
+	// the session whose positions, orders and heat the rows are sized against, only touched on the EDT
+	private MyApiController m_listening;
+	private final AtomicBoolean m_exposureRefreshScheduled = new AtomicBoolean();
+	private final Runnable m_exposureRefresh = new Runnable() {
+		@Override public void run() {
+			refreshExposure();
+		}
+	};
+	private final OrderTracker.IOrderListener m_orderListener = new OrderTracker.IOrderListener() {
+		@Override public void changed(String account, String symbol, int conid) {
+			String selected = m_account;
+			if (account.equals(selected == null ? "" : selected)) {
+				scheduleExposureRefresh();
+			}
+		}
+	};
+	private final PositionCache.IPositionListener m_positionListener = new PositionCache.IPositionListener() {
+		@Override public void changed(String account, int conid) {
+			if (account.equals(m_account)) {
+				scheduleExposureRefresh();
+			}
+		}
+	};
+	private final PortfolioHeat.IHeatListener m_heatListener = new PortfolioHeat.IHeatListener() {
+		@Override public void changed() {
+			scheduleExposureRefresh();
+		}
+	};
+
+	private final JTextField m_symbolTextField = new JTextField(7);
+	private final JTextField m_stopTextField = new JTextField(7);
+	private final JTextField m_riskTextField = new JTextField("100", 7);
+	private final JRadioButton m_riskAbsoluteRadioButton = new JRadioButton("Dollars");
+	private final JRadioButton m_riskPercentRadioButton = new JRadioButton("Percent");
+
+	private final NumberFormat m_doubleZeroFormat = new DecimalFormat("0.00");
+	private final NumberFormat m_numberFormat = NumberFormat.getInstance();
+
+	private final Timer m_frameTimer;
+
+	WatchlistPanel() {
+		m_riskAbsoluteRadioButton.setSelected(true);
+		ButtonGroup riskGroup = new ButtonGroup();
+		riskGroup.add(m_riskAbsoluteRadioButton);
+		riskGroup.add(m_riskPercentRadioButton);
+		ActionListener riskListener = new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e) {
+				onRiskChanged();
+			}
+		};
+		m_riskTextField.addActionListener(riskListener);
+		m_riskAbsoluteRadioButton.addActionListener(riskListener);
+		m_riskPercentRadioButton.addActionListener(riskListener);
+
+		JButton addButton = new JButton("Add");
+		ActionListener addListener = new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e) {
+				onAdd();
+			}
+		};
+		addButton.addActionListener(addListener);
+		m_symbolTextField.addActionListener(addListener);
+		m_stopTextField.addActionListener(addListener);
+
+		JButton removeButton = new JButton("Remove");
+		removeButton.addActionListener(new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e) {
+				onRemove();
+			}
+		});
+
+		JButton bracketsButton = new JButton("Place Brackets");
+		bracketsButton.setToolTipText("Buy the sized shares of the selected rows, or of every row, each with its stop");
+		bracketsButton.addActionListener(new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e) {
+				onPlaceBrackets();
+			}
+		});
+
+		VerticalPanel top = new VerticalPanel();
+		top.add("Symbol", m_symbolTextField, addButton, removeButton, bracketsButton);
+		top.add("Stop Loss", m_stopTextField);
+		top.add("Risk", m_riskTextField, m_riskAbsoluteRadioButton, m_riskPercentRadioButton);
+
+		m_table.setDefaultRenderer(Object.class, new TierRenderer());
+
+		setLayout(new BorderLayout());
+		add(top, BorderLayout.NORTH);
+		add(new JScrollPane(m_table));
+
+		onRiskChanged();
+
+		m_frameTimer = new Timer(Integer.getInteger("twspositionsizer.frameMillis", TickCoalescer.DEFAULT_FRAME_MILLIS), new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e) {
+				m_watchlist.drainDirty(m_model);
+			}
+		});
+		m_frameTimer.start();
+	}
+
+	/** The account brackets are placed in and its values, used for percent risk and the color tiers. Safe to call from any thread. */
+	public void account(String account, double nlv, double buyingPower, double excessLiquidity, double totalCashValue) {
+		m_account = account == null || account.isEmpty() ? null : account;
+		m_watchlist.account(nlv, buyingPower, excessLiquidity, totalCashValue);
+		scheduleExposureRefresh();
+	}
+
+	private void scheduleExposureRefresh() {
+		if (m_exposureRefreshScheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(m_exposureRefresh);
+		}
+	}
+
+	/** Take each row's position and working risk, and the heat left, from the selected session, on the EDT. */
+	private void refreshExposure() {
+		m_exposureRefreshScheduled.set(false);
+		MyApiController controller = MainPanel.INSTANCE.controller();
+		if (controller != m_listening) {
+			// the sizer switched to an account on another session
+			if (m_listening != null) {
+				m_listening.orderTracker().removeListener(m_orderListener);
+				m_listening.positions().removeListener(m_positionListener);
+				m_listening.heat().removeListener(m_heatListener);
+			}
+			controller.orderTracker().addListener(m_orderListener);
+			controller.positions().addListener(m_positionListener);
+			controller.heat().addListener(m_heatListener);
+			m_listening = controller;
+		}
+		String account = m_account;
+		m_watchlist.riskCap(controller.heat().remaining());
+		for (int row = 0; row < m_watchlist.size(); row++) {
+			m_watchlist.exposure(row, controller.positions().position(account, m_watchlist.conid(row)),
+					controller.orderTracker().workingRisk(account, m_watchlist.symbol(row)));
+		}
+	}
+
+	private void onRiskChanged() {
+		try {
+			m_sizer.riskIsPercent(m_riskPercentRadioButton.isSelected());
+			m_watchlist.risk(m_numberFormat.parse(m_riskTextField.getText()).doubleValue());
+		} catch (ParseException e) {
+			MainPanel.INSTANCE.show("Invalid value entered for Risk.");
+		}
+	}
+
+	private void onAdd() {
+		String symbol = m_symbolTextField.getText().trim().toUpperCase();
+		if (symbol.isEmpty()) {
+			return;
+		}
+		final double stop;
+		try {
+			stop = m_numberFormat.parse(m_stopTextField.getText()).doubleValue();
+		} catch (ParseException e) {
+			MainPanel.INSTANCE.show("Invalid value entered for Stop Loss.");
+			return;
+		}
+
+		NewContract contract = new NewContract();
+		contract.symbol(symbol);
+		contract.secType(SecType.STK);
+		contract.exchange("SMART");
+		contract.currency("USD");
+		MainPanel.INSTANCE.controller().contractDetails().reqContractDetails(contract, new IContractDetailsHandler() {
+			@Override public void contractDetails(final ArrayList<NewContractDetails> list) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override public void run() {
+						if (list.isEmpty()) {
+							MainPanel.INSTANCE.show("No contract found for " + symbol);
+						} else {
+							add(list.get(0).contract(), stop);
+						}
+					}
+				});
+			}
+		});
+		m_symbolTextField.setText("");
+	}
+
+	private void add(NewContract contract, double stop) {
+		int sizeBefore = m_watchlist.size();
+		int row = m_watchlist.add(contract.conid(), contract.symbol(), stop);
+		if (row == ConidIndex.NONE) {
+			MainPanel.INSTANCE.show("Watchlist is full, " + contract.symbol() + " was not added.");
+			return;
+		}
+		if (m_watchlist.size() > sizeBefore) {
+			m_model.fireTableRowsInserted(row, row);
+			scheduleExposureRefresh();
+		}
+		// a new row, or one whose line was evicted: adding it again streams it again
+		if (!m_tickers.containsKey(contract.conid())) {
+			RowTicker ticker = new RowTicker(contract);
+			m_tickers.put(contract.conid(), ticker);
+			ticker.m_controller.mktData().subscribe(contract, ticker);
+		}
+	}
+
+	private void onRemove() {
+		int[] rows = m_table.getSelectedRows();
+		int[] conids = new int[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			conids[i] = m_watchlist.conid(rows[i]);
+		}
+		for (int conid : conids) {
+			RowTicker ticker = m_tickers.remove(conid);
+			if (ticker != null) {
+				ticker.m_controller.mktData().unsubscribe(conid, ticker);
+			}
+			m_watchlist.remove(conid);
+		}
+		m_model.fireTableDataChanged();
+	}
+
+	/**
+	 * Places a bracket for each selected row, or every row if none are selected, in a single write. Each row is sized
+	 * to fit under the heat limit on its own; together they may not, so rows are taken in order and cut down to the
+	 * heat still left after the ones before them.
+	 */
+	private void onPlaceBrackets() {
+		int[] rows = m_table.getSelectedRows();
+		if (rows.length == 0) {
+			rows = new int[m_watchlist.size()];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = i;
+			}
+		}
+		ArrayList<Bracket> brackets = new ArrayList<>(rows.length);
+		StringBuilder summary = new StringBuilder();
+		double remaining = MainPanel.INSTANCE.controller().heat().remaining();
+		int overHeat = 0;
+		for (int row : rows) {
+			int shares = m_watchlist.shares(row);
+			double price = m_watchlist.price(row);
+			RowTicker ticker = m_tickers.get(m_watchlist.conid(row));
+			// a row whose line was evicted or hasn't streamed since a reconnect would be placed at an old price
+			if (shares == 0 || !(price > 0) || ticker == null || m_watchlist.isStale(row)
+					|| ticker.m_controller.mktData().isStale(ticker.m_conid)) {
+				continue;
+			}
+			double stop = m_watchlist.stop(row);
+			if (!Double.isNaN(remaining)) {
+				shares = PositionSizer.capShares(shares, price, stop, remaining, m_sizer.roundLot());
+				if (shares == 0) {
+					overHeat++;
+					continue;
+				}
+				remaining = Math.max(0, remaining - Math.abs(shares * (price - stop)));
+			}
+			Bracket bracket = new Bracket(ticker.m_contract);
+			bracket.account(m_account);
+			bracket.shares(shares);
+			bracket.limitPrice(price);
+			bracket.stopPrice(stop);
+			bracket.handler(new PositionSizerPanel.OrderHandler());
+			brackets.add(bracket);
+			summary.append('\n').append(bracket.action()).append(' ').append(bracket.quantity()).append(' ')
+					.append(m_watchlist.symbol(row)).append(" @ ").append(m_doubleZeroFormat.format(price))
+					.append(" stop ").append(m_doubleZeroFormat.format(bracket.stopPrice()));
+		}
+		if (overHeat > 0) {
+			summary.append("\n\n").append(overHeat).append(" more would exceed the heat limit and are left out.");
+		}
+		if (brackets.isEmpty()) {
+			MainPanel.INSTANCE.show(overHeat > 0 ? "No heat left for the watchlist rows. No action taken."
+					: "No watchlist rows with shares to buy. No action taken.");
+			return;
+		}
+		int answer = JOptionPane.showConfirmDialog(this, "Place " + brackets.size() + " bracket orders?" + summary,
+				"Place Brackets", JOptionPane.OK_CANCEL_OPTION);
+		if (answer != JOptionPane.OK_OPTION) {
+			return;
+		}
+		long start = System.nanoTime();
+		MainPanel.INSTANCE.controller().orders().submit(brackets);
+		long micros = (System.nanoTime() - start) / 1000;
+		MainPanel.INSTANCE.show("Placed " + brackets.size() + " brackets in " + micros + " us");
+	}
+
+	/**
+	 * Feeds one contract's LAST ticks into the watchlist, falling back to CLOSE until the first trade. If the line limit
+	 * takes the line away, the row is marked stale until the symbol is added again.
+	 */
+	private class RowTicker extends TopMktDataAdapter implements MarketDataSubscriptions.IEvictionHandler {
+		private final NewContract m_contract;
+		private final int m_conid;
+		// the session the line was opened on, which may no longer be the selected one
+		private final MyApiController m_controller = MainPanel.INSTANCE.controller();
+		private boolean m_hasLast;
+
+		RowTicker(NewContract contract) {
+			m_contract = contract;
+			m_conid = contract.conid();
+		}
+
+		@Override public void tickPrice(NewTickType tickType, double price, int canAutoExecute) {
+			if (tickType == NewTickType.LAST) {
+				m_hasLast = true;
+				m_watchlist.price(m_conid, price);
+			} else if (tickType == NewTickType.CLOSE && !m_hasLast) {
+				m_watchlist.price(m_conid, price);
+			}
+		}
+
+		@Override public void evicted() {
+			m_watchlist.stale(m_conid);
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override public void run() {
+					if (m_tickers.get(m_conid) == RowTicker.this) {
+						m_tickers.remove(m_conid);
+					}
+				}
+			});
+		}
+	}
+
+	private class WatchlistModel extends AbstractTableModel implements DirtyRows.IRowVisitor {
+		private final String[] m_columns = { "Symbol", "Last", "Stop", "Shares", "Value" };
+
+		@Override public int getRowCount() {
+			return m_watchlist.size();
+		}
+
+		@Override public int getColumnCount() {
+			return m_columns.length;
+		}
+
+		@Override public String getColumnName(int col) {
+			return m_columns[col];
+		}
+
+		@Override public boolean isCellEditable(int row, int col) {
+			return col == 2;
+		}
+
+		@Override public Object getValueAt(int row, int col) {
+			switch (col) {
+				case 0: return m_watchlist.symbol(row);
+				case 1: return m_watchlist.isStale(row) ? format(m_watchlist.price(row)) + " stale" : format(m_watchlist.price(row));
+				case 2: return format(m_watchlist.stop(row));
+				case 3: return m_watchlist.shares(row);
+				case 4: return format(m_watchlist.value(row));
+				default: return null;
+			}
+		}
+
+		@Override public void setValueAt(Object value, int row, int col) {
+			try {
+				m_watchlist.stopAt(row, m_numberFormat.parse(value.toString()).doubleValue());
+			} catch (ParseException e) {
+				MainPanel.INSTANCE.show("Invalid value entered for Stop Loss.");
+			}
+		}
+
+		/** Repaint a single changed row, called once per frame for each dirty row. */
+		@Override public void row(int row) {
+			fireTableRowsUpdated(row, row);
+		}
+
+		private String format(double v) {
+			return Double.isNaN(v) ? "" : m_doubleZeroFormat.format(v);
+		}
+	}
+
+	private class TierRenderer extends DefaultTableCellRenderer {
+		@Override public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int col) {
+			Component c = super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, col);
+			if (!isSelected) {
+				c.setBackground(col == 3 || col == 4 ? UIUtils.tierColor(m_watchlist.tier(row), table.getBackground()) : table.getBackground());
+			}
+			return c;
+		}
+	}
+}
@@ -1,8 +1,12 @@
 package com.peterflanner.twspositionsizer.util;
 
 import javax.swing.JTextField;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.Color;
 
+import com.peterflanner.twspositionsizer.engine.PositionSizer;
+
 /**
  * Author: Pete
  * Date: 1/8/2017
@@ -18,4 +22,43 @@ public class UIUtils {
         textField.setEnabled(false);
         textField.setDisabledTextColor(Color.BLACK);
     }
+
+    /**
+     * Background color for a sizing result, based on which account value the position exceeds.
+     * @param tier the sizing tier
+     * @param unknownColor color to use when the account values aren't known yet
+     */
+    public static Color tierColor(PositionSizer.Tier tier, Color unknownColor) {
+        switch (tier) {
+            case OVER_BUYING_POWER:     return Color.RED;
+            case OVER_EXCESS_LIQUIDITY: return Color.ORANGE;
+            case OVER_CASH:             return Color.YELLOW;
+            case WITHIN_CASH:           return Color.GREEN;
+            default:                    return unknownColor;
+        }
+    }
+
+    /**
+     * Run a callback whenever the text of a text field changes, whether typed or set programmatically.
+     * @param textField the text field to listen to
+     * @param onChange called on the thread that changed the text
+     */
+    public static void addTextChangeListener(JTextField textField, final Runnable onChange) {
+        textField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                onChange.run();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                onChange.run();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                onChange.run();
+            }
+        });
+    }
 }